@@ -1,7 +1,9 @@
 package apps;
 
 import java.util.*;
+import java.util.concurrent.*;
 
+import rmi.*;
 import naming.*;
 
 /** Lists files and directories.
@@ -84,30 +86,41 @@ public class List extends ClientApplication
         String[]        components;
 
         // If the path is remote, obtain a naming server stub. Lock the path on
-        // the naming server and list it.
+        // the naming server and list it. The lock, the directory check and the
+        // listing are sent together in one batch; the listing is ignored if
+        // the path turns out to be a file.
         Service         naming_server = NamingStubs.service(object.hostname);
+        Batch<Service>  batch = Stub.batch(Service.class, naming_server);
+
+        CompletableFuture<Void>     lock =
+            batch.run(service -> service.lock(object.path, false));
+        CompletableFuture<Boolean>  is_directory =
+            batch.call(service -> service.isDirectory(object.path));
+        CompletableFuture<String[]> listing =
+            batch.call(service -> service.list(object.path));
 
         try
         {
-            naming_server.lock(object.path, false);
+            batch.send();
+            lock.join();
         }
         catch(Throwable t)
         {
             throw new ApplicationFailure("cannot lock " + object + ": " +
-                                         t.getMessage());
+                                         cause(t).getMessage());
         }
 
         try
         {
-            if(naming_server.isDirectory(object.path))
-                components = naming_server.list(object.path);
+            if(is_directory.join())
+                components = listing.join();
             else
                 components = new String[] {object.path.last()};
         }
         catch(Throwable t)
         {
             throw new ApplicationFailure("cannot list " + object + ": " +
-                                         t.getMessage());
+                                         cause(t).getMessage());
         }
         finally
         {
@@ -136,4 +149,14 @@ public class List extends ClientApplication
             System.out.println(components[index]);
         }
     }
+
+    /** Returns the exception thrown by a remote call, given the exception
+        thrown when waiting for its result. */
+    private static Throwable cause(Throwable t)
+    {
+        if(t instanceof CompletionException && t.getCause() != null)
+            return t.getCause();
+
+        return t;
+    }
 }
@@ -1,5 +1,7 @@
 package apps;
 
+import java.io.*;
+
 import rmi.*;
 
 import naming.NamingServer;
@@ -7,9 +9,11 @@ import naming.NamingServer;
 /** Naming server application.
 
     <p>
-    The naming server application does not take any arguments. It starts a
-    naming server listening on the default client and registration ports for
-    clients and storage servers, respectively.
+    The naming server application starts a naming server listening on the
+    default client and registration ports for clients and storage servers,
+    respectively. It takes one optional argument: the path of a journal file
+    in which the directory tree is kept, so that it survives a restart. Without
+    it, the tree is rebuilt from scratch as storage servers register.
  */
 public class NamingServerApp extends ServerApplication
 {
@@ -32,17 +36,22 @@ public class NamingServerApp extends ServerApplication
     /** Starts the naming server.
 
         @param arguments Command line arguments.
-        @throws BadUsageException If there are any command line arguments.
+        @throws BadUsageException If there is more than one command line
+                                  argument.
+        @throws IOException If the journal cannot be read.
         @throws RMIException If the naming server cannot be started.
      */
     @Override
     protected void startServer(String[] arguments)
-        throws BadUsageException, RMIException
+        throws BadUsageException, IOException, RMIException
     {
-        if(arguments.length != 0)
-            throw new BadUsageException("usage: naming");
+        if(arguments.length > 1)
+            throw new BadUsageException("usage: naming [journal]");
 
-        server = new StoppingNamingServer();
+        if(arguments.length == 0)
+            server = new StoppingNamingServer();
+        else
+            server = new StoppingNamingServer(new File(arguments[0]));
         server.start();
     }
 
@@ -56,6 +65,17 @@ public class NamingServerApp extends ServerApplication
     /** Application naming server. */
     private class StoppingNamingServer extends NamingServer
     {
+        /** Creates a naming server without a journal. */
+        StoppingNamingServer()
+        {
+        }
+
+        /** Creates a naming server which keeps its tree in a journal. */
+        StoppingNamingServer(File journal) throws IOException
+        {
+            super(journal);
+        }
+
         /** Schedules a timeout before attempting to stop the server
             gracefully. */
         @Override
@@ -173,6 +173,9 @@ public class Put extends ClientApplication
                 output_stream.write(read_buffer, 0, bytes_to_transfer);
                 bytes_remaining -= bytes_to_transfer;
             }
+
+            // Wait for the last write requests, so that a failure is reported.
+            output_stream.flush();
         }
         catch(ApplicationFailure e) { throw e; }
         catch(Throwable t)
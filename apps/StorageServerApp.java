@@ -16,6 +16,13 @@ import storage.StorageServer;
     local hostname, the hostname of the remote naming server, and the directory
     that the storage server will use as its local storage for files.
 
+    <p>
+    Three more arguments may follow, together: the file in which to keep a
+    manifest of the files registered, and the client and command ports. A
+    storage server restarted on the same ports then sends the naming server
+    only the changes to its files since it last registered. The manifest
+    must not be kept in the storage directory.
+
     <p>
     The directory can be given as an absolute or a relative path. The current
     contents of the directory will be offered to the naming server during
@@ -53,8 +60,9 @@ public class StorageServerApp extends ServerApplication
     /** Starts the storage server.
 
         @param arguments The command line arguments.
-        @throws BadUsageException If there are not three arguments on the
-                                  command line.
+        @throws BadUsageException If there are not three or six arguments on
+                                  the command line, or a port is not a
+                                  number.
         @throws UnknownHostException If a storage server stub cannot be created
                                      due to an unassigned address.
         @throws FileNotFoundException If the directory in which the storage
@@ -72,16 +80,34 @@ public class StorageServerApp extends ServerApplication
                RMIException
     {
         // Check the command line arguments.
-        if(arguments.length != 3)
+        if(arguments.length != 3 && arguments.length != 6)
         {
             throw new BadUsageException("usage: storage local_hostname " +
-                                        "naming_server directory");
+                                        "naming_server directory " +
+                                        "[manifest client_port command_port]");
         }
 
         // Create the storage server object using the absolute version of the
         // given path.
         File            local_root = new File(arguments[2]).getAbsoluteFile();
-        server = new StoppingStorageServer(local_root);
+        if(arguments.length == 3)
+            server = new StoppingStorageServer(local_root, 0, 0, null);
+        else
+        {
+            try
+            {
+                server = new StoppingStorageServer(local_root,
+                                                   Integer.parseInt(arguments[4]),
+                                                   Integer.parseInt(arguments[5]),
+                                                   new File(arguments[3]));
+            }
+            catch(NumberFormatException e)
+            {
+                throw new BadUsageException("usage: storage local_hostname " +
+                                            "naming_server directory " +
+                                            "[manifest client_port command_port]");
+            }
+        }
 
         // Start and register the storage server.
         server.start(arguments[0], NamingStubs.registration(arguments[1]));
@@ -98,9 +124,10 @@ public class StorageServerApp extends ServerApplication
     private class StoppingStorageServer extends StorageServer
     {
         /** Creates the storage server. */
-        StoppingStorageServer(File root)
+        StoppingStorageServer(File root, int client_port, int command_port,
+                              File manifest)
         {
-            super(root);
+            super(root, client_port, command_port, manifest);
         }
 
         /** Schedules a timeout before attempting to stop the server
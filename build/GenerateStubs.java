@@ -0,0 +1,266 @@
+package build;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+import rmi.MethodTable;
+
+/** Generates the stub and dispatcher sources for remote interfaces.
+
+    <p>
+    For each interface <code>p.I</code> named on the command line, this tool
+    writes <code>p/I_Stub.java</code>, a stub class extending
+    <code>rmi.GeneratedStub</code>, and <code>p/I_Skel.java</code>, an
+    <code>rmi.Dispatcher</code>. Both number the methods of the interface as
+    <code>rmi.MethodTable</code> does, and call them with plain Java code
+    instead of through proxies and method handles. The RMI library uses them
+    in place of proxy stubs and method handles whenever they are present and
+    up to date.
+
+    <p>
+    The generated sources are kept with the interfaces. The Makefile target
+    <code>stubs</code> regenerates them, and must be run after any change to
+    the methods of an interface for which they exist - until then, the library
+    ignores them.
+ */
+public abstract class GenerateStubs
+{
+    /** Program entry point.
+
+        @param arguments The directory under which to write the sources,
+                         followed by the names of the interfaces.
+     */
+    public static void main(String[] arguments) throws Exception
+    {
+        if(arguments.length < 2)
+        {
+            System.err.println("usage: java build.GenerateStubs directory "
+                               + "interface...");
+            System.exit(2);
+        }
+
+        for(int i = 1; i < arguments.length; i++)
+        {
+            Class<?>    intf = Class.forName(arguments[i]);
+            if(!intf.isInterface())
+            {
+                throw new IllegalArgumentException(arguments[i] +
+                                                   " is not an interface");
+            }
+
+            MethodTable table = MethodTable.forInterface(intf);
+            write(new File(arguments[0]), intf, "_Stub", stub(intf, table));
+            write(new File(arguments[0]), intf, "_Skel", skeleton(intf, table));
+        }
+    }
+
+    /** Writes one generated source file. */
+    private static void write(File root, Class<?> intf, String suffix,
+                              String source) throws IOException
+    {
+        File        file = new File(root, intf.getName().replace('.', '/') +
+                                          suffix + ".java");
+        Writer      writer = new OutputStreamWriter(new FileOutputStream(file),
+                                                    "UTF-8");
+        try
+        {
+            writer.write(source);
+        }
+        finally
+        {
+            writer.close();
+        }
+        System.out.println("wrote " + file);
+    }
+
+    /** Returns the source of the stub class for an interface. */
+    private static String stub(Class<?> intf, MethodTable table)
+    {
+        String          name = intf.getSimpleName() + "_Stub";
+        StringBuilder   sb = header(intf);
+
+        sb.append("/** Stub for <code>").append(intf.getName())
+          .append("</code>. See <code>rmi.GeneratedStub</code>. */\n");
+        sb.append("public final class ").append(name)
+          .append(" extends rmi.GeneratedStub implements ")
+          .append(intf.getSimpleName()).append("\n{\n");
+        sb.append("    private static final long serialVersionUID = 1L;\n\n");
+        sb.append("    public ").append(name)
+          .append("(rmi.RMIInvocationHandler handler)\n    {\n")
+          .append("        super(handler);\n    }\n");
+
+        for(int ordinal = 0; ordinal < table.size(); ordinal++)
+        {
+            Method      m = table.method(ordinal);
+            Class<?>[]  params = m.getParameterTypes();
+            Class<?>    result = m.getReturnType();
+
+            sb.append("\n    public ").append(type(result)).append(' ')
+              .append(m.getName()).append('(');
+            for(int j = 0; j < params.length; j++)
+            {
+                sb.append(j > 0 ? ", " : "").append(type(params[j]))
+                  .append(" a").append(j);
+            }
+            sb.append(")\n        throws ");
+            Class<?>[]  thrown = m.getExceptionTypes();
+            for(int j = 0; j < thrown.length; j++)
+            {
+                sb.append(j > 0 ? ", " : "").append(type(thrown[j]));
+            }
+            sb.append("\n    {\n        try {\n            ");
+
+            if(result != void.class)
+            {
+                sb.append("return (").append(type(box(result))).append(") ");
+            }
+            sb.append("call(").append(ordinal).append(", ");
+            if(params.length == 0)
+            {
+                sb.append("null");
+            }
+            else
+            {
+                sb.append("new Object[] {");
+                for(int j = 0; j < params.length; j++)
+                {
+                    sb.append(j > 0 ? ", a" : " a").append(j);
+                }
+                sb.append(" }");
+            }
+            sb.append(");\n        }\n");
+
+            // Exceptions the method may throw pass through; any other checked
+            // exception is wrapped, as a proxy stub would wrap it.
+            sb.append("        catch(");
+            List<Class<?>>  rethrown = rethrown(thrown);
+            for(int j = 0; j < rethrown.size(); j++)
+            {
+                sb.append(j > 0 ? " | " : "").append(type(rethrown.get(j)));
+            }
+            sb.append(" e) {\n            throw e;\n        }\n");
+            sb.append("        catch(Throwable t) {\n")
+              .append("            throw new java.lang.reflect.")
+              .append("UndeclaredThrowableException(t);\n        }\n    }\n");
+        }
+
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /** Returns the source of the dispatcher class for an interface. */
+    private static String skeleton(Class<?> intf, MethodTable table)
+    {
+        String          name = intf.getSimpleName() + "_Skel";
+        StringBuilder   sb = header(intf);
+
+        sb.append("/** Dispatcher for <code>").append(intf.getName())
+          .append("</code>. See <code>rmi.Dispatcher</code>. */\n");
+        sb.append("public final class ").append(name)
+          .append(" implements rmi.Dispatcher\n{\n");
+
+        sb.append("    private static final String[] SIGNATURES = {\n");
+        for(int ordinal = 0; ordinal < table.size(); ordinal++)
+        {
+            sb.append("        \"").append(table.signature(ordinal))
+              .append("\",\n");
+        }
+        sb.append("    };\n\n");
+
+        sb.append("    public String[] signatures()\n    {\n")
+          .append("        return SIGNATURES.clone();\n    }\n\n");
+
+        sb.append("    public Object dispatch(Object server, int ordinal, ")
+          .append("Object[] args) throws Throwable\n    {\n");
+        sb.append("        ").append(intf.getSimpleName())
+          .append(" target = (").append(intf.getSimpleName())
+          .append(") server;\n");
+        sb.append("        switch(ordinal) {\n");
+        for(int ordinal = 0; ordinal < table.size(); ordinal++)
+        {
+            Method      m = table.method(ordinal);
+            Class<?>[]  params = m.getParameterTypes();
+
+            sb.append("            case ").append(ordinal).append(":\n")
+              .append("                ");
+            if(m.getReturnType() != void.class)
+            {
+                sb.append("return ");
+            }
+            sb.append("target.").append(m.getName()).append('(');
+            for(int j = 0; j < params.length; j++)
+            {
+                sb.append(j > 0 ? ", " : "").append('(')
+                  .append(type(box(params[j]))).append(") args[").append(j)
+                  .append(']');
+            }
+            sb.append(");\n");
+            if(m.getReturnType() == void.class)
+            {
+                sb.append("                return null;\n");
+            }
+        }
+        sb.append("            default:\n")
+          .append("                throw new IllegalArgumentException(")
+          .append("\"no method \" + ordinal);\n");
+        sb.append("        }\n    }\n}\n");
+        return sb.toString();
+    }
+
+    /** Starts a generated source file. */
+    private static StringBuilder header(Class<?> intf)
+    {
+        StringBuilder   sb = new StringBuilder();
+
+        sb.append("// Generated by build.GenerateStubs from ")
+          .append(intf.getName()).append(". Do not edit.\n");
+        sb.append("package ").append(intf.getPackage().getName())
+          .append(";\n\n");
+        return sb;
+    }
+
+    /** Returns the exceptions to catch and rethrow unchanged for a method
+        declaring the given exceptions: these, and all unchecked exceptions,
+        leaving out any which is a subclass of another. */
+    private static List<Class<?>> rethrown(Class<?>[] thrown)
+    {
+        List<Class<?>>  all = new ArrayList<Class<?>>(Arrays.asList(thrown));
+        List<Class<?>>  kept = new ArrayList<Class<?>>();
+
+        all.add(RuntimeException.class);
+        all.add(Error.class);
+        for(Class<?> c : all)
+        {
+            boolean     covered = kept.contains(c);
+            for(Class<?> other : all)
+            {
+                if(other != c && other.isAssignableFrom(c))
+                {
+                    covered = true;
+                }
+            }
+            if(!covered)
+            {
+                kept.add(c);
+            }
+        }
+        return kept;
+    }
+
+    /** Returns the wrapper class of a primitive type, or the type itself. */
+    private static Class<?> box(Class<?> c)
+    {
+        if(!c.isPrimitive())
+        {
+            return c;
+        }
+        return Array.get(Array.newInstance(c, 1), 0).getClass();
+    }
+
+    /** Returns the name of a type as written in source. */
+    private static String type(Class<?> c)
+    {
+        return c.getCanonicalName();
+    }
+}
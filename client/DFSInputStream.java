@@ -2,6 +2,7 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.*;
 
 import rmi.*;
 import common.*;
@@ -12,10 +13,11 @@ import storage.*;
 
     <p>
     Read calls on a <code>DFSInputStream</code> are directed to a storage server
-    hosting the given file. Each read call corresponds to one network request.
-    If this behavior is not desirable, the <code>DFSInputStream</code> should be
-    wrapped in a <code>BufferedInputStream</code> or other class providing
-    buffered input.
+    hosting the given file. After each read, the stream asks the storage server
+    for the bytes that follow, without waiting for them, so that a sequential
+    reader finds the next block already on its way. At least
+    <code>READ_AHEAD</code> bytes are requested ahead, so short reads are served
+    mostly from memory.
 
     <p>
     <code>DFSInputStream</code> does not support marks.
@@ -32,6 +34,8 @@ public class DFSInputStream extends InputStream
     private final Path      path;
     /** Storage server hosting the file. */
     private final Storage   storage_server;
+    /** Asynchronous view of the storage server, used to read ahead. */
+    private final AsyncStub<Storage>    async_storage;
     /** Naming server used to find the storage server hosting the file. */
     private final Service   naming_server;
 
@@ -43,6 +47,16 @@ public class DFSInputStream extends InputStream
     /** Indicates that the stream has been closed. */
     private boolean         closed = false;
 
+    /** Minimum number of bytes requested ahead of the stream offset. */
+    public static final int READ_AHEAD = 64 * 1024;
+    /** Request for the bytes following the last read, or <code>null</code>. */
+    private CompletableFuture<byte[]>   ahead = null;
+    /** File offset of the first byte requested by <code>ahead</code>. */
+    private long            ahead_offset;
+    /** Number of bytes of <code>ahead</code> already returned to the
+        caller. */
+    private int             ahead_used;
+
     /** Creates a <code>DFSInputStream</code> for a file listed by the given
         naming server.
 
@@ -84,6 +98,7 @@ public class DFSInputStream extends InputStream
 
         path = file;
         this.naming_server = naming_server;
+        async_storage = Stub.async(Storage.class, storage_server);
     }
 
     /** Creates a <code>DFSInputStream</code> for a file listed by the given
@@ -164,15 +179,17 @@ public class DFSInputStream extends InputStream
     public void close()
     {
         closed = true;
+        ahead = null;
     }
 
     /** Reads bytes from the input stream into a byte buffer.
 
         <p>
-        The read is performed in a single request to the storage server. If the
-        operation succeeds, the number of bytes read will be either
-        <code>read_length</code> or the number of bytes remaining in the file,
-        whichever is less.
+        The bytes are taken from the request made ahead by the previous read,
+        as far as it covers them, and the rest are read in a single request to
+        the storage server. If the operation succeeds, the number of bytes read
+        will be either <code>read_length</code> or the number of bytes
+        remaining in the file, whichever is less.
 
         @param buffer Buffer to receive bytes read from the stream.
         @param buffer_offset Offset into the buffer at which the bytes are to be
@@ -232,28 +249,55 @@ public class DFSInputStream extends InputStream
         if(read_length > (length - offset))
             read_length = (int)(length - offset);
 
-        // Read bytes from file and advance the stream offset if the request
-        // succeeds.
-        byte[]      result;
+        // Take as many bytes as possible from the request made ahead, if it
+        // starts at the stream offset. A request left behind by a skip is
+        // abandoned.
+        int         copied = 0;
 
-        try
-        {
-            result = storage_server.read(path, offset, read_length);
-            offset += read_length;
-        }
-        catch(FileNotFoundException e)
+        if(ahead != null && ahead_offset + ahead_used == offset)
         {
-            throw new IOException("file missing on storage server", e);
+            byte[]  data = await(ahead);
+
+            copied = Math.min(read_length, data.length - ahead_used);
+            System.arraycopy(data, ahead_used, buffer, buffer_offset, copied);
+            ahead_used += copied;
+
+            if(ahead_used == data.length)
+                ahead = null;
         }
-        catch(RMIException e)
+        else
+            ahead = null;
+
+        // Read the remaining bytes from file in a single request.
+        if(copied < read_length)
         {
-            throw new IOException("unable to contact storage server", e);
+            byte[]  result;
+
+            try
+            {
+                result = storage_server.read(path, offset + copied,
+                                             read_length - copied);
+            }
+            catch(FileNotFoundException e)
+            {
+                throw new IOException("file missing on storage server", e);
+            }
+            catch(RMIException e)
+            {
+                throw new IOException("unable to contact storage server", e);
+            }
+
+            // Copy bytes from the buffer that was received over the network
+            // into the buffer provided by the caller.
+            System.arraycopy(result, 0, buffer, buffer_offset + copied,
+                             read_length - copied);
         }
 
-        // Copy bytes from the buffer that was received over the network into
-        // the buffer provided by the caller.
-        for(int index = 0; index < read_length; ++index)
-            buffer[buffer_offset + index] = result[index];
+        // Advance the stream offset, and request the bytes that follow.
+        offset += read_length;
+
+        if(ahead == null)
+            readAhead(Math.max(read_length, READ_AHEAD));
 
         // Return the number of bytes read.
         return read_length;
@@ -339,4 +383,51 @@ public class DFSInputStream extends InputStream
 
         return (int)(length - offset);
     }
+
+    /** Requests up to <code>count</code> bytes following the stream offset,
+        without waiting for them.
+
+        @param count Number of bytes to request.
+     */
+    private void readAhead(int count)
+    {
+        if(offset >= length)
+            return;
+
+        final long  at = offset;
+        final int   ahead_length = (int)Math.min(count, length - offset);
+
+        ahead = async_storage.call(s -> s.read(path, at, ahead_length));
+        ahead_offset = at;
+        ahead_used = 0;
+    }
+
+    /** Waits for a request made ahead, and reports its failure as
+        <code>read</code> would.
+
+        @throws IOException If the storage server could not be contacted, or
+                            if a read error occurred on the storage server.
+     */
+    private byte[] await(CompletableFuture<byte[]> request) throws IOException
+    {
+        try
+        {
+            return request.join();
+        }
+        catch(CompletionException e)
+        {
+            Throwable   cause = e.getCause();
+
+            if(cause instanceof FileNotFoundException)
+                throw new IOException("file missing on storage server", cause);
+            if(cause instanceof RMIException)
+                throw new IOException("unable to contact storage server", cause);
+            if(cause instanceof IOException)
+                throw (IOException)cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+
+            throw new IOException(cause);
+        }
+    }
 }
@@ -2,6 +2,8 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 import rmi.*;
 import common.*;
@@ -16,6 +18,12 @@ import storage.*;
     If this is not desirable, the <code>DFSOutputStream</code> should be wrapped
     in a <code>BufferedOutputStream</code> object.
 
+    <p>
+    Requests are sent without waiting for the previous ones to complete, up to
+    <code>WRITES_IN_FLIGHT</code> at a time, so that a sequential writer keeps
+    the network busy. A failed request is reported by a later call to
+    <code>write</code>, <code>flush</code> or <code>close</code>.
+
     <p>
     Creating a <code>DFSOutputStream</code> for a file does not cause the file
     to be created or truncated. The file must exist, and the existing file data
@@ -28,6 +36,8 @@ public class DFSOutputStream extends OutputStream
     private final Path      path;
     /** Storage server hosting the file. */
     private final Storage   storage_server;
+    /** Asynchronous view of the storage server. */
+    private final AsyncStub<Storage>    async_storage;
     /** Naming server used to find the storage server hosting the file. */
     private final Service   naming_server;
 
@@ -37,6 +47,12 @@ public class DFSOutputStream extends OutputStream
     /** Indicates that the stream has been closed. */
     private boolean         closed = false;
 
+    /** Maximum number of write requests sent and not yet completed. */
+    public static final int WRITES_IN_FLIGHT = 4;
+    /** Write requests sent and not yet known to be complete, oldest first. */
+    private final ArrayDeque<CompletableFuture<Void>>   in_flight =
+        new ArrayDeque<CompletableFuture<Void>>();
+
     /** Creates a <code>DFSOutputStream</code> for a file listed by the given
         naming server.
 
@@ -68,6 +84,7 @@ public class DFSOutputStream extends OutputStream
 
         path = file;
         this.naming_server = naming_server;
+        async_storage = Stub.async(Storage.class, storage_server);
     }
 
     /** Creates a <code>DFSOutputStream</code> for a file listed by the given
@@ -141,19 +158,53 @@ public class DFSOutputStream extends OutputStream
     /** Closes the output stream.
 
         <p>
-        The stream is marked as closed. Further attempts to use the output
-        stream will result in <code>IOException</code>.
+        The stream waits for the write requests in flight to complete, and is
+        then marked as closed. Further attempts to use the output stream will
+        result in <code>IOException</code>.
+
+        @throws IOException If a write request failed.
      */
     @Override
     public void close() throws IOException
     {
-        closed = true;
+        if(closed)
+            return;
+
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            closed = true;
+        }
+    }
+
+    /** Waits for every write request in flight to complete.
+
+        @throws IOException If the stream is closed, or if a write request
+                            failed.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        if(closed)
+        {
+            throw new IOException("distributed filesystem output stream " +
+                                  "already closed");
+        }
+
+        while(!in_flight.isEmpty())
+            await(in_flight.poll());
     }
 
     /** Writes bytes from a buffer to the output stream.
 
         <p>
-        The write is performed in a single request to the storage server.
+        The write is performed in a single request to the storage server. The
+        method returns once the request has been sent, and the caller may then
+        reuse the buffer. If <code>WRITES_IN_FLIGHT</code> requests are already
+        in flight, the method first waits for the oldest to complete.
 
         @param buffer Buffer containing bytes to be written.
         @param buffer_offset Offset into the buffer from which bytes are to be
@@ -212,26 +263,21 @@ public class DFSOutputStream extends OutputStream
         else
         {
             data = new byte[write_length];
-
-            for(int index = 0; index < write_length; ++index)
-                data[index] = buffer[buffer_offset + index];
+            System.arraycopy(buffer, buffer_offset, data, 0, write_length);
         }
 
-        // Send the write request to the server. If the write request succeds,
-        // advance the stream offset.
-        try
-        {
-            storage_server.write(path, offset, data);
-            offset += write_length;
-        }
-        catch(FileNotFoundException e)
-        {
-            throw new IOException("file missing on storage server", e);
-        }
-        catch(RMIException e)
-        {
-            throw new IOException("unable to contact storage server", e);
-        }
+        // Wait for room among the requests in flight. This reports the
+        // failure of any earlier request.
+        while(in_flight.size() >= WRITES_IN_FLIGHT)
+            await(in_flight.poll());
+
+        // Send the write request to the server, and advance the stream
+        // offset. The request is encoded before the call returns.
+        final long      at = offset;
+        final byte[]    request_data = data;
+
+        in_flight.add(async_storage.run(s -> s.write(path, at, request_data)));
+        offset += write_length;
     }
 
     /** Writes a single byte to the output stream.
@@ -269,4 +315,33 @@ public class DFSOutputStream extends OutputStream
 
         offset += count;
     }
+
+    /** Waits for a write request, and reports its failure as
+        <code>write</code> would.
+
+        @throws IOException If the storage server could not be contacted, or
+                            if a write error occurred on the storage server.
+     */
+    private void await(CompletableFuture<Void> request) throws IOException
+    {
+        try
+        {
+            request.join();
+        }
+        catch(CompletionException e)
+        {
+            Throwable   cause = e.getCause();
+
+            if(cause instanceof FileNotFoundException)
+                throw new IOException("file missing on storage server", cause);
+            if(cause instanceof RMIException)
+                throw new IOException("unable to contact storage server", cause);
+            if(cause instanceof IOException)
+                throw (IOException)cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+
+            throw new IOException(cause);
+        }
+    }
 }
@@ -2,7 +2,6 @@ package common;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.*;
 
 /**
  * author : Kai Zhou
@@ -20,6 +19,9 @@ import java.util.concurrent.*;
     path components. The root directory is represented as a single forward
     slash.
 
+    <p>
+    Paths are serialized as their string representation.
+
     <p>
     The colon (<code>:</code>) and forward slash (<code>/</code>) characters are
     not permitted within path components. The forward slash is the delimeter,
@@ -27,12 +29,26 @@ import java.util.concurrent.*;
  */
 public class Path implements Iterable<String>, Comparable<Path>, Serializable
 {
-    private List<String> components;
+    private static final String[] NO_COMPONENTS = new String[0];
+
+    /* The components are the first length elements of the array. A parent
+       shares its child's array, since neither changes it. */
+    private final String[] components;
+    private final int length;
+    /* Computed when first needed. A hash code of 0 is computed each time. */
+    private transient int hash;
+    private transient String string;
 
     /** Creates a new path which represents the root directory. */
     public Path()
     {
-        components = new CopyOnWriteArrayList<>();
+        this(NO_COMPONENTS, 0);
+    }
+
+    private Path(String[] components, int length)
+    {
+        this.components = components;
+        this.length = length;
     }
 
     /** Creates a new path by appending the given component to an existing path.
@@ -46,11 +62,16 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
     */
     public Path(Path path, String component)
     {
-        this(path.toString());
-        if (component.equals("") || component.contains(":") || component.contains("/")){
+        if (component.isEmpty() || component.indexOf(':') >= 0
+                || component.indexOf('/') >= 0){
             throw new IllegalArgumentException();
         }
-        this.components.add(component);
+        this.components = Arrays.copyOf(path.components, path.length + 1);
+        this.components[path.length] = component;
+        this.length = path.length + 1;
+        if (path.hash != 0){
+            this.hash = 31 * path.hash + component.hashCode();
+        }
     }
 
     /** Creates a new path from a path string.
@@ -67,16 +88,36 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
      */
     public Path(String path)
     {
-        this();
-        if (!path.startsWith("/") || path.contains(":")){
+        if (!path.startsWith("/") || path.indexOf(':') >= 0){
             throw new IllegalArgumentException();
         }
-        for (String s : path.substring(1).split("/")){
-            if(!s.isEmpty()){
-                components.add(s);
+
+        String[] components = new String[8];
+        int length = 0;
+        boolean canonical = true;
+        for (int start = 1; start <= path.length(); ){
+            int end = path.indexOf('/', start);
+            if (end < 0){
+                end = path.length();
+            }
+            if (end == start){
+                // an empty component, unless it is the root's
+                canonical = canonical && path.length() == 1;
             }
+            else {
+                if (length == components.length){
+                    components = Arrays.copyOf(components, length * 2);
+                }
+                components[length++] = path.substring(start, end);
+            }
+            start = end + 1;
         }
 
+        this.components = components;
+        this.length = length;
+        if (canonical){
+            this.string = path;
+        }
     }
 
     /** Returns an iterator over the components of the path.
@@ -90,12 +131,33 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
     @Override
     public Iterator<String> iterator()
     {
-        return new IteratorAdapter(components.iterator());
+        return new Iterator<String>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext()
+            {
+                return next < length;
+            }
+
+            @Override
+            public String next()
+            {
+                if (next >= length){
+                    throw new NoSuchElementException();
+                }
+                return components[next++];
+            }
+        };
     }
 
     /** Lists the paths of all files in a directory tree on the local
         filesystem.
 
+        <p>
+        The directories are listed in parallel by a <code>PathScanner</code>,
+        so the files are in no particular order.
+
         @param directory The root directory of the directory tree.
         @return An array of relative paths, one for each file in the directory
                 tree.
@@ -105,26 +167,16 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
      */
     public static Path[] list(File directory) throws FileNotFoundException
     {
-        if(!directory.exists()){
-            throw new FileNotFoundException();
-        }
-        if(!directory.isDirectory()){
-            throw new IllegalArgumentException();
-        }
-
-        // use linkedlist because most of the operations is add
-        List<Path> pathList = new LinkedList<Path>();
-
-        for (File f : directory.listFiles()){
-            if(f.isDirectory()){
-                Path[] tempList = Path.list(f);
-                for (Path p : tempList){
-                    pathList.add(new Path("/" + f.getName() + p.toString()));
-                }
-            }else {
-                pathList.add(new Path("/" + f.getName()));
+        List<Path> pathList = new ArrayList<Path>();
+        PathScanner scanner = new PathScanner(directory);
+        try {
+            for(Path[] files = scanner.next(); files != null; files = scanner.next()){
+                Collections.addAll(pathList, files);
             }
         }
+        finally {
+            scanner.close();
+        }
         Path[] result = new Path[pathList.size()];
         pathList.toArray(result);
         return result;
@@ -137,7 +189,7 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
      */
     public boolean isRoot()
     {
-        return this.components.isEmpty();
+        return this.length == 0;
     }
 
     /** Returns the path to the parent of this path.
@@ -150,28 +202,8 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
         if (isRoot()){
             throw new IllegalArgumentException();
         }
-        StringBuffer sb = new StringBuffer();
-        for (String component : components.subList(0, components.size() - 1)) {
-            sb.append("/");
-            sb.append(component);
-        }
-
-        if(sb.length() == 0){
-            sb.append("/");
-        }
-        return new Path(sb.toString());
+        return new Path(this.components, this.length - 1);
     }
-    /* public Path parent()
-    {
-        if (this.isRoot()){
-            throw new IllegalArgumentException();
-        } else {
-            String last = this.components.remove(this.components.size()-1);
-            String parentPath = this.toString();
-            this.components.add(last);
-            return new Path(parentPath);
-        }
-    }*/
 
     /** Returns the last component in the path.
 
@@ -184,7 +216,7 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
         if (isRoot()){
             throw new IllegalArgumentException();
         }
-        return components.get(components.size()-1);
+        return this.components[this.length - 1];
     }
 
     /** Determines if the given path is a subpath of this path.
@@ -199,13 +231,14 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
      */
     public boolean isSubpath(Path other)
     {
-        Iterator<String> itpath = other.iterator();
-        Iterator<String> itsubpath = this.iterator();
-        while(itpath.hasNext()) {
-            if(!itsubpath.hasNext()) {
-                return false;
-            }
-            if(!itsubpath.next().equals(itpath.next())) {
+        if (other.length > this.length){
+            return false;
+        }
+        if (other.components == this.components){
+            return true;
+        }
+        for (int i = other.length - 1; i >= 0; i--){
+            if (!this.components[i].equals(other.components[i])){
                 return false;
             }
         }
@@ -263,10 +296,16 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
     @Override
     public int compareTo(Path other)
     {
-        /**
-         * how about bin/cat and bin/dog ? 0?
-         */
-        return toString().split("/").length - other.toString().split("/").length;
+        // Component by component, so that a path precedes the paths below
+        // it, and the paths below a directory are together.
+        int common = Math.min(this.length, other.length);
+        for (int i = 0; i < common; i++){
+            int order = this.components[i].compareTo(other.components[i]);
+            if (order != 0){
+                return order;
+            }
+        }
+        return this.length - other.length;
     }
 
     /** Compares two paths for equality.
@@ -280,14 +319,44 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
     @Override
     public boolean equals(Object other)
     {
-        return this.toString().equals(other.toString());
+        if (this == other){
+            return true;
+        }
+        if (!(other instanceof Path)){
+            return false;
+        }
+        Path path = (Path) other;
+        if (this.length != path.length){
+            return false;
+        }
+        if (this.hash != 0 && path.hash != 0 && this.hash != path.hash){
+            return false;
+        }
+        if (this.components == path.components){
+            return true;
+        }
+        // Last components first: paths compared tend to share a prefix.
+        for (int i = this.length - 1; i >= 0; i--){
+            if (!this.components[i].equals(path.components[i])){
+                return false;
+            }
+        }
+        return true;
     }
 
     /** Returns the hash code of the path. */
     @Override
     public int hashCode()
     {
-        return toString().hashCode();
+        int h = this.hash;
+        if (h == 0){
+            h = 1;
+            for (int i = 0; i < this.length; i++){
+                h = 31 * h + this.components[i].hashCode();
+            }
+            this.hash = h;
+        }
+        return h;
     }
 
     /** Converts the path to a string.
@@ -301,42 +370,54 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
     @Override
     public String toString()
     {
-        if (components.isEmpty()){
-            return "/";
-        }
-
-        StringBuffer sb = new StringBuffer();
-        for (String component : components) {
-            sb.append("/");
-            sb.append(component);
+        String s = this.string;
+        if (s == null){
+            if (this.length == 0){
+                s = "/";
+            }
+            else {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < this.length; i++){
+                    sb.append('/').append(this.components[i]);
+                }
+                s = sb.toString();
+            }
+            this.string = s;
         }
-        return sb.toString();
+        return s;
     }
-}
 
-/**
- * Adaptor of the itertor without allow removing.
- */
-class IteratorAdapter implements Iterator<String>{
-    private Iterator<String> iterator;
-
-    public IteratorAdapter(Iterator<String> iterator){
-        this.iterator = iterator;
+    /** Serializes the path as its string representation. */
+    private Object writeReplace()
+    {
+        return new SerializedPath(toString());
     }
 
-    @Override
-    public boolean hasNext() {
-        return this.iterator.hasNext();
+    private void readObject(ObjectInputStream in) throws InvalidObjectException
+    {
+        throw new InvalidObjectException("paths are serialized as strings");
     }
 
-    @Override
-    public String next() {
-        return this.iterator.next();
-    }
+    /** Serialized form of a path. */
+    private static class SerializedPath implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
 
-    @Override
-    public void remove() {
-        throw new UnsupportedOperationException();
-    }
+        private final String path;
+
+        SerializedPath(String path)
+        {
+            this.path = path;
+        }
 
+        private Object readResolve() throws ObjectStreamException
+        {
+            try {
+                return new Path(path);
+            }
+            catch (IllegalArgumentException e) {
+                throw new InvalidObjectException("bad path " + path);
+            }
+        }
+    }
 }
@@ -0,0 +1,238 @@
+package common;
+
+import java.io.*;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Parallel scan of a directory tree on the local filesystem.
+
+    <p>
+    Each directory is listed by its own task on a fork/join pool, and the
+    tasks of its subdirectories are forked as soon as they are found, so that
+    as many directories are listed at once as the pool has threads. The pool
+    has more threads than there are processors by default, since listing
+    waits on the disk more than it computes: set the
+    <code>path.scanThreads</code> system property to change it.
+
+    <p>
+    The files found are handed over as they are found, in batches of files
+    of the same directory, through a bounded queue: a scan runs only so far
+    ahead of the thread taking the batches. The order of the batches is not
+    defined. Directories which cannot be read are skipped.
+
+    <p>
+    A scanner which is not read to the end must be closed, which stops the
+    scan.
+ */
+public class PathScanner implements Closeable
+{
+    /** The number of threads listing directories at once. */
+    public static final int THREADS =
+        Integer.getInteger("path.scanThreads",
+                           Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+    /* The greatest number of files in a batch, and of batches waiting to be
+       taken. */
+    static final int BATCH = 1024;
+    static final int QUEUED = 64;
+
+    /* Queued once the scan has ended, however it ended. */
+    private static final Path[] END = new Path[0];
+
+    private final ForkJoinPool pool;
+    private final BlockingQueue<Path[]> batches = new ArrayBlockingQueue<Path[]>(QUEUED);
+    /* The exception which ended the scan, or null. Set before END is
+       queued. */
+    private volatile Throwable failure = null;
+    private volatile boolean closed = false;
+    private boolean ended = false;
+
+    /** Starts scanning a directory tree with <code>THREADS</code> threads.
+
+        @param directory The root directory of the directory tree.
+        @throws FileNotFoundException If the root directory does not exist.
+        @throws IllegalArgumentException If <code>directory</code> exists but
+                                         does not refer to a directory.
+     */
+    public PathScanner(File directory) throws FileNotFoundException
+    {
+        this(directory, THREADS);
+    }
+
+    /** Starts scanning a directory tree with the given number of threads.
+
+        @throws FileNotFoundException If the root directory does not exist.
+        @throws IllegalArgumentException If <code>directory</code> exists but
+                                         does not refer to a directory, or
+                                         <code>threads</code> is not positive.
+     */
+    public PathScanner(File directory, int threads) throws FileNotFoundException
+    {
+        if(!directory.exists()){
+            throw new FileNotFoundException();
+        }
+        if(!directory.isDirectory()){
+            throw new IllegalArgumentException();
+        }
+
+        this.pool = new ForkJoinPool(threads);
+        this.pool.execute(new Root(directory.toPath()));
+    }
+
+    /** Returns the next batch of files found, as paths relative to the root
+        directory, waiting for one if need be.
+
+        @return The files, all in the same directory, or <code>null</code> once
+                the scan has ended.
+        @throws IllegalArgumentException If a file is named with a character
+                                         not permitted in a path component.
+     */
+    public Path[] next()
+    {
+        if(this.ended){
+            return null;
+        }
+
+        Path[] batch;
+        boolean interrupted = false;
+        while(true)
+        {
+            try {
+                batch = this.batches.take();
+                break;
+            }
+            catch(InterruptedException e) {
+                // the scan is waited for all the same
+                interrupted = true;
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+
+        if(batch != END){
+            return batch;
+        }
+        // Tasks may still be running if one of them failed.
+        close();
+        Throwable failure = this.failure;
+        if(failure instanceof RuntimeException){
+            throw (RuntimeException) failure;
+        }
+        if(failure instanceof Error){
+            throw (Error) failure;
+        }
+        return null;
+    }
+
+    /** Stops the scan, if it has not ended. */
+    @Override
+    public void close()
+    {
+        this.closed = true;
+        this.ended = true;
+        this.pool.shutdownNow();
+        this.batches.clear();
+    }
+
+    /** Hands a batch over, waiting while the queue is full. */
+    private void hand(ArrayList<Path> files)
+    {
+        if(this.closed){
+            throw new CancellationException();
+        }
+        try {
+            this.batches.put(files.toArray(new Path[files.size()]));
+        }
+        catch(InterruptedException e) {
+            // interrupted by close
+            throw new CancellationException();
+        }
+    }
+
+    /** Scans the whole tree, and then marks the end of the scan. */
+    private class Root extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        final java.nio.file.Path directory;
+
+        Root(java.nio.file.Path directory)
+        {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute()
+        {
+            try {
+                new Scan(this.directory, new Path()).invoke();
+            }
+            catch(Throwable t) {
+                failure = t;
+            }
+            finally {
+                try {
+                    if(!closed){
+                        batches.put(END);
+                    }
+                }
+                catch(InterruptedException e) {
+                    // interrupted by close
+                }
+            }
+        }
+    }
+
+    /** Lists one directory, and the tree under it in forked tasks. */
+    private class Scan extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        final java.nio.file.Path directory;
+        final Path path;
+
+        Scan(java.nio.file.Path directory, Path path)
+        {
+            this.directory = directory;
+            this.path = path;
+        }
+
+        @Override
+        protected void compute()
+        {
+            ArrayList<Path> files = new ArrayList<Path>();
+            ArrayList<Scan> subdirectories = new ArrayList<Scan>();
+            try (DirectoryStream<java.nio.file.Path> entries =
+                     Files.newDirectoryStream(this.directory)) {
+                for(java.nio.file.Path entry : entries){
+                    Path child = new Path(this.path, entry.getFileName().toString());
+                    if(Files.isDirectory(entry)){
+                        Scan scan = new Scan(entry, child);
+                        scan.fork();
+                        subdirectories.add(scan);
+                    }
+                    else {
+                        files.add(child);
+                        if(files.size() == BATCH){
+                            hand(files);
+                            files.clear();
+                        }
+                    }
+                }
+            }
+            catch(IOException | DirectoryIteratorException e) {
+                // unreadable, or removed meanwhile: skipped
+            }
+            if(!files.isEmpty()){
+                hand(files);
+            }
+            for(Scan scan : subdirectories){
+                scan.join();
+            }
+        }
+    }
+}
@@ -67,13 +67,19 @@ abstract class Fuse
         server is not contacted - this method succeeds even if the server is
         unreachable.
 
+        <p>
+        The kernel often asks several driver threads for the same lookup at
+        once, so the stub coalesces identical concurrent lookups - see
+        <code>Stub.coalescing</code>.
+
         @param raw_hostname Byte array containing a UTF-8 string representing
                             the hostname of the naming server to be used for all
                             subsequent calls.
      */
     static void initialize(byte[] raw_hostname)
     {
-        naming_server = NamingStubs.service(decode(raw_hostname));
+        naming_server = Stub.coalescing(Service.class,
+                            NamingStubs.service(decode(raw_hostname)));
     }
 
     /** Checks if the given path refers to a directory.
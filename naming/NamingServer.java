@@ -3,6 +3,7 @@ package naming;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import rmi.*;
 import common.*;
@@ -45,6 +46,15 @@ public class NamingServer implements Service, Registration
     Skeleton<Registration> registSkeleton;
 
     Scheduler scheduler;
+
+    /* Journal of changes to the directory tree, or null. */
+    Journal journal = null;
+
+    /* For each storage server being registered again, the files it held
+       before which no chunk has listed again yet. */
+    final ConcurrentHashMap<PathComponents, Set<Path>> unlisted =
+        new ConcurrentHashMap<PathComponents, Set<Path>>();
+
     /** Creates the naming server object.
 
         <p>
@@ -52,12 +62,37 @@ public class NamingServer implements Service, Registration
      */
     public NamingServer()
     {
-        this.dirTree= new DirectoryTree();
         this.serviceSkeleton = new Skeleton<Service>(Service.class, this,
                                             new InetSocketAddress(NamingStubs.SERVICE_PORT));
         this.registSkeleton = new Skeleton<Registration>(Registration.class, this,
                                             new InetSocketAddress(NamingStubs.REGISTRATION_PORT));
         this.scheduler = new Scheduler();
+        this.dirTree= new DirectoryTree(this.scheduler);
+    }
+
+    /** Creates a naming server object which keeps its directory tree in a
+        journal, so that it survives a restart.
+
+        <p>
+        The tree and the storage servers recorded in the journal are
+        restored first, from the last checkpoint of the tree and the records
+        journaled since. Recovered storage servers which are still running
+        need not register again; those which restart may. Every later change
+        to the tree is journaled before the call making it returns, and the
+        tree is checkpointed in the background as the journal grows.
+
+        <p>
+        The naming server is not started.
+
+        @param journal The journal file. It is created if it does not exist.
+        @throws IOException If the journal cannot be read.
+     */
+    public NamingServer(File journal) throws IOException
+    {
+        this();
+        this.journal = new Journal(journal);
+        this.journal.replay(this.dirTree, this.scheduler);
+        this.dirTree.setJournal(this.journal);
     }
 
     /** Starts the naming server.
@@ -82,6 +117,29 @@ public class NamingServer implements Service, Registration
         }
     }
 
+    /** Writes a checkpoint of the directory tree now, and starts the journal
+        afresh. The tree may be changed meanwhile.
+
+        @throws IllegalStateException If the server has no journal.
+        @throws IOException If the checkpoint cannot be written.
+     */
+    public void checkpoint() throws IOException
+    {
+        if(this.journal == null) {
+            throw new IllegalStateException("no journal");
+        }
+        this.journal.checkpoint();
+    }
+
+    /** Returns the counts and latencies of the calls served by the naming
+        server, by method: those of the client interface, then those of the
+        registration interface. */
+    public List<CallMetrics> getMetrics()
+    {
+        return Arrays.asList(this.serviceSkeleton.getMetrics(),
+                             this.registSkeleton.getMetrics());
+    }
+
     /** Stops the naming server.
 
         <p>
@@ -98,7 +156,16 @@ public class NamingServer implements Service, Registration
         // System.out.println("serviceSkeleton stopped");
         this.registSkeleton.stop();
         // System.out.println("registSkeleton stopped");
-        stopped(null);
+        Throwable cause = null;
+        if(this.journal != null) {
+            try {
+                this.journal.close();
+            }
+            catch(IOException e) {
+                cause = e;
+            }
+        }
+        stopped(cause);
     }
 
     /** Indicates that the server has completely shut down.
@@ -116,14 +183,38 @@ public class NamingServer implements Service, Registration
 
     // The following public methods are documented in Service.java.
     @Override
-    public void lock(Path path, boolean exclusive) throws FileNotFoundException
+    public void lock(Path path, boolean exclusive)
+        throws FileNotFoundException, RMIException
     {
         if(path == null) {
             throw new NullPointerException();
         }
+        // A lock which must wait does not hold the worker serving the call
+        // meanwhile: the reply is sent once the lock is granted. A call with
+        // a deadline waits on its own thread, which gives up at the deadline.
+        DeferredReply reply = null;
+        if(Deadline.current() == null) {
+            reply = DeferredReply.defer();
+        }
+        if(reply != null){
+            final DeferredReply deferred = reply;
+            this.dirTree.lockLater(path, exclusive, this.scheduler, (Throwable thrown) -> {
+                if(thrown == null) {
+                    deferred.complete(null);
+                }
+                else {
+                    deferred.fail(new FileNotFoundException());
+                }
+            });
+            return;
+        }
         try {
             this.dirTree.lock(path, exclusive, this.scheduler);
         }
+        catch(DeadlineExceededException e) {
+            // The caller has given up waiting for the lock.
+            throw e;
+        }
         catch(Exception e) {
             throw new FileNotFoundException();
         }
@@ -163,14 +254,8 @@ public class NamingServer implements Service, Registration
             throw new FileNotFoundException();
         }
 
-        List<String> res = new ArrayList<String>();
-        for(DirectoryNode n: node.getSons().values()) {
-            String[] pstr = n.getPath().toString().split("/");
-            res.add(pstr[pstr.length-1]);
-        }
-
-        // Bug: toArray
-        return res.toArray(new String[res.size()]);
+        Set<String> names = node.getSons().keySet();
+        return names.toArray(new String[names.size()]);
     }
 
     @Override
@@ -185,20 +270,24 @@ public class NamingServer implements Service, Registration
         //       storage server registered.
         PathComponents pathComp = this.scheduler.pickStorageServer();
 
-        // 2. Create node in the directory tree
+        // 2. Create node in the directory tree, with its storage server
         //    If the parent does not exist, then throw FileNotFoundException
         //    If it returns false, it means the file exists.
-        boolean created = this.dirTree.insertNode(file, false);
+        boolean created = this.dirTree.insertNode(file, pathComp);
         if(!created) {
             return false;
         }
 
-        // 3. Insert the components into the tree
-        this.dirTree.insertPathComp(file, pathComp);
-
-        // 4. Create directory on Storage Server
-        //    This may throw a RMIException.
-        pathComp.getCommandStub().create(file);
+        // 3. Create directory on Storage Server
+        //    This may throw a RMIException. The node is then removed again,
+        //    so that no file is listed on a server which does not hold it.
+        try {
+            pathComp.getCommandStub().create(file);
+        }
+        catch(RMIException | RuntimeException e) {
+            this.dirTree.removeNode(file);
+            throw e;
+        }
 
         return true;
     }
@@ -239,8 +328,8 @@ public class NamingServer implements Service, Registration
         if(node == null || node.isDirectory()) {
             throw new FileNotFoundException();
         }
-        ArrayList<PathComponents> servers = node.getPathComps();
-        PathComponents pathComp = this.scheduler.pickStorageServer(servers);
+        List<PathComponents> servers = node.getPathComps(this.scheduler);
+        PathComponents pathComp = Scheduler.pickStorageServer(servers);
         return pathComp.getStorageStub();
     }
 
@@ -248,29 +337,122 @@ public class NamingServer implements Service, Registration
     @Override
     public Path[] register(Storage client_stub, Command command_stub,
                            Path[] files) throws RMIException
+    {
+        return register(client_stub, command_stub, files, false);
+    }
+
+    @Override
+    public Path[] register(Storage client_stub, Command command_stub,
+                           Path[] files, boolean more) throws RMIException
     {
         // If any of the arguments is null
         if (client_stub == null || command_stub == null || files == null){
             throw new NullPointerException();
         }
         // If the storage server is already registered.
-        scheduler.addStorageServer(client_stub, command_stub);
-        List<Path> list = new LinkedList<Path>();
+        PathComponents server = scheduler.addStorageServer(client_stub, command_stub);
         // Register the fourth storage server with the root directory among its
         // list of files. The naming server should silently ignore this attempt.
-        for(Path path : files){
-            if(path.isRoot()) {
-                continue;
-            }
-            boolean success = false;
-            success = dirTree.insertPathStubs(path, client_stub, command_stub);
-            if(!success){
-                list.add(path);
+        List<Path> duplicates = dirTree.insertPathStubs(files, server, scheduler);
+        return duplicates.toArray(new Path[duplicates.size()]);
+    }
+
+    @Override
+    public Path[] registerAgain(Storage client_stub, Command command_stub,
+                                Path[] files, boolean more) throws RMIException
+    {
+        if (client_stub == null || command_stub == null || files == null){
+            throw new NullPointerException();
+        }
+        PathComponents server = scheduler.replaceStorageServer(client_stub, command_stub);
+        // The files it held before stay listed, so that clients find them
+        // meanwhile: only those not in any chunk are dropped, after the last.
+        Set<Path> held = ConcurrentHashMap.newKeySet();
+        held.addAll(dirTree.pathsStoredOn(server));
+        unlisted.put(server, held);
+        return listAgain(server, files, more);
+    }
+
+    @Override
+    public Path[] registerMore(Storage client_stub, Path[] files) throws RMIException
+    {
+        if (client_stub == null || files == null){
+            throw new NullPointerException();
+        }
+        return registerMore(client_stub, files, true);
+    }
+
+    @Override
+    public Path[] registerMore(Storage client_stub, Path[] files, boolean more)
+        throws RMIException
+    {
+        if (client_stub == null || files == null){
+            throw new NullPointerException();
+        }
+        PathComponents server = scheduler.registered(client_stub);
+        if (server == null){
+            throw new IllegalStateException("storage server not registered");
+        }
+        return listAgain(server, files, more);
+    }
+
+    /** Lists a chunk of files on a storage server. Files of a server being
+        registered again are marked as listed again, and once the last chunk
+        is in, those left unmarked are dropped.
+
+        @return The files which are duplicates.
+     */
+    private Path[] listAgain(PathComponents server, Path[] files, boolean more)
+    {
+        Set<Path> held = unlisted.get(server);
+        if (held != null){
+            for (Path file: files){
+                held.remove(file);
             }
         }
-        Path[] result = new Path[list.size()];
-        list.toArray(result);
-        return result;
+        List<Path> duplicates = dirTree.insertPathStubs(files, server, scheduler);
+        if (!more && held != null && unlisted.remove(server, held)){
+            dirTree.removePathStubs(held.toArray(new Path[held.size()]), server);
+        }
+        return duplicates.toArray(new Path[duplicates.size()]);
+    }
+
+    @Override
+    public Path[] registerChanges(Storage client_stub, Command command_stub,
+                                  long generation, long checksum,
+                                  Path[] added, Path[] removed) throws RMIException
+    {
+        if (client_stub == null || command_stub == null || added == null
+                || removed == null){
+            throw new NullPointerException();
+        }
+        PathComponents server = scheduler.reregister(client_stub, command_stub,
+                                                     generation, checksum);
+        if (server == null){
+            return null;
+        }
+        dirTree.removePathStubs(removed, server);
+        List<Path> duplicates = dirTree.insertPathStubs(added, server, scheduler);
+        return duplicates.toArray(new Path[duplicates.size()]);
+    }
+
+    @Override
+    public void acceptManifest(Storage client_stub, long generation, long checksum)
+        throws RMIException
+    {
+        if (client_stub == null){
+            throw new NullPointerException();
+        }
+        scheduler.acceptManifest(client_stub, generation, checksum);
+    }
+
+    @Override
+    public long manifestGeneration(Storage client_stub) throws RMIException
+    {
+        if (client_stub == null){
+            throw new NullPointerException();
+        }
+        return scheduler.manifestGeneration(client_stub);
     }
 
 }
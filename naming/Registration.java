@@ -7,7 +7,7 @@ import rmi.RMIException;
 /** Naming server registration interface.
 
     <p>
-    This interface is used once, on startup, by each storage server.
+    This interface is used on startup by each storage server.
  */
 public interface Registration
 {
@@ -52,4 +52,213 @@ public interface Registration
      */
     public Path[] register(Storage client_stub, Command command_stub,
                            Path[] files) throws RMIException;
+
+    /** Registers a storage server with the first chunk of its files.
+
+        <p>
+        A storage server with many files may register them in chunks as it
+        finds them, rather than all at once: it registers with the first
+        chunk, and sends each of the others with <code>registerMore</code>.
+        The files of each chunk can be found by clients once the call for it
+        returns, so the storage server serves them while it is still looking
+        for the others. Each call returns the duplicates in its own chunk.
+
+        <p>
+        A naming server which cannot take files in chunks throws
+        <code>UnsupportedOperationException</code> when more are to follow,
+        without registering the storage server, which may then register all
+        its files at once. The default does so, and otherwise registers the
+        files with <code>register</code>.
+
+        @param more Whether more chunks follow. If not, this call is the same
+                    as <code>register</code>.
+        @throws UnsupportedOperationException If <code>more</code> is
+                                              <code>true</code> and the naming
+                                              server cannot take files in
+                                              chunks.
+        @throws IllegalStateException If the storage server is already
+                                      registered.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default Path[] register(Storage client_stub, Command command_stub,
+                                   Path[] files, boolean more) throws RMIException
+    {
+        if(more)
+        {
+            throw new UnsupportedOperationException("registration in chunks");
+        }
+
+        return register(client_stub, command_stub, files);
+    }
+
+    /** Adds a chunk of files to those of a registered storage server.
+
+        @param client_stub Storage server client service stub, as it was
+                           registered.
+        @param files The next chunk of files stored on the storage server.
+        @return A list of duplicate files in the chunk, to delete on the local
+                storage of the storage server.
+        @throws UnsupportedOperationException If the naming server cannot take
+                                              files in chunks, which is the
+                                              default.
+        @throws IllegalStateException If the storage server is not registered.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default Path[] registerMore(Storage client_stub, Path[] files)
+        throws RMIException
+    {
+        throw new UnsupportedOperationException("registration in chunks");
+    }
+
+    /** Adds a chunk of files to those of a registered storage server, saying
+        whether it is the last.
+
+        <p>
+        A storage server registered again with <code>registerAgain</code>
+        sends its last chunk, which may be empty, with <code>more</code>
+        <code>false</code>, so that the files it no longer holds are dropped.
+        The default registers the files with <code>registerMore</code>.
+
+        @param more Whether more chunks follow.
+        @see #registerMore(Storage, Path[])
+     */
+    public default Path[] registerMore(Storage client_stub, Path[] files, boolean more)
+        throws RMIException
+    {
+        return registerMore(client_stub, files);
+    }
+
+    /** Registers a storage server again with all its files, replacing those
+        it registered before.
+
+        <p>
+        A storage server which keeps a manifest may restart while the naming
+        server still has it registered with the same stubs, for example when
+        the naming server does not hold the manifest it last sent. It then
+        registers all its files with this method rather than with
+        <code>register</code>, which would reject it. The files are registered
+        as with <code>register</code>, in chunks if <code>more</code> is
+        <code>true</code>. The files it was listed for before stay listed
+        until the last chunk, and those not registered again are then no
+        longer listed on it; a file held by no other server is removed from
+        the directory tree. A storage server not yet registered is
+        registered.
+
+        <p>
+        The default, for a naming server which does not remember manifests,
+        registers the files with <code>register</code>.
+
+        @param more Whether more chunks follow, sent with
+                    <code>registerMore</code>, the last of them with
+                    <code>more</code> <code>false</code>.
+        @return A list of duplicate files to delete on the local storage of the
+                registering storage server.
+        @throws UnsupportedOperationException If <code>more</code> is
+                                              <code>true</code> and the naming
+                                              server cannot take files in
+                                              chunks.
+        @throws IllegalStateException If another storage server is registered
+                                      with either of the stubs.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default Path[] registerAgain(Storage client_stub, Command command_stub,
+                                        Path[] files, boolean more) throws RMIException
+    {
+        return register(client_stub, command_stub, files, more);
+    }
+
+    /** Registers a storage server again with only the changes to its files
+        since the manifest it last sent.
+
+        <p>
+        A storage server may keep a manifest of its files, numbered by a
+        generation, and send the generation and checksum of each new manifest
+        to the naming server with <code>acceptManifest</code>. When the
+        storage server restarts with the same stubs, and the naming server
+        still holds the manifest it last sent, the storage server need only
+        send the files added and removed since. Files removed are no longer
+        listed on the storage server; a file held by no other server is
+        removed from the directory tree.
+
+        <p>
+        The default, for a naming server which does not remember manifests,
+        returns <code>null</code>.
+
+        @param client_stub Storage server client service stub.
+        @param command_stub Storage server command service stub.
+        @param generation The generation of the manifest last sent.
+        @param checksum The checksum of the manifest last sent.
+        @param added The files stored on the storage server which are not in
+                     the manifest.
+        @param removed The files in the manifest which are no longer stored on
+                       the storage server.
+        @return A list of duplicate files among those added, to delete on the
+                local storage of the storage server, or <code>null</code> if
+                the naming server does not hold that manifest for a storage
+                server with those stubs. Nothing is then changed, and the
+                storage server must register all its files.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default Path[] registerChanges(Storage client_stub, Command command_stub,
+                                          long generation, long checksum,
+                                          Path[] added, Path[] removed)
+        throws RMIException
+    {
+        return null;
+    }
+
+    /** Remembers the manifest of the files of a registered storage server,
+        replacing any it sent before.
+
+        <p>
+        The default, for a naming server which does not remember manifests,
+        does nothing.
+
+        @param client_stub Storage server client service stub.
+        @param generation The manifest's generation, which is never 0.
+        @param checksum The manifest's checksum.
+        @throws IllegalStateException If the storage server is not registered.
+        @throws NullPointerException If <code>client_stub</code> is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default void acceptManifest(Storage client_stub, long generation, long checksum)
+        throws RMIException
+    {
+    }
+
+    /** Returns the generation of the manifest the naming server holds for a
+        registered storage server.
+
+        <p>
+        A storage server whose call to <code>acceptManifest</code> failed
+        uses this to learn whether the manifest was accepted all the same.
+        The default, for a naming server which does not remember manifests,
+        returns 0.
+
+        @param client_stub Storage server client service stub.
+        @return The generation, or 0 if the naming server holds no manifest
+                for the storage server, or it is not registered.
+        @throws NullPointerException If <code>client_stub</code> is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default long manifestGeneration(Storage client_stub) throws RMIException
+    {
+        return 0;
+    }
 }
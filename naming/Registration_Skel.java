@@ -0,0 +1,48 @@
+// Generated by build.GenerateStubs from naming.Registration. Do not edit.
+package naming;
+
+/** Dispatcher for <code>naming.Registration</code>. See <code>rmi.Dispatcher</code>. */
+public final class Registration_Skel implements rmi.Dispatcher
+{
+    private static final String[] SIGNATURES = {
+        "acceptManifest(storage.Storage,long,long)",
+        "manifestGeneration(storage.Storage)",
+        "register(storage.Storage,storage.Command,[Lcommon.Path;)",
+        "register(storage.Storage,storage.Command,[Lcommon.Path;,boolean)",
+        "registerAgain(storage.Storage,storage.Command,[Lcommon.Path;,boolean)",
+        "registerChanges(storage.Storage,storage.Command,long,long,[Lcommon.Path;,[Lcommon.Path;)",
+        "registerMore(storage.Storage,[Lcommon.Path;)",
+        "registerMore(storage.Storage,[Lcommon.Path;,boolean)",
+    };
+
+    public String[] signatures()
+    {
+        return SIGNATURES.clone();
+    }
+
+    public Object dispatch(Object server, int ordinal, Object[] args) throws Throwable
+    {
+        Registration target = (Registration) server;
+        switch(ordinal) {
+            case 0:
+                target.acceptManifest((storage.Storage) args[0], (java.lang.Long) args[1], (java.lang.Long) args[2]);
+                return null;
+            case 1:
+                return target.manifestGeneration((storage.Storage) args[0]);
+            case 2:
+                return target.register((storage.Storage) args[0], (storage.Command) args[1], (common.Path[]) args[2]);
+            case 3:
+                return target.register((storage.Storage) args[0], (storage.Command) args[1], (common.Path[]) args[2], (java.lang.Boolean) args[3]);
+            case 4:
+                return target.registerAgain((storage.Storage) args[0], (storage.Command) args[1], (common.Path[]) args[2], (java.lang.Boolean) args[3]);
+            case 5:
+                return target.registerChanges((storage.Storage) args[0], (storage.Command) args[1], (java.lang.Long) args[2], (java.lang.Long) args[3], (common.Path[]) args[4], (common.Path[]) args[5]);
+            case 6:
+                return target.registerMore((storage.Storage) args[0], (common.Path[]) args[1]);
+            case 7:
+                return target.registerMore((storage.Storage) args[0], (common.Path[]) args[1], (java.lang.Boolean) args[2]);
+            default:
+                throw new IllegalArgumentException("no method " + ordinal);
+        }
+    }
+}
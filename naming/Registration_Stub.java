@@ -0,0 +1,125 @@
+// Generated by build.GenerateStubs from naming.Registration. Do not edit.
+package naming;
+
+/** Stub for <code>naming.Registration</code>. See <code>rmi.GeneratedStub</code>. */
+public final class Registration_Stub extends rmi.GeneratedStub implements Registration
+{
+    private static final long serialVersionUID = 1L;
+
+    public Registration_Stub(rmi.RMIInvocationHandler handler)
+    {
+        super(handler);
+    }
+
+    public void acceptManifest(storage.Storage a0, long a1, long a2)
+        throws rmi.RMIException
+    {
+        try {
+            call(0, new Object[] { a0, a1, a2 });
+        }
+        catch(rmi.RMIException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+
+    public long manifestGeneration(storage.Storage a0)
+        throws rmi.RMIException
+    {
+        try {
+            return (java.lang.Long) call(1, new Object[] { a0 });
+        }
+        catch(rmi.RMIException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+
+    public common.Path[] register(storage.Storage a0, storage.Command a1, common.Path[] a2)
+        throws rmi.RMIException
+    {
+        try {
+            return (common.Path[]) call(2, new Object[] { a0, a1, a2 });
+        }
+        catch(rmi.RMIException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+
+    public common.Path[] register(storage.Storage a0, storage.Command a1, common.Path[] a2, boolean a3)
+        throws rmi.RMIException
+    {
+        try {
+            return (common.Path[]) call(3, new Object[] { a0, a1, a2, a3 });
+        }
+        catch(rmi.RMIException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+
+    public common.Path[] registerAgain(storage.Storage a0, storage.Command a1, common.Path[] a2, boolean a3)
+        throws rmi.RMIException
+    {
+        try {
+            return (common.Path[]) call(4, new Object[] { a0, a1, a2, a3 });
+        }
+        catch(rmi.RMIException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+
+    public common.Path[] registerChanges(storage.Storage a0, storage.Command a1, long a2, long a3, common.Path[] a4, common.Path[] a5)
+        throws rmi.RMIException
+    {
+        try {
+            return (common.Path[]) call(5, new Object[] { a0, a1, a2, a3, a4, a5 });
+        }
+        catch(rmi.RMIException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+
+    public common.Path[] registerMore(storage.Storage a0, common.Path[] a1)
+        throws rmi.RMIException
+    {
+        try {
+            return (common.Path[]) call(6, new Object[] { a0, a1 });
+        }
+        catch(rmi.RMIException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+
+    public common.Path[] registerMore(storage.Storage a0, common.Path[] a1, boolean a2)
+        throws rmi.RMIException
+    {
+        try {
+            return (common.Path[]) call(7, new Object[] { a0, a1, a2 });
+        }
+        catch(rmi.RMIException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+}
@@ -2,6 +2,8 @@ package naming;
 
 import java.io.*;
 import common.*;
+import rmi.Idempotent;
+import rmi.NoDeadline;
 import rmi.RMIException;
 import storage.Storage;
 
@@ -87,6 +89,11 @@ public interface Service
         <code>A</code> and <code>B</code> for shared access. User <code>D</code>
         must wait until <code>C</code> is done with the lock.
 
+        <p>
+        The call waits until the lock is granted, whatever deadline the caller
+        has set: a lock granted after its caller stopped waiting would never
+        be released.
+
         @param path The file or directory to be locked.
         @param exclusive If <code>true</code>, the object is to be locked for
                          exclusive access. Otherwise, it is to be locked for
@@ -103,6 +110,7 @@ public interface Service
                              error. This includes server shutdown while a client
                              is waiting to obtain the lock.
      */
+    @NoDeadline
     public void lock(Path path, boolean exclusive)
         throws RMIException, FileNotFoundException;
 
@@ -138,6 +146,7 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public boolean isDirectory(Path path)
         throws RMIException, FileNotFoundException;
 
@@ -155,6 +164,7 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public String[] list(Path directory)
         throws RMIException, FileNotFoundException;
 
@@ -0,0 +1,49 @@
+// Generated by build.GenerateStubs from naming.Service. Do not edit.
+package naming;
+
+/** Dispatcher for <code>naming.Service</code>. See <code>rmi.Dispatcher</code>. */
+public final class Service_Skel implements rmi.Dispatcher
+{
+    private static final String[] SIGNATURES = {
+        "createDirectory(common.Path)",
+        "createFile(common.Path)",
+        "delete(common.Path)",
+        "getStorage(common.Path)",
+        "isDirectory(common.Path)",
+        "list(common.Path)",
+        "lock(common.Path,boolean)",
+        "unlock(common.Path,boolean)",
+    };
+
+    public String[] signatures()
+    {
+        return SIGNATURES.clone();
+    }
+
+    public Object dispatch(Object server, int ordinal, Object[] args) throws Throwable
+    {
+        Service target = (Service) server;
+        switch(ordinal) {
+            case 0:
+                return target.createDirectory((common.Path) args[0]);
+            case 1:
+                return target.createFile((common.Path) args[0]);
+            case 2:
+                return target.delete((common.Path) args[0]);
+            case 3:
+                return target.getStorage((common.Path) args[0]);
+            case 4:
+                return target.isDirectory((common.Path) args[0]);
+            case 5:
+                return target.list((common.Path) args[0]);
+            case 6:
+                target.lock((common.Path) args[0], (java.lang.Boolean) args[1]);
+                return null;
+            case 7:
+                target.unlock((common.Path) args[0], (java.lang.Boolean) args[1]);
+                return null;
+            default:
+                throw new IllegalArgumentException("no method " + ordinal);
+        }
+    }
+}
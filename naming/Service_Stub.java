@@ -0,0 +1,125 @@
+// Generated by build.GenerateStubs from naming.Service. Do not edit.
+package naming;
+
+/** Stub for <code>naming.Service</code>. See <code>rmi.GeneratedStub</code>. */
+public final class Service_Stub extends rmi.GeneratedStub implements Service
+{
+    private static final long serialVersionUID = 1L;
+
+    public Service_Stub(rmi.RMIInvocationHandler handler)
+    {
+        super(handler);
+    }
+
+    public boolean createDirectory(common.Path a0)
+        throws rmi.RMIException, java.io.FileNotFoundException
+    {
+        try {
+            return (java.lang.Boolean) call(0, new Object[] { a0 });
+        }
+        catch(rmi.RMIException | java.io.FileNotFoundException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+
+    public boolean createFile(common.Path a0)
+        throws rmi.RMIException, java.io.FileNotFoundException
+    {
+        try {
+            return (java.lang.Boolean) call(1, new Object[] { a0 });
+        }
+        catch(rmi.RMIException | java.io.FileNotFoundException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+
+    public boolean delete(common.Path a0)
+        throws rmi.RMIException, java.io.FileNotFoundException
+    {
+        try {
+            return (java.lang.Boolean) call(2, new Object[] { a0 });
+        }
+        catch(rmi.RMIException | java.io.FileNotFoundException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+
+    public storage.Storage getStorage(common.Path a0)
+        throws rmi.RMIException, java.io.FileNotFoundException
+    {
+        try {
+            return (storage.Storage) call(3, new Object[] { a0 });
+        }
+        catch(rmi.RMIException | java.io.FileNotFoundException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+
+    public boolean isDirectory(common.Path a0)
+        throws rmi.RMIException, java.io.FileNotFoundException
+    {
+        try {
+            return (java.lang.Boolean) call(4, new Object[] { a0 });
+        }
+        catch(rmi.RMIException | java.io.FileNotFoundException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+
+    public java.lang.String[] list(common.Path a0)
+        throws rmi.RMIException, java.io.FileNotFoundException
+    {
+        try {
+            return (java.lang.String[]) call(5, new Object[] { a0 });
+        }
+        catch(rmi.RMIException | java.io.FileNotFoundException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+
+    public void lock(common.Path a0, boolean a1)
+        throws rmi.RMIException, java.io.FileNotFoundException
+    {
+        try {
+            call(6, new Object[] { a0, a1 });
+        }
+        catch(rmi.RMIException | java.io.FileNotFoundException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+
+    public void unlock(common.Path a0, boolean a1)
+        throws rmi.RMIException
+    {
+        try {
+            call(7, new Object[] { a0, a1 });
+        }
+        catch(rmi.RMIException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package naming.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.*;
+
+import common.*;
+import storage.*;
+import rmi.*;
+
+/** Binary image of a directory tree.
+
+    <p>
+    The image is the tree in depth-first order: for each node, its name, its
+    kind, and then either its children, preceded by their number, or the
+    storage servers holding the file. Names and servers are interned: the
+    first occurrence of each is written in full and numbered, and later ones
+    refer to it by number, so a name shared by many directories - or a server
+    holding many files - costs a few bytes each time. Numbers are written as
+    variable-length integers. The image ends with a CRC32 of its contents.
+
+    <p>
+    An image may be written while the tree is being changed. It then holds
+    each directory as it was when that directory was reached, and the journal
+    written since the image was started is replayed on top of it on load.
+
+    <p>
+    Images are loaded through a memory mapping of the file, so that loading
+    is bounded by building the nodes rather than by reading.
+ */
+public class Checkpoint {
+    static final int MAGIC = 0x44465343;
+    static final int VERSION = 1;
+    static final byte DIRECTORY = 0;
+    static final byte FILE = 1;
+
+    /** Writes an image of a tree to a file, and forces it to disk.
+
+        @return The number of nodes written.
+     */
+    public static long write(DirectoryTree tree, File file) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                                    new BufferedOutputStream(stream, 1 << 16), new CRC32());
+            Writer writer = new Writer(new DataOutputStream(checked), tree.scheduler);
+            writer.out.writeInt(MAGIC);
+            writer.out.writeInt(VERSION);
+            writer.children(tree.root);
+            writer.out.flush();
+            writer.out.writeInt((int) checked.getChecksum().getValue());
+            writer.out.flush();
+            stream.getFD().sync();
+            return writer.nodes;
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    /** Loads an image into an empty tree, and adds the storage servers it
+        names to a scheduler as recovered.
+
+        @return The number of nodes loaded.
+        @throws IOException If the image cannot be read or is damaged.
+     */
+    public static long load(File file, DirectoryTree tree, Scheduler scheduler) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if(size < 12 || size > Integer.MAX_VALUE) {
+                throw new IOException("bad checkpoint size " + size + ": " + file);
+            }
+            MappedByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            CRC32 crc = new CRC32();
+            ByteBuffer contents = image.duplicate();
+            contents.limit((int) size - 4);
+            crc.update(contents);
+            if((int) crc.getValue() != image.getInt((int) size - 4)) {
+                throw new IOException("damaged checkpoint: " + file);
+            }
+
+            if(image.getInt() != MAGIC || image.getInt() != VERSION) {
+                throw new IOException("not a checkpoint: " + file);
+            }
+            image.limit((int) size - 4);
+            Reader reader = new Reader(image, scheduler);
+            reader.children(tree.root);
+            if(image.hasRemaining()) {
+                throw new IOException("damaged checkpoint: " + file);
+            }
+            return reader.nodes;
+        }
+        catch(BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("damaged checkpoint: " + file, e);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /** Writes the nodes of a tree, interning names and servers. */
+    private static class Writer {
+        final DataOutputStream out;
+        final Scheduler scheduler;
+        final HashMap<String, Integer> names = new HashMap<String, Integer>();
+        /* Image numbers of servers, by scheduler number. */
+        final HashMap<Integer, Integer> servers = new HashMap<Integer, Integer>();
+        long nodes = 0;
+
+        Writer(DataOutputStream out, Scheduler scheduler) {
+            this.out = out;
+            this.scheduler = scheduler;
+        }
+
+        void children(DirectoryNode directory) throws IOException {
+            // A copy, so that the count written matches the children written
+            // however the directory changes meanwhile.
+            DirectoryNode[] children = directory.sons.values().toArray(new DirectoryNode[0]);
+            writeVarint(this.out, children.length);
+            for(DirectoryNode child: children) {
+                node(child);
+            }
+        }
+
+        void node(DirectoryNode node) throws IOException {
+            name(node.name);
+            this.nodes++;
+            if(node.isDirectory()) {
+                this.out.writeByte(DIRECTORY);
+                children(node);
+                return;
+            }
+
+            this.out.writeByte(FILE);
+            int[] replicas = node.replicas;
+            writeVarint(this.out, replicas.length);
+            for(int replica: replicas) {
+                server(replica);
+            }
+        }
+
+        void name(String name) throws IOException {
+            Integer known = this.names.get(name);
+            if(known != null) {
+                writeVarint(this.out, known + 1);
+                return;
+            }
+            this.names.put(name, this.names.size());
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            writeVarint(this.out, 0);
+            writeVarint(this.out, bytes.length);
+            this.out.write(bytes);
+        }
+
+        void server(int id) throws IOException {
+            Integer known = this.servers.get(id);
+            if(known != null) {
+                writeVarint(this.out, known + 1);
+                return;
+            }
+            this.servers.put(id, this.servers.size());
+            PathComponents server = this.scheduler.server(id);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream stubs = new DataOutputStream(bytes);
+            Codec.writeValue(stubs, server.getStorageStub());
+            Codec.writeValue(stubs, server.getCommandStub());
+            writeVarint(this.out, 0);
+            writeVarint(this.out, bytes.size());
+            bytes.writeTo(this.out);
+        }
+    }
+
+    /** Builds nodes from a mapped image. */
+    private static class Reader {
+        final ByteBuffer in;
+        final Scheduler scheduler;
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<PathComponents> servers = new ArrayList<PathComponents>();
+        long nodes = 0;
+
+        Reader(ByteBuffer in, Scheduler scheduler) {
+            this.in = in;
+            this.scheduler = scheduler;
+        }
+
+        void children(DirectoryNode directory) throws IOException {
+            int count = readVarint(this.in);
+            for(int i = 0; i < count; i++) {
+                String name = name();
+                byte kind = this.in.get();
+                DirectoryNode node = new DirectoryNode(directory, name, kind == DIRECTORY);
+                this.nodes++;
+                if(kind == DIRECTORY) {
+                    children(node);
+                }
+                else if(kind == FILE) {
+                    int replicas = readVarint(this.in);
+                    for(int j = 0; j < replicas; j++) {
+                        node.addDirComp(server());
+                    }
+                }
+                else {
+                    throw new IOException("bad node kind " + kind);
+                }
+                directory.sons.put(name, node);
+            }
+        }
+
+        String name() throws IOException {
+            int reference = readVarint(this.in);
+            if(reference > 0) {
+                return this.names.get(reference - 1);
+            }
+            byte[] bytes = new byte[readVarint(this.in)];
+            this.in.get(bytes);
+            String name = new String(bytes, StandardCharsets.UTF_8).intern();
+            this.names.add(name);
+            return name;
+        }
+
+        PathComponents server() throws IOException {
+            int reference = readVarint(this.in);
+            if(reference > 0) {
+                return this.servers.get(reference - 1);
+            }
+            byte[] bytes = new byte[readVarint(this.in)];
+            this.in.get(bytes);
+            DataInputStream stubs = new DataInputStream(new ByteArrayInputStream(bytes));
+            PathComponents server = this.scheduler.addRecoveredServer(
+                                        (Storage) Codec.readValue(stubs),
+                                        (Command) Codec.readValue(stubs));
+            this.servers.add(server);
+            return server;
+        }
+    }
+
+    static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if(b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("bad varint");
+    }
+}
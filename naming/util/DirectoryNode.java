@@ -3,6 +3,8 @@ package naming.util;
 import java.util.*;
 import java.io.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
 
 import common.*;
 import storage.*;
@@ -10,160 +12,598 @@ import naming.util.*;
 import rmi.*;
 
 
-/** DirectoryTree.
+/** DirectoryNode.
 
     <p>
+    Nodes are safe for concurrent use. Lookups of children and reads of the
+    list of storage servers holding a file take no lock: the children are kept
+    in a concurrent map, and the server list is copied on every change. A
+    change to the children of a directory is made holding that directory's
+    monitor, so that it cannot race with the directory being removed.
+
+    <p>
+    Nodes are kept small, since the tree may hold a node for each of a great
+    many files. A node holds only its name, interned, and its parent: its
+    path is rebuilt when needed. The storage servers holding a file are kept
+    as an array of their numbers in the <code>Scheduler</code>; a file on a
+    single server shares that server's array. The lock of a node is a count
+    of its holders, taken and released by compare-and-set; a queue is
+    allocated, and the node's monitor used, only while threads wait for it.
+    A thread waiting for a lock also waits for any thread before it. A
+    caller which cannot wait on a thread of its own queues a callback
+    instead, which whichever thread makes the lock free runs once it is
+    granted.
   */
 public class DirectoryNode {
-    Path path;
-    HashMap<Path, DirectoryNode> sons;
-    boolean isDirectory;
-    ArrayList<PathComponents> pathComps;
-    Semaphore readwriteSemaphore;
-    int readNum = 0;
-    final int READMAX = 100;
-
-    public DirectoryNode(Path p, boolean isDirectory) {
-        this.path = p;
-        this.isDirectory = isDirectory;
-        readwriteSemaphore = new Semaphore(READMAX, true);
-        if(this.isDirectory) {
-            this.sons = new HashMap<Path, DirectoryNode>();
+    /* Last path component, or the empty string for the root, and the
+       directory holding the node, or null for the root. */
+    final String name;
+    final DirectoryNode parent;
+    /* Children of a directory, by last path component. */
+    final ConcurrentHashMap<String, DirectoryNode> sons;
+    /* Numbers of the storage servers holding a file. Replaced, never
+       changed, under the node's monitor. */
+    volatile int[] replicas;
+    private static final AtomicIntegerFieldUpdater<DirectoryNode> HOLDERS =
+        AtomicIntegerFieldUpdater.newUpdater(DirectoryNode.class, "holders");
+    private static final AtomicIntegerFieldUpdater<DirectoryNode> READS =
+        AtomicIntegerFieldUpdater.newUpdater(DirectoryNode.class, "reads");
+
+    /* The number of shared locks held, or -1 while the node is locked
+       exclusively, and the number of shared locks taken on a file. */
+    private volatile int holders = 0;
+    private volatile int reads = 0;
+    /* The threads and callbacks waiting to lock the node, in order of
+       arrival, or null if there are none. Changed only under the node's
+       monitor. */
+    private volatile ArrayDeque<Waiter> waiting = null;
+    /* Set, under the node's monitor, once the node has been removed from the
+       tree. No children may be added to a removed directory. */
+    boolean removed = false;
+    /* Set, under the node's monitor, while a copy of the file is being made
+       to another storage server. */
+    boolean copying = false;
+
+    /* Makes copies of files on threads of their own, so that the shared
+       lock which asks for a copy does not wait for it. */
+    private static final ExecutorService COPIES = Executors.newCachedThreadPool(
+        new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "replicate");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /** Creates a root directory. */
+    public DirectoryNode() {
+        this(null, "", true);
+    }
+
+    DirectoryNode(DirectoryNode parent, String name, boolean isDirectory) {
+        this.parent = parent;
+        this.name = name;
+        if(isDirectory) {
+            this.sons = new ConcurrentHashMap<String, DirectoryNode>(4);
         }
         else {
-            this.pathComps = new ArrayList<PathComponents>();
+            this.sons = null;
+            this.replicas = PathComponents.NONE;
         }
     }
 
     public boolean isDirectory() {
-        return this.isDirectory;
+        return this.sons != null;
     }
 
-    public HashMap<Path, DirectoryNode> getSons() {
+    /** Returns the children of a directory, by name, or <code>null</code> for
+        a file. */
+    public Map<String, DirectoryNode> getSons() {
         return this.sons;
     }
 
+    /** Returns the node's path, rebuilt from its ancestors. */
     public Path getPath() {
-        return this.path;
+        if(this.parent == null) {
+            return new Path();
+        }
+        return new Path(this.parent.getPath(), this.name);
     }
 
-    public ArrayList<PathComponents> getPathComps() {
-        return this.pathComps;
+    public String getName() {
+        return this.name;
     }
 
-    public DirectoryNode getNextNode(Path path) {
-        DirectoryNode res = null;
-        if(path == null || sons == null || sons.size() == 0) {
-            return null;
-        }
+    /** Returns the storage servers holding a file. */
+    public List<PathComponents> getPathComps(Scheduler scheduler) {
+        return scheduler.servers(this.replicas);
+    }
 
-        for(Path p: sons.keySet()) {
-            if(path.isSubpath(p)) {
-                return sons.get(p);
-            }
+    /** Returns the child with the given name, or <code>null</code> if there
+        is none or this node is a file. */
+    public DirectoryNode getChild(String name) {
+        if(this.sons == null) {
+            return null;
         }
-        return null;
+        return this.sons.get(name);
     }
 
     /** add a sub directory into current directory node.
 
         @return <code>false</code> if the added node already exists in the sub directory list.
       */
-    public boolean addSubDirNode(Path p, boolean isDirectory) throws FileNotFoundException {
-        if(!p.isSubpath(this.path)) {
+    public boolean addSubDirNode(String name, boolean isDirectory) throws FileNotFoundException {
+        return addSubDirNode(name, isDirectory, null);
+    }
+
+    /** add a sub node into current directory node, listing a storage server
+        for it before it can be found.
+
+        @param pathComp The storage server holding a file, or
+                        <code>null</code>.
+        @return <code>false</code> if the added node already exists in the sub directory list.
+        @throws FileNotFoundException If this node is a file or has been
+                                      removed.
+      */
+    public boolean addSubDirNode(String name, boolean isDirectory, PathComponents pathComp)
+            throws FileNotFoundException {
+        if(this.sons == null) {
             throw new FileNotFoundException();
         }
-        if(this.sons.containsKey(p)) {
-            return false;
+        DirectoryNode node = new DirectoryNode(this, name.intern(), isDirectory);
+        if(pathComp != null) {
+            node.replicas = pathComp.only;
         }
-        else {
-            this.sons.put(p, new DirectoryNode(p, isDirectory));
-            return true;
+        synchronized(this) {
+            if(this.removed) {
+                throw new FileNotFoundException();
+            }
+            return this.sons.putIfAbsent(node.name, node) == null;
         }
     }
 
-    /** add a set of path components into current directory node.
+    /** Removes a child node, and marks it and everything below it removed.
+
+        @return <code>false</code> if <code>child</code> is no longer the
+                child of that name.
+      */
+    public boolean removeSubNode(DirectoryNode child) {
+        synchronized(this) {
+            if(!this.sons.remove(child.name, child)) {
+                return false;
+            }
+        }
+        child.markRemoved();
+        return true;
+    }
+
+    private void markRemoved() {
+        synchronized(this) {
+            this.removed = true;
+        }
+        if(this.sons != null) {
+            for(DirectoryNode son: this.sons.values()) {
+                son.markRemoved();
+            }
+        }
+    }
+
+    /** add a storage server into the list of those holding a file, unless
+        it is already listed.
 
       */
     public void addDirComp(PathComponents pathComp) {
-        this.pathComps.add(pathComp);
+        synchronized(this) {
+            int[] replicas = this.replicas;
+            if(replicas.length == 0) {
+                this.replicas = pathComp.only;
+                return;
+            }
+            for(int id: replicas) {
+                if(id == pathComp.id) {
+                    return;
+                }
+            }
+            int[] added = Arrays.copyOf(replicas, replicas.length + 1);
+            added[replicas.length] = pathComp.id;
+            this.replicas = added;
+        }
+    }
+
+    /** Removes a storage server from the list of those holding a file.
+
+        @return <code>false</code> if the server was not listed.
+      */
+    boolean drop(PathComponents pathComp) {
+        synchronized(this) {
+            int[] replicas = this.replicas;
+            for(int i = 0; i < replicas.length; i++) {
+                if(replicas[i] == pathComp.id) {
+                    int[] dropped = new int[replicas.length - 1];
+                    System.arraycopy(replicas, 0, dropped, 0, i);
+                    System.arraycopy(replicas, i + 1, dropped, i, dropped.length - i);
+                    this.replicas = dropped;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /** Lists a file on the given storage server only. */
+    void keepOnly(PathComponents pathComp) {
+        this.replicas = pathComp.only;
+    }
+
+    /** Returns whether a file is listed on the given storage server. */
+    boolean isStoredOn(PathComponents pathComp) {
+        for(int id: this.replicas) {
+            if(id == pathComp.id) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public void lock(boolean exclusive, Scheduler scheduler)
             throws InterruptedException, RMIException {
+        lock(exclusive, scheduler, null);
+    }
+
+    /** Locks the node, journaling any change to the storage servers listed
+        for a file.
+
+        @param journal The journal, or <code>null</code>.
+      */
+    void lock(boolean exclusive, Scheduler scheduler, Journal journal)
+            throws InterruptedException, RMIException {
+        acquire(exclusive);
+        taken(exclusive, scheduler, journal);
+    }
+
+    /** Takes the lock if it is free, and otherwise queues a request for it
+        without waiting. Once the lock is granted, <code>granted</code> is
+        run on the thread which released it, and should hand its work to
+        another; the caller then calls <code>taken</code>.
+
+        @return <code>true</code> if the lock was taken at once, in which case
+                <code>granted</code> is not run.
+     */
+    boolean lockLater(boolean exclusive, Runnable granted) {
+        if(this.waiting == null && tryTake(exclusive)) {
+            return true;
+        }
+        Waiter waiter = new Waiter(exclusive, granted);
+        Waiter head;
+        synchronized(this) {
+            if(this.waiting == null) {
+                this.waiting = new ArrayDeque<Waiter>();
+            }
+            this.waiting.add(waiter);
+            head = this.waiting.peek();
+        }
+        // The lock may have been released before the request was queued.
+        wake(head);
+        return false;
+    }
+
+    /** Trims a file locked exclusively to a single storage server, or counts
+        a shared lock on a file, making a copy of a file often read. Called
+        once the lock is held.
+
+        @param journal The journal, or <code>null</code>.
+      */
+    void taken(boolean exclusive, Scheduler scheduler, Journal journal)
+            throws RMIException {
         if(exclusive) {
             // write lock
-            this.readwriteSemaphore.acquire(READMAX);
-
             //TODO: delete servers but one
-            if(!this.isDirectory()) {
-                PathComponents comp = scheduler.pickStorageServer(this.pathComps);
-                for(PathComponents p: this.pathComps) {
-                    if(!p.getStorageStub().equals(comp.getStorageStub())) {
-                        p.getCommandStub().delete(this.path);
+            if(!this.isDirectory() && this.replicas.length > 1) {
+                List<PathComponents> servers = getPathComps(scheduler);
+                PathComponents comp = Scheduler.pickStorageServer(servers);
+                Path path = getPath();
+                // The tree is changed, and then journaled, under the monitor,
+                // so that a checkpoint either holds the change or starts
+                // after the record. Both are done before the copies are
+                // deleted, so that a copy is never listed once it may be
+                // gone.
+                long entry = 0;
+                synchronized(this) {
+                    keepOnly(comp);
+                    if(journal != null) {
+                        entry = journal.exclusive(path, comp);
+                    }
+                }
+                if(journal != null) {
+                    journal.commit(entry);
+                }
+                for(PathComponents p: servers) {
+                    if(p != comp) {
+                        p.getCommandStub().delete(path);
                     }
                 }
-                this.pathComps = new ArrayList<PathComponents>();
-                this.pathComps.add(comp);
             }
         }
-        else {
+        else if(this.sons == null) {
             // read lock
-            this.readwriteSemaphore.acquire();
-            if(!isDirectory) {
-                this.readNum ++;
-                if(this.readNum == 20) {
-                    readNum = 0;
-                    replicate(scheduler); // start a thread to make a copy
-                }
+            int reads = READS.incrementAndGet(this);
+            if(reads % 20 == 0) {
+                replicateLater(scheduler, journal); // make a copy
             }
         }
     }
 
-    public void unlock(boolean exclusive) {
-        if(exclusive) {
-            // write lock
-            this.readwriteSemaphore.release(READMAX);
+    /** Takes the lock, waiting no longer than the deadline of the call being
+        served, if it has one. The lock is fair: once a thread waits for it,
+        it is granted in the order it is asked for.
+
+        @throws DeadlineExceededException If the deadline passes first. The
+                                          lock is then not held.
+     */
+    private void acquire(boolean exclusive)
+            throws InterruptedException, DeadlineExceededException {
+        if(this.waiting != null || !tryTake(exclusive)) {
+            waitFor(exclusive);
         }
-        else {
-            // read lock
-            this.readwriteSemaphore.release();
+    }
+
+    /** Waits in line for the lock, and takes it. Only the first waiting
+        thread tries to take the lock; it is woken when the lock is released,
+        and wakes the next one once it has the lock or gives up. */
+    private void waitFor(boolean exclusive)
+            throws InterruptedException, DeadlineExceededException {
+        Waiter waiter = new Waiter(exclusive);
+        boolean acquired = false;
+        synchronized(this) {
+            // Published before the lock is tried again, so that a thread
+            // which releases the lock meanwhile then sees there is a waiter
+            // to wake.
+            if(this.waiting == null) {
+                this.waiting = new ArrayDeque<Waiter>();
+            }
+            this.waiting.add(waiter);
+        }
+        Deadline deadline = Deadline.current();
+        try {
+            while(true) {
+                synchronized(this) {
+                    if(this.waiting.peek() == waiter && tryTake(exclusive)) {
+                        acquired = true;
+                        return;
+                    }
+                }
+                if(deadline == null) {
+                    LockSupport.park(this);
+                }
+                else {
+                    long remaining = deadline.remaining(TimeUnit.NANOSECONDS);
+                    if(remaining <= 0) {
+                        throw new DeadlineExceededException("deadline passed waiting to lock "
+                                                            + getPath());
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+                if(Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+        finally {
+            Waiter next;
+            synchronized(this) {
+                this.waiting.remove(waiter);
+                next = this.waiting.peek();
+                if(next == null) {
+                    this.waiting = null;
+                }
+            }
+            // The next waiter may now be able to lock the node too. It is woken
+            // outside the monitor, which it needs.
+            if(next != null && (!acquired || !exclusive && !next.exclusive)) {
+                wake(next);
+            }
         }
     }
 
-    public void replicate(Scheduler scheduler) {
-        (new CopyThread(this.path, this.pathComps, scheduler)).start();
+    /** Wakes a waiting thread, or grants the lock to a queued callback, and
+        to the callbacks after it while they all want the lock shared. A
+        callback is run outside the monitor. */
+    private void wake(Waiter next) {
+        while(next != null) {
+            if(next.granted == null) {
+                LockSupport.unpark(next.thread);
+                return;
+            }
+            Waiter after;
+            synchronized(this) {
+                if(this.waiting == null || this.waiting.peek() != next
+                        || !tryTake(next.exclusive)) {
+                    return;
+                }
+                this.waiting.poll();
+                after = this.waiting.peek();
+                if(after == null) {
+                    this.waiting = null;
+                }
+            }
+            next.granted.run();
+            if(next.exclusive || after == null || after.exclusive) {
+                return;
+            }
+            next = after;
+        }
     }
 
-    public class CopyThread extends Thread {
-        ArrayList<PathComponents> pathComps;
-        Path file;
-        Scheduler scheduler;
+    private boolean tryTake(boolean exclusive) {
+        while(true) {
+            int holders = this.holders;
+            if(exclusive ? holders != 0 : holders < 0) {
+                return false;
+            }
+            if(HOLDERS.compareAndSet(this, holders, exclusive ? -1 : holders + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /** Releases a lock.
 
-        public CopyThread(Path file, ArrayList<PathComponents> pathComps, Scheduler scheduler) {
-            this.file = file;
-            this.pathComps = pathComps;
-            this.scheduler = scheduler;
+        @throws IllegalStateException If the node is not locked so.
+      */
+    public void unlock(boolean exclusive) {
+        while(true) {
+            int holders = this.holders;
+            if(exclusive ? holders != -1 : holders <= 0) {
+                throw new IllegalStateException("not locked: " + getPath());
+            }
+            if(HOLDERS.compareAndSet(this, holders, exclusive ? 0 : holders - 1)) {
+                if(!exclusive && holders > 1) {
+                    // still locked: a waiter, which must want the lock
+                    // exclusively, cannot take it yet
+                    return;
+                }
+                break;
+            }
         }
+        if(this.waiting != null) {
+            Waiter next = null;
+            synchronized(this) {
+                if(this.waiting != null) {
+                    next = this.waiting.peek();
+                }
+            }
+            wake(next);
+        }
+    }
 
-        public void run() {
-            PathComponents comp = scheduler.pickCopyStorageServer(this.pathComps);
-            if(comp != null) {
-                try{
-                    comp.getCommandStub().copy(this.file,
-                            scheduler.pickStorageServer(this.pathComps).getStorageStub());
-                    this.pathComps.add(comp);
+    /** Copies the file to one more storage server, on a thread of its own,
+        unless a copy is already being made. The caller does not wait for the
+        copy. */
+    void replicateLater(final Scheduler scheduler, final Journal journal) {
+        synchronized(this) {
+            if(this.copying) {
+                return;
+            }
+            this.copying = true;
+        }
+        try {
+            COPIES.execute(new Runnable() {
+                public void run() {
+                    try {
+                        replicate(scheduler, journal);
+                    }
+                    finally {
+                        synchronized(DirectoryNode.this) {
+                            DirectoryNode.this.copying = false;
+                            DirectoryNode.this.notifyAll();
+                        }
+                    }
                 }
-                catch(FileNotFoundException e) {
-                    // throw new FileNotFoundException();
+            });
+        }
+        catch(RejectedExecutionException e) {
+            synchronized(this) {
+                this.copying = false;
+            }
+        }
+    }
+
+    /** Waits until no copy of the file is being made, so that the storage
+        servers listed for it include any copy made meanwhile. */
+    void awaitCopy() {
+        synchronized(this) {
+            while(this.copying) {
+                try {
+                    wait();
                 }
-                catch(RMIException e) {
-                    // throw new RMIException(e);
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 }
-                catch(IOException e) {
-                    // this.skeleton.listen_error(e);
+            }
+        }
+    }
+
+    /** Copies the file to one more storage server. */
+    public void replicate(Scheduler scheduler) {
+        replicate(scheduler, null);
+    }
+
+    /** Copies the file to one more storage server, and journals the copy once
+        it has been made.
+
+        <p>
+        The copy is made holding a shared lock on the file, so that no writer
+        changes the file before the new replica is listed. Replication is
+        only an optimization, so no copy is made if the lock is not free: a
+        copy which waited for it could wait for a thread which waits for the
+        copy. The replica is listed, and then journaled, under the node's
+        monitor, as other changes to the tree are. A copy of a file removed
+        meanwhile is deleted again.
+
+        @param journal The journal, or <code>null</code>.
+      */
+    void replicate(Scheduler scheduler, Journal journal) {
+        if(this.waiting != null || !tryTake(false)) {
+            return;
+        }
+        try {
+            List<PathComponents> servers = getPathComps(scheduler);
+            PathComponents comp = scheduler.pickCopyStorageServer(servers);
+            if(comp == null) {
+                return;
+            }
+            Path path = getPath();
+            comp.getCommandStub().copy(path,
+                    Scheduler.pickStorageServer(servers).getStorageStub());
+            long entry = 0;
+            boolean removed;
+            synchronized(this) {
+                removed = this.removed;
+                if(!removed) {
+                    addDirComp(comp);
+                    if(journal != null) {
+                        entry = journal.replica(path, comp);
+                    }
                 }
             }
+            if(removed) {
+                comp.getCommandStub().delete(path);
+            }
+            else if(journal != null) {
+                journal.commit(entry);
+            }
+        }
+        catch(FileNotFoundException e) {
+            // throw new FileNotFoundException();
+        }
+        catch(RMIException e) {
+            // throw new RMIException(e);
+        }
+        catch(IOException e) {
+            // this.skeleton.listen_error(e);
+        }
+        finally {
+            unlock(false);
+        }
+    }
+
+    /** A thread, or a callback, waiting to lock a node. */
+    private static class Waiter {
+        final Thread thread;
+        final boolean exclusive;
+        final Runnable granted;
+
+        Waiter(boolean exclusive) {
+            this.thread = Thread.currentThread();
+            this.exclusive = exclusive;
+            this.granted = null;
+        }
+
+        Waiter(boolean exclusive, Runnable granted) {
+            this.thread = null;
+            this.exclusive = exclusive;
+            this.granted = granted;
         }
     }
 }
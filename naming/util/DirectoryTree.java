@@ -1,6 +1,8 @@
 package naming.util;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 import java.io.*;
 
 import common.*;
@@ -8,49 +10,172 @@ import storage.*;
 import naming.util.*;
 import rmi.*;
 
+/** The naming server's directory tree.
+
+    <p>
+    The tree may be read and changed by many threads at once. Lookups take no
+    lock; see <code>DirectoryNode</code>. Each change locks only the directory
+    whose children it changes.
+ */
 public class DirectoryTree {
     DirectoryNode root;
+    /* Storage servers, by the numbers which nodes list them by. */
+    final Scheduler scheduler;
+    /* Journal of changes, or null. */
+    Journal journal = null;
+
+    /* Goes on locking a path once a lock it waited for is granted, so that
+       the thread which released that lock does not do it. */
+    private static final ExecutorService GRANTS = Executors.newFixedThreadPool(
+        Math.max(4, Runtime.getRuntime().availableProcessors()),
+        new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "lock-grant");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
     public DirectoryTree() {
-        this.root = new DirectoryNode(new Path(), true);
+        this(new Scheduler());
+    }
+
+    /** Creates a tree whose files are held by the servers of a scheduler. */
+    public DirectoryTree(Scheduler scheduler) {
+        this.root = new DirectoryNode();
+        this.scheduler = scheduler;
     }
 
+    /** Journals every later change to the tree. Changes return once they are
+        in the journal. */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /** Locks a path, taking shared locks on each of its ancestors on the way
+        down. If the deadline of the call being served passes while waiting,
+        the ancestors already locked are unlocked again, since the caller
+        will not unlock a path it failed to lock.
+     */
     public void lock(Path p, boolean exclusive, Scheduler scheduler)
                 throws FileNotFoundException, RMIException {
         DirectoryNode curNode = this.root;
-        while(true) {
-            try {
-                Path curPath = curNode.path;
+        Iterator<String> components = p.iterator();
+        ArrayList<DirectoryNode> ancestors = new ArrayList<DirectoryNode>();
+        try {
+            while(true) {
+                try {
+                    if(!components.hasNext()) {
+                        curNode.lock(exclusive, scheduler, this.journal);
+                        break;
+                    }
+                    else {
+                        curNode.lock(false, scheduler, this.journal);
+                        ancestors.add(curNode);
+                        curNode = curNode.getChild(components.next());
+                        if(curNode == null) {
+                            throw new FileNotFoundException();
+                        }
+                    }
+                }
+                catch(InterruptedException e) {
+                    // if the thread is interrupted
+                }
+            }
+        }
+        catch(DeadlineExceededException e) {
+            for(DirectoryNode node: ancestors) {
+                node.unlock(false);
+            }
+            throw e;
+        }
+    }
+
+    /** Locks a path as <code>lock</code> does, with no deadline, but without
+        waiting: a lock which is not free is queued, and the rest of the path
+        is locked once it is granted. <code>done</code> is then run with
+        <code>null</code>, or with the exception <code>lock</code> would have
+        thrown - on the calling thread, if every lock was free.
+     */
+    public void lockLater(Path p, boolean exclusive, Scheduler scheduler,
+                          Consumer<Throwable> done) {
+        new PathLock(p, exclusive, scheduler, done).lockNext();
+    }
+
+    /** Locks the nodes of a path one after another, from the root down. */
+    private class PathLock implements Runnable {
+        final Iterator<String> components;
+        final boolean exclusive;
+        final Scheduler scheduler;
+        final Consumer<Throwable> done;
+        /* The node being locked, and the mode it is being locked in. */
+        DirectoryNode node = DirectoryTree.this.root;
+        boolean mode;
+
+        PathLock(Path p, boolean exclusive, Scheduler scheduler, Consumer<Throwable> done) {
+            this.components = p.iterator();
+            this.exclusive = exclusive;
+            this.scheduler = scheduler;
+            this.done = done;
+        }
+
+        /** Locks nodes while their locks are free. */
+        void lockNext() {
+            do {
+                this.mode = this.exclusive && !this.components.hasNext();
+                if(!this.node.lockLater(this.mode, this)) {
+                    return;
+                }
+            } while(taken());
+        }
 
-                if(curPath.equals(p)) {
-                    curNode.lock(exclusive, scheduler);
-                    break;
+        /** Goes on once the lock waited for is granted. */
+        public void run() {
+            GRANTS.execute(() -> {
+                if(taken()) {
+                    lockNext();
                 }
-                else {
-                    curNode.lock(false, scheduler);
-                    curNode = curNode.getNextNode(p);
-                    if(curNode == null) {
+            });
+        }
+
+        /** Finishes taking the lock on the current node, and moves to the
+            next one.
+
+            @return <code>false</code> once the path is locked, or cannot be.
+         */
+        private boolean taken() {
+            boolean last = !this.components.hasNext();
+            try {
+                this.node.taken(this.mode, this.scheduler, DirectoryTree.this.journal);
+                if(!last) {
+                    this.node = this.node.getChild(this.components.next());
+                    if(this.node == null) {
                         throw new FileNotFoundException();
                     }
                 }
             }
-            catch(InterruptedException e) {
-                // if the thread is interrupted
+            catch(Exception e) {
+                this.done.accept(e);
+                return false;
             }
+            if(last) {
+                this.done.accept(null);
+            }
+            return !last;
         }
     }
 
     public void unlock(Path p, boolean exclusive) throws FileNotFoundException {
         DirectoryNode curNode = this.root;
+        Iterator<String> components = p.iterator();
         while(true) {
-            Path curPath = curNode.path;
-
-            if(curPath.equals(p)) {
+            if(!components.hasNext()) {
                 curNode.unlock(exclusive);
                 break;
             }
             else {
                 curNode.unlock(false);
-                curNode = curNode.getNextNode(p);
+                curNode = curNode.getChild(components.next());
                 if(curNode == null) {
                     throw new FileNotFoundException();
                 }
@@ -58,25 +183,20 @@ public class DirectoryTree {
         }
     }
 
-    /** Get a directory node in the tree by Path p.
+    /** Get a directory node in the tree by Path p, by looking up each
+        component of the path in turn.
 
         @return a directory node, if there is a node of Path p, otherwise, return <code>null</code>.
       */
     public DirectoryNode getNode(Path p) {
         DirectoryNode curNode = this.root;
-        while(true) {
-            Path curPath = curNode.path;
-            if(curPath.equals(p)) {
-                return curNode;
-            }
-            else {
-                curNode = curNode.getNextNode(p);
-                if(curNode == null) {
-                    break;
-                }
+        for(String component: p) {
+            curNode = curNode.getChild(component);
+            if(curNode == null) {
+                return null;
             }
         }
-        return null;
+        return curNode;
     }
 
     /** Insert a file node into the tree, if it does not exist.
@@ -100,7 +220,60 @@ public class DirectoryTree {
             throw new FileNotFoundException();
         }
 
-        return dirNode.addSubDirNode(file, isDirectory);
+        return addChild(dirNode, file, isDirectory, null);
+    }
+
+    /** Insert a file node into the tree, if it does not exist, listing the
+        storage server which holds the file. The node is never visible
+        without its storage server.
+
+        @return <code>true</code>, if success.
+                <code>false</code>, if the file path already exists or file is root.
+        @throws FileNotFoundException If the parent directory does not exist.
+     */
+    public boolean insertNode(Path file, PathComponents pathComp) throws FileNotFoundException {
+        if(file.isRoot()) {
+            return false;
+        }
+
+        DirectoryNode dirNode = getNode(file.parent());
+        if(dirNode == null || !dirNode.isDirectory()) {
+            throw new FileNotFoundException();
+        }
+
+        return addChild(dirNode, file, false, pathComp);
+    }
+
+    /** Adds a node to a directory and, if there is a journal, waits until
+        the addition is in it. */
+    private boolean addChild(DirectoryNode dirNode, Path p, boolean isDirectory,
+                             PathComponents pathComp) throws FileNotFoundException {
+        long entry = appendChild(dirNode, p, isDirectory, pathComp);
+        if(entry > 0) {
+            this.journal.commit(entry);
+        }
+        return entry >= 0;
+    }
+
+    /** Adds a node to a directory, and appends the addition to the journal
+        without waiting for it.
+
+        @return The journal entry to commit, 0 if there is no journal, or -1
+                if the node already exists.
+      */
+    private long appendChild(DirectoryNode dirNode, Path p, boolean isDirectory,
+                             PathComponents pathComp) throws FileNotFoundException {
+        Journal journal = this.journal;
+        if(journal == null) {
+            return dirNode.addSubDirNode(p.last(), isDirectory, pathComp) ? 0 : -1;
+        }
+
+        synchronized(dirNode) {
+            if(!dirNode.addSubDirNode(p.last(), isDirectory, pathComp)) {
+                return -1;
+            }
+            return isDirectory ? journal.directory(p) : journal.file(p, pathComp);
+        }
     }
 
     /** Insert path component into a Path.
@@ -121,63 +294,217 @@ public class DirectoryTree {
         node.addDirComp(pathComp);
     }
 
-    /** Create a directory.
+    /** Returns the directory at a path, creating it and any missing
+        ancestors, or <code>null</code> if a file is in the way or the path is
+        removed meanwhile. Additions are appended to the journal; the last
+        entry appended is kept in <code>entry[0]</code>, to be committed by
+        the caller.
      */
-
-    private boolean createDir(Path directory) {
-        if(getNode(directory) != null) {
-            return true;
+    private DirectoryNode makeDirectory(Path directory, long[] entry) {
+        DirectoryNode curNode = this.root;
+        Path curPath = new Path();
+        try {
+            for(String component: directory) {
+                curPath = new Path(curPath, component);
+                DirectoryNode child = curNode.getChild(component);
+                if(child == null) {
+                    entry[0] = Math.max(entry[0], appendChild(curNode, curPath, true, null));
+                    child = curNode.getChild(component);
+                    if(child == null) {
+                        // removed meanwhile
+                        return null;
+                    }
+                }
+                if(!child.isDirectory()) {
+                    return null;
+                }
+                curNode = child;
+            }
         }
+        catch(FileNotFoundException e) {
+            return null;
+        }
+        return curNode;
+    }
 
-        Stack<Path> pstack = new Stack<Path>();
-        Path curPath = directory;
+    /** API for registration. Insert a file held by a storage server.
 
-        // Find out the stack of non-created directories
-        while(!curPath.isRoot()) {
-            DirectoryNode node = getNode(curPath);
+        @return <code>true</code> if success.
+                <code>false</code> if the file is a duplicate, or cannot be inserted.
+      */
+    public boolean insertPathStubs(Path file, PathComponents server, Scheduler scheduler){
+        return insertPathStubs(new Path[] { file }, server, scheduler).isEmpty();
+    }
 
-            if(node != null) {
-                break;
+    /** API for registration. Insert a chunk of files held by a storage server,
+        in one pass.
+
+        <p>
+        Files are usually listed directory by directory, so the directory
+        holding the last file is kept, and looked up again only when a file
+        is in another one. The chunk is journaled as a whole: it is in the
+        journal, and every one of its files can be found, once this returns.
+        The root, if listed, is skipped.
+
+        <p>
+        A file which the tree recovered from the journal is not a duplicate
+        if it is listed on the same server, or only on servers which have not
+        been heard from since the naming server restarted: such a server may
+        be the registering one, restarted on another port. The registering
+        server is then listed for the file, and its copy is kept.
+
+        @return The files which are duplicates, or cannot be inserted.
+        @throws NullPointerException If any of the files is <code>null</code>.
+      */
+    public List<Path> insertPathStubs(Path[] files, PathComponents server, Scheduler scheduler) {
+        ArrayList<Path> duplicates = new ArrayList<Path>();
+        long[] entry = new long[] { 0 };
+        Path cursorPath = null;
+        DirectoryNode cursor = null;
+        for(Path file: files) {
+            if(file.isRoot()) {
+                continue;
             }
-            else {
-                pstack.push(curPath);
+            Path parent = file.parent();
+            if(!parent.equals(cursorPath) || cursor != null && cursor.removed) {
+                cursor = makeDirectory(parent, entry);
+                cursorPath = parent;
             }
-            curPath = curPath.parent();
+            if(cursor == null || !insertPathStub(cursor, file, server, scheduler, entry)) {
+                duplicates.add(file);
+            }
+        }
+        if(entry[0] > 0) {
+            this.journal.commit(entry[0]);
         }
+        return duplicates;
+    }
+
+    /** Inserts one file of a chunk into its directory.
 
-        // Create all the directories
-        try{
-            while(!pstack.isEmpty()) {
-                curPath = pstack.pop();
-                getNode(curPath.parent()).addSubDirNode(curPath, true);
+        @return <code>false</code> if the file is a duplicate, or cannot be
+                inserted.
+      */
+    private boolean insertPathStub(DirectoryNode dirNode, Path file, PathComponents server,
+                                   Scheduler scheduler, long[] entry) {
+        try {
+            long added = appendChild(dirNode, file, false, server);
+            if(added >= 0) {
+                entry[0] = Math.max(entry[0], added);
+                return true;
             }
         }
         catch(FileNotFoundException e) {
             return false;
         }
+
+        DirectoryNode node = dirNode.getChild(file.last());
+        if(node == null || node.isDirectory()) {
+            return false;
+        }
+        synchronized(node) {
+            if(node.isStoredOn(server)) {
+                return true;
+            }
+            if(this.journal == null || !scheduler.onlyRecovered(node.getPathComps(scheduler))) {
+                return false;
+            }
+            // the tree first, so that a checkpoint taken meanwhile has it
+            node.addDirComp(server);
+            entry[0] = Math.max(entry[0], this.journal.replica(file, server));
+        }
         return true;
     }
 
-    /** API for registeration. Insert the stubs of storage server
+    /** API for re-registration. Removes files which a storage server no
+        longer holds. A file held by other servers too is kept, listed on
+        those only; a file held by no other is removed from the tree. Files
+        not listed on the server are skipped. The removals are in the journal
+        once this returns.
+      */
+    public void removePathStubs(Path[] files, PathComponents server) {
+        Journal journal = this.journal;
+        long entry = 0;
+        for(Path file: files) {
+            if(file.isRoot()) {
+                continue;
+            }
+            DirectoryNode dirNode = getNode(file.parent());
+            DirectoryNode node = dirNode == null ? null : dirNode.getChild(file.last());
+            if(node == null || node.isDirectory()) {
+                continue;
+            }
+            // the directory first, as when a node is removed
+            synchronized(dirNode) {
+                synchronized(node) {
+                    if(!node.isStoredOn(server)) {
+                        continue;
+                    }
+                    if(node.replicas.length > 1) {
+                        node.drop(server);
+                        if(journal != null) {
+                            entry = journal.drop(file, server);
+                        }
+                    }
+                    else if(dirNode.removeSubNode(node) && journal != null) {
+                        entry = journal.delete(file);
+                    }
+                }
+            }
+        }
+        if(entry > 0) {
+            journal.commit(entry);
+        }
+    }
+
+    /** Returns the files listed on a storage server. */
+    public List<Path> pathsStoredOn(PathComponents server) {
+        ArrayList<Path> files = new ArrayList<Path>();
+        collectPaths(this.root, new Path(), server, files);
+        return files;
+    }
 
-        @return <code>true</code> if success.
-                <code>false</code> if there is Path file already exists on the directory tree.
+    private void collectPaths(DirectoryNode node, Path path, PathComponents server,
+                              List<Path> files) {
+        if(node.isDirectory()) {
+            for(DirectoryNode son: node.getSons().values()) {
+                collectPaths(son, new Path(path, son.getName()), server, files);
+            }
+        }
+        else if(node.isStoredOn(server)) {
+            files.add(path);
+        }
+    }
+
+    /** Removes a node from the tree only, journaling the removal, without
+        deleting anything on the storage servers. Used to undo the insertion
+        of a file which could not be created.
+
+        @return <code>false</code> if there is no such node.
       */
-    public boolean insertPathStubs(Path file, Storage storage, Command command){
-        createDir(file.parent());
-        if(getNode(file.parent()).sons.containsKey(file)){
+    public boolean removeNode(Path p) {
+        if(p.isRoot()) {
             return false;
         }
-        else {
-            try {
-                insertNode(file, false);
-            }catch(FileNotFoundException e){
+        DirectoryNode dirNode = getNode(p.parent());
+        DirectoryNode node = dirNode == null ? null : dirNode.getChild(p.last());
+        if(node == null) {
+            return false;
+        }
+        Journal journal = this.journal;
+        long entry = 0;
+        synchronized(dirNode) {
+            if(!dirNode.removeSubNode(node)) {
                 return false;
             }
-            DirectoryNode node = getNode(file);
-            node.addDirComp(new PathComponents(storage, command));
-            return true;
+            if(journal != null) {
+                entry = journal.delete(p);
+            }
         }
+        if(journal != null) {
+            journal.commit(entry);
+        }
+        return true;
     }
 
     /** Delete the node of Path p.
@@ -206,46 +533,56 @@ public class DirectoryTree {
         }
 
 
-        // Deletion
-        ArrayList<PathComponents> res = getComps(p);
+        // Deletion. A copy of a file being made now is deleted too.
+        if(!dNode.isDirectory()) {
+            dNode.awaitCopy();
+        }
+        ArrayList<PathComponents> res = getComps(dNode);
         for(PathComponents pc: res) {
             pc.getCommandStub().delete(p);
         }
-        dirNode.sons.remove(p);
+        Journal journal = this.journal;
+        long entry = 0;
+        synchronized(dirNode) {
+            if(!dirNode.removeSubNode(dNode)) {
+                // deleted meanwhile
+                throw new FileNotFoundException();
+            }
+            if(journal != null) {
+                entry = journal.delete(p);
+            }
+        }
+        if(journal != null) {
+            journal.commit(entry);
+        }
         return true;
     }
 
     public ArrayList<PathComponents> getComps(Path path) {
-        DirectoryNode node = getNode(path);
+        return getComps(getNode(path));
+    }
 
-        if(node.isDirectory()) {
-            ArrayList<PathComponents> res = new ArrayList<PathComponents>();
-            for(Path sonpath: node.getSons().keySet()) {
-                res = mergePathComps(res, getComps(sonpath));
-            }
-            return res;
+    /** Returns the storage servers holding any file at or below a node. */
+    private ArrayList<PathComponents> getComps(DirectoryNode node) {
+        BitSet ids = new BitSet();
+        collectComps(node, ids);
+        ArrayList<PathComponents> res = new ArrayList<PathComponents>();
+        for(int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            res.add(this.scheduler.server(id));
         }
-        else {
-            return node.getPathComps();
-        }
-
+        return res;
     }
 
-    private ArrayList<PathComponents> mergePathComps(ArrayList<PathComponents> list1,
-                                    ArrayList<PathComponents> list2) {
-        ArrayList<PathComponents> res = new ArrayList<PathComponents>(list1);
-        for(PathComponents p2: list2) {
-            boolean exist = false;
-            for(PathComponents p1: list1) {
-                if(p1.getStorageStub().equals(p2.getStorageStub())) {
-                    exist = true;
-                    break;
-                }
+    private void collectComps(DirectoryNode node, BitSet ids) {
+        if(node.isDirectory()) {
+            for(DirectoryNode son: node.getSons().values()) {
+                collectComps(son, ids);
             }
-            if(!exist) {
-                res.add(p2);
+        }
+        else {
+            for(int id: node.replicas) {
+                ids.set(id);
             }
         }
-        return res;
     }
 }
@@ -0,0 +1,535 @@
+package naming.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.*;
+
+import common.*;
+import storage.*;
+import rmi.*;
+
+/** Write-ahead journal of the changes made to the directory tree.
+
+    <p>
+    Each change is appended as a record while the directory it affects is
+    locked, so that records for the same directory are in the order the
+    changes were made. The caller then commits the record before replying to
+    its client. Commits are grouped: one thread writes and forces to disk all
+    the records appended since the last commit, while the others wait for it,
+    so that concurrent changes share one <code>fsync</code>.
+
+    <p>
+    Records are framed with their length and a CRC32 checksum. On replay, a
+    record torn by a crash is discarded along with anything after it, and the
+    file is truncated to the last whole record.
+
+    <p>
+    Storage servers are journaled once in each file, when first referred to,
+    and records then name them by number.
+
+    <p>
+    So that the journal does not grow without bound, and the tree can be
+    restored without replaying its whole history, the journal is checkpointed
+    once it holds <code>naming.checkpointBytes</code> bytes (64 MiB by
+    default): new records go to <code><i>journal</i>.new</code>, an image of
+    the tree is written to <code><i>journal</i>.checkpoint</code> by
+    <code>Checkpoint</code>, and the new file then replaces the journal. The
+    tree may change while the image is written, and the image may then hold
+    changes also in the new file, so records are replayed such that applying
+    one twice has no further effect. A checkpoint interrupted by a crash is
+    finished on the next replay.
+ */
+public class Journal {
+    static final byte SERVER = 1;
+    static final byte DIRECTORY = 2;
+    static final byte FILE = 3;
+    static final byte REPLICA = 4;
+    static final byte EXCLUSIVE = 5;
+    static final byte DELETE = 6;
+    static final byte DROP = 7;
+
+    /* Threshold, in bytes, beyond which a checkpoint is started. */
+    static final long CHECKPOINT_BYTES = Long.getLong("naming.checkpointBytes", 64L << 20);
+
+    private final File file;
+    /* The file written, and the one it replaces while a checkpoint is being
+       made, or null. Only the thread writing a batch uses the channel. */
+    private FileChannel channel;
+    private FileChannel retired = null;
+    /* Bytes written to the file, and the size at which to start the next
+       checkpoint. */
+    private long length = 0;
+    private long nextCheckpoint = CHECKPOINT_BYTES;
+    /* Tree restored by the replay, which checkpoints are made of. */
+    private DirectoryTree tree = null;
+    /* Held while making a checkpoint or closing, and whether a checkpoint
+       thread is running or the journal is closed. */
+    private final Object checkpointing = new Object();
+    private boolean checkpointRunning = false;
+    private boolean closed = false;
+    /* Records appended and not yet written, and the sequence numbers of the
+       last record appended and the last written. */
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appended = 0;
+    private long written = 0;
+    /* Whether a thread is writing a batch, and the error which ended the
+       journal, if any. */
+    private boolean writing = false;
+    private IOException failure = null;
+    /* Storage servers by number, and their numbers by storage stub. */
+    private final ArrayList<PathComponents> servers = new ArrayList<PathComponents>();
+    private final HashMap<Storage, Integer> serverNumbers = new HashMap<Storage, Integer>();
+
+    /** Opens the journal, creating the file if it does not exist. The
+        journal must be replayed before anything is appended. */
+    public Journal(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /** Restores a tree from the last checkpoint and the journal, and
+        registers the storage servers they name with a scheduler as
+        recovered. Later checkpoints are made of this tree.
+
+        @return The number of journal records applied.
+     */
+    public int replay(DirectoryTree tree, Scheduler scheduler) throws IOException {
+        synchronized(this.checkpointing) {
+            this.tree = tree;
+            File image = sibling(".checkpoint");
+            if(image.exists()) {
+                Checkpoint.load(image, tree, scheduler);
+            }
+            int records = replay(this.channel, tree, scheduler);
+
+            File next = sibling(".new");
+            if(next.exists()) {
+                // A checkpoint was interrupted: the new file holds the latest
+                // records, and is written from now on.
+                FileChannel channel = FileChannel.open(next.toPath(), StandardOpenOption.READ,
+                                                       StandardOpenOption.WRITE);
+                records += replay(channel, tree, scheduler);
+                synchronized(this) {
+                    this.retired = this.channel;
+                    this.channel = channel;
+                }
+                checkpoint();
+            }
+            return records;
+        }
+    }
+
+    /** Applies every record in one file, truncating it to the last whole
+        record. */
+    private synchronized int replay(FileChannel channel, DirectoryTree tree, Scheduler scheduler)
+            throws IOException {
+        this.servers.clear();
+        this.serverNumbers.clear();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                                Channels.newInputStream(channel.position(0)), 1 << 16));
+        CRC32 crc = new CRC32();
+        long valid = 0;
+        int records = 0;
+        while(true) {
+            byte[] record;
+            try {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if(length <= 0 || length > channel.size() - valid) {
+                    break;
+                }
+                record = new byte[length];
+                in.readFully(record);
+                crc.reset();
+                crc.update(record, 0, length);
+                if((int) crc.getValue() != checksum) {
+                    break;
+                }
+                valid += 8 + length;
+            }
+            catch(EOFException e) {
+                break;
+            }
+            apply(new DataInputStream(new ByteArrayInputStream(record)), tree, scheduler);
+            records++;
+        }
+
+        channel.truncate(valid);
+        channel.position(valid);
+        this.length = valid;
+        return records;
+    }
+
+    /** Applies one record. */
+    private void apply(DataInputStream record, DirectoryTree tree, Scheduler scheduler)
+            throws IOException {
+        byte type = record.readByte();
+        if(type == SERVER) {
+            Storage storage = (Storage) Codec.readValue(record);
+            Command command = (Command) Codec.readValue(record);
+            PathComponents server = scheduler.addRecoveredServer(storage, command);
+            this.serverNumbers.put(storage, this.servers.size());
+            this.servers.add(server);
+            return;
+        }
+
+        Path path = Codec.readPath(record);
+        DirectoryNode node;
+        try {
+            switch(type) {
+                case DIRECTORY:
+                    tree.insertNode(path, true);
+                    break;
+                case FILE:
+                    int number = record.readInt();
+                    if(number < 0) {
+                        tree.insertNode(path, false);
+                    }
+                    else {
+                        tree.insertNode(path, this.servers.get(number));
+                    }
+                    break;
+                case REPLICA:
+                    node = tree.getNode(path);
+                    PathComponents server = this.servers.get(record.readInt());
+                    if(node != null && !node.isDirectory() && !node.isStoredOn(server)) {
+                        node.addDirComp(server);
+                    }
+                    break;
+                case EXCLUSIVE:
+                    node = tree.getNode(path);
+                    if(node != null && !node.isDirectory()) {
+                        node.keepOnly(this.servers.get(record.readInt()));
+                    }
+                    break;
+                case DROP:
+                    node = tree.getNode(path);
+                    if(node != null && !node.isDirectory()) {
+                        node.drop(this.servers.get(record.readInt()));
+                    }
+                    break;
+                case DELETE:
+                    node = tree.getNode(path);
+                    if(node != null && !path.isRoot()) {
+                        tree.getNode(path.parent()).removeSubNode(node);
+                    }
+                    break;
+                default:
+                    throw new IOException("unknown journal record " + type);
+            }
+        }
+        catch(FileNotFoundException e) {
+            // a record out of order; skipped
+        }
+    }
+
+    /** Appends a record of a new directory.
+
+        @return The record's sequence number, to pass to <code>commit</code>.
+     */
+    public long directory(Path path) {
+        return append(DIRECTORY, path, null);
+    }
+
+    /** Appends a record of a new file and the server holding it, which may
+        be <code>null</code>. */
+    public long file(Path path, PathComponents server) {
+        return append(FILE, path, server);
+    }
+
+    /** Appends a record of a new replica of a file. */
+    public long replica(Path path, PathComponents server) {
+        return append(REPLICA, path, server);
+    }
+
+    /** Appends a record of a file being left on one server only. */
+    public long exclusive(Path path, PathComponents server) {
+        return append(EXCLUSIVE, path, server);
+    }
+
+    /** Appends a record of a server no longer holding a file. */
+    public long drop(Path path, PathComponents server) {
+        return append(DROP, path, server);
+    }
+
+    /** Appends a record of a deleted file or directory. */
+    public long delete(Path path) {
+        return append(DELETE, path, null);
+    }
+
+    private synchronized long append(byte type, Path path, PathComponents server) {
+        try {
+            int number = -1;
+            if(server != null) {
+                Integer known = this.serverNumbers.get(server.getStorageStub());
+                if(known == null) {
+                    known = this.servers.size();
+                    ByteArrayOutputStream record = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(record);
+                    out.writeByte(SERVER);
+                    Codec.writeValue(out, server.getStorageStub());
+                    Codec.writeValue(out, server.getCommandStub());
+                    frame(record.toByteArray());
+                    this.serverNumbers.put(server.getStorageStub(), known);
+                    this.servers.add(server);
+                }
+                number = known;
+            }
+
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(type);
+            Codec.writePath(out, path);
+            if(type != DIRECTORY && type != DELETE) {
+                out.writeInt(number);
+            }
+            frame(record.toByteArray());
+        }
+        catch(IOException e) {
+            // writing to memory
+            throw new UncheckedIOException(e);
+        }
+        return this.appended;
+    }
+
+    /** Adds a record to the pending batch, with its length and checksum. */
+    private void frame(byte[] bytes) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        DataOutputStream out = new DataOutputStream(this.pending);
+        out.writeInt(bytes.length);
+        out.writeInt((int) crc.getValue());
+        out.write(bytes);
+        this.appended++;
+    }
+
+    /** Waits until the record with the given sequence number, and all before
+        it, are on disk. If no other thread is writing, this thread writes
+        every record appended so far.
+
+        @throws UncheckedIOException If the journal cannot be written. The
+                                     journal accepts no further commits.
+     */
+    public void commit(long sequence) {
+        byte[] batch;
+        long last;
+        FileChannel channel;
+        synchronized(this) {
+            while(true) {
+                if(this.failure != null) {
+                    throw new UncheckedIOException("journal failed", this.failure);
+                }
+                if(this.written >= sequence) {
+                    return;
+                }
+                if(!this.writing) {
+                    break;
+                }
+                try {
+                    wait();
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new UncheckedIOException(new InterruptedIOException());
+                }
+            }
+            this.writing = true;
+            batch = this.pending.toByteArray();
+            this.pending.reset();
+            last = this.appended;
+            channel = this.channel;
+        }
+
+        IOException error = write(channel, batch, last);
+        if(error != null) {
+            throw new UncheckedIOException("journal failed", error);
+        }
+
+        boolean start = false;
+        synchronized(this) {
+            if(this.length >= this.nextCheckpoint && !this.checkpointRunning && !this.closed) {
+                this.checkpointRunning = true;
+                this.nextCheckpoint = this.length + CHECKPOINT_BYTES;
+                start = true;
+            }
+        }
+        if(start) {
+            Thread thread = new Thread(() -> {
+                try {
+                    checkpoint();
+                }
+                catch(IOException | RuntimeException e) {
+                    // tried again once the journal has grown by as much again
+                }
+                finally {
+                    synchronized(this) {
+                        this.checkpointRunning = false;
+                    }
+                }
+            }, "journal checkpoint");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /** Writes a batch of records and forces it to disk, as the thread which
+        set <code>writing</code>, and then lets other threads write.
+
+        @return The error which ended the journal, or <code>null</code>.
+     */
+    private IOException write(FileChannel channel, byte[] batch, long last) {
+        IOException error = null;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(batch);
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        catch(IOException e) {
+            error = e;
+        }
+
+        synchronized(this) {
+            this.writing = false;
+            if(error == null) {
+                this.written = last;
+                if(channel == this.channel) {
+                    this.length += batch.length;
+                }
+            }
+            else {
+                this.failure = error;
+            }
+            notifyAll();
+        }
+        return error;
+    }
+
+    /** Writes a checkpoint of the tree, and starts the journal afresh.
+        Changes may be made and committed meanwhile.
+
+        @throws IOException If the checkpoint cannot be written. The journal
+                            is kept, and the checkpoint may be tried again.
+     */
+    public void checkpoint() throws IOException {
+        synchronized(this.checkpointing) {
+            if(this.tree == null) {
+                throw new IllegalStateException("journal not replayed");
+            }
+            if(this.closed) {
+                return;
+            }
+            if(this.retired == null) {
+                rotate();
+            }
+
+            File image = sibling(".checkpoint");
+            File temporary = sibling(".checkpoint.tmp");
+            Checkpoint.write(this.tree, temporary);
+            Files.move(temporary.toPath(), image.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+            syncDirectory();
+            Files.move(sibling(".new").toPath(), this.file.toPath(),
+                       StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            syncDirectory();
+            this.retired.close();
+            this.retired = null;
+        }
+    }
+
+    /** Switches to writing records to the new file. Records appended until
+        then are written to the old one, and servers are journaled afresh in
+        the new one. */
+    private void rotate() throws IOException {
+        FileChannel next = FileChannel.open(sibling(".new").toPath(), StandardOpenOption.CREATE,
+                                            StandardOpenOption.TRUNCATE_EXISTING,
+                                            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        byte[] batch;
+        long last;
+        FileChannel previous;
+        synchronized(this) {
+            try {
+                while(this.writing && this.failure == null) {
+                    wait();
+                }
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                next.close();
+                throw new InterruptedIOException();
+            }
+            if(this.failure != null) {
+                next.close();
+                throw new IOException("journal failed", this.failure);
+            }
+            this.writing = true;
+            batch = this.pending.toByteArray();
+            this.pending.reset();
+            last = this.appended;
+            previous = this.channel;
+            this.channel = next;
+            this.length = 0;
+            this.nextCheckpoint = CHECKPOINT_BYTES;
+            this.servers.clear();
+            this.serverNumbers.clear();
+        }
+
+        IOException error = write(previous, batch, last);
+        if(error != null) {
+            throw error;
+        }
+        this.retired = previous;
+    }
+
+    /** Forces renames in the journal's directory to disk, where the platform
+        allows it. */
+    private void syncDirectory() {
+        File directory = this.file.getAbsoluteFile().getParentFile();
+        try {
+            FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            }
+            finally {
+                channel.close();
+            }
+        }
+        catch(IOException e) {
+            // not supported for directories here
+        }
+    }
+
+    /** Returns the file with the journal's name and the given suffix. */
+    private File sibling(String suffix) {
+        return new File(this.file.getPath() + suffix);
+    }
+
+    /** Writes any records not yet committed and closes the journal, after
+        any checkpoint being made. */
+    public void close() throws IOException {
+        synchronized(this.checkpointing) {
+            long last;
+            synchronized(this) {
+                last = this.appended;
+                this.closed = true;
+            }
+            try {
+                commit(last);
+            }
+            catch(UncheckedIOException e) {
+                // already reported to the callers which committed
+            }
+            if(this.retired != null) {
+                this.retired.close();
+            }
+            this.channel.close();
+        }
+    }
+}
@@ -13,12 +13,28 @@ import storage.*;
     Storage
     Command
     Path[]
+
+    <p>
+    Each server has a number, given by the <code>Scheduler</code>, by which
+    directory nodes list the servers holding a file.
   */
 public class PathComponents {
+    /* The list of no servers. */
+    static final int[] NONE = new int[0];
+
+    final int id;
+    /* The list of this server only, shared by the files held by no other. */
+    final int[] only;
     Storage storageStub = null;
     Command commandStub = null;
+    /* The generation and checksum of the last manifest of its files which
+       the server sent, or generation 0. Guarded by the Scheduler. */
+    long generation = 0;
+    long checksum = 0;
 
-    public PathComponents(Storage storageStub, Command commandStub) {
+    PathComponents(int id, Storage storageStub, Command commandStub) {
+        this.id = id;
+        this.only = new int[] { id };
         this.storageStub = storageStub;
         this.commandStub = commandStub;
     }
@@ -1,6 +1,7 @@
 package naming.util;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 import common.*;
@@ -12,31 +13,56 @@ import storage.*;
     Scheduler of NamingServer for Storage servers.
   */
 public class Scheduler {
-    /* Sorted by file numbers */
-    ArrayList<PathComponents> servers = new ArrayList<PathComponents>();
-    static Random rand = new Random();
+    /* Indexed by server number. Copied on registration, which is rare, so
+       that picking a server takes no lock. Servers are never removed. */
+    CopyOnWriteArrayList<PathComponents> servers = new CopyOnWriteArrayList<PathComponents>();
+    /* Servers recovered from the journal which have not registered since. */
+    HashSet<PathComponents> recovered = new HashSet<PathComponents>();
+    /* Servers which have registered since the naming server started: those
+       new files are placed on, and files copied to. */
+    CopyOnWriteArrayList<PathComponents> live = new CopyOnWriteArrayList<PathComponents>();
 
     /** Get a Storage server to create file or send to client
 
+        <p>
+        A server recovered from the journal is not picked until it registers
+        again, since it may no longer be running.
+
         @throw IllegalStateException, if no storage server connecting to the naming server.
       */
     public PathComponents pickStorageServer() throws IllegalStateException {
-        if(this.servers.isEmpty()) {
+        List<PathComponents> registered = this.live;
+        if(registered.isEmpty()) {
             throw new IllegalStateException();
         }
+        return pickStorageServer(registered);
+    }
 
-        PathComponents serverStubs = this.servers.get(this.rand.nextInt(this.servers.size()));
+    /** Picks one of the given servers at random. Each thread draws from its
+        own generator, so concurrent callers never wait on each other. */
+    public static PathComponents pickStorageServer(List<PathComponents> fileservers) {
+        PathComponents serverStubs = fileservers.get(
+                                        ThreadLocalRandom.current().nextInt(fileservers.size()));
         return serverStubs;
     }
 
-    public static synchronized PathComponents pickStorageServer(ArrayList<PathComponents> fileservers) {
-        PathComponents serverStubs = fileservers.get(rand.nextInt(fileservers.size()));
-        return serverStubs;
+    /** Returns the server with the given number. */
+    public PathComponents server(int id) {
+        return this.servers.get(id);
+    }
+
+    /** Returns the servers with the given numbers. */
+    public List<PathComponents> servers(int[] ids) {
+        PathComponents[] servers = new PathComponents[ids.length];
+        for(int i = 0; i < ids.length; i++) {
+            servers[i] = this.servers.get(ids[i]);
+        }
+        return Arrays.asList(servers);
     }
 
-    public PathComponents pickCopyStorageServer(ArrayList<PathComponents> fileservers) {
+    public PathComponents pickCopyStorageServer(List<PathComponents> fileservers) {
         ArrayList<PathComponents> available = new ArrayList<PathComponents>();
-        for(PathComponents p: this.servers) {
+        for(PathComponents p: this.live) {
             boolean exist = false;
             for(PathComponents fs: fileservers) {
                 if(fs.getStorageStub().equals(p.getStorageStub())
@@ -59,15 +85,132 @@ public class Scheduler {
 
     /** API for registration. Add a Storage server.
 
+        <p>
+        A server recovered from the journal may register once more, when it
+        restarts.
+
+        @return The server's entry.
         @throw IllegalStateException, if the storage server is already registered.
       */
-    public void addStorageServer(Storage storage, Command command) {
+    public synchronized PathComponents addStorageServer(Storage storage, Command command) {
         for(PathComponents s: this.servers) {
+            if(this.recovered.contains(s) && s.getStorageStub().equals(storage)
+                    && s.getCommandStub().equals(command)) {
+                this.recovered.remove(s);
+                this.live.add(s);
+                return s;
+            }
             if(s.getStorageStub().equals(storage)
                     || s.getCommandStub().equals(command)) {
                 throw new IllegalStateException();
             }
         }
-        this.servers.add(new PathComponents(storage, command));
+        PathComponents server = new PathComponents(this.servers.size(), storage, command);
+        this.servers.add(server);
+        this.live.add(server);
+        return server;
+    }
+
+    /** API for registration again. Returns the entry of a server which
+        registers all its files once more with the same stubs, added as by
+        <code>addStorageServer</code> if it is not known. The manifest it
+        sent before is forgotten.
+
+        @return The server's entry.
+        @throw IllegalStateException, if another server is registered with
+               either stub.
+      */
+    public synchronized PathComponents replaceStorageServer(Storage storage, Command command) {
+        for(PathComponents s: this.servers) {
+            if(s.getStorageStub().equals(storage) && s.getCommandStub().equals(command)) {
+                if(this.recovered.remove(s)) {
+                    this.live.add(s);
+                }
+                s.generation = 0;
+                s.checksum = 0;
+                return s;
+            }
+        }
+        return addStorageServer(storage, command);
+    }
+
+    /** Returns the entry of a registered server, or <code>null</code> if the
+        server has not registered since the naming server started. */
+    public synchronized PathComponents registered(Storage storage) {
+        for(PathComponents s: this.servers) {
+            if(s.getStorageStub().equals(storage)) {
+                return this.recovered.contains(s) ? null : s;
+            }
+        }
+        return null;
+    }
+
+    /** API for re-registration. Returns the entry of a server which restarts
+        with the manifest it last sent, so that it need send only the changes
+        to its files since.
+
+        <p>
+        A server recovered from the journal is never matched, since manifests
+        are not journaled.
+
+        @return The server's entry, or <code>null</code> if the server is not
+                known with those stubs and that manifest.
+      */
+    public synchronized PathComponents reregister(Storage storage, Command command,
+                                                  long generation, long checksum) {
+        for(PathComponents s: this.servers) {
+            if(s.getStorageStub().equals(storage) && s.getCommandStub().equals(command)) {
+                if(s.generation == 0 || s.generation != generation || s.checksum != checksum) {
+                    return null;
+                }
+                return s;
+            }
+        }
+        return null;
+    }
+
+    /** Remembers the manifest a registered server has sent.
+
+        @throw IllegalStateException, if the storage server is not registered.
+      */
+    public synchronized void acceptManifest(Storage storage, long generation, long checksum) {
+        PathComponents server = registered(storage);
+        if(server == null) {
+            throw new IllegalStateException("storage server not registered");
+        }
+        server.generation = generation;
+        server.checksum = checksum;
+    }
+
+    /** Returns the generation of the manifest a registered server has sent,
+        or 0 if there is none or the server is not registered. */
+    public synchronized long manifestGeneration(Storage storage) {
+        PathComponents server = registered(storage);
+        return server == null ? 0 : server.generation;
+    }
+
+    /** Returns whether every one of the given servers was recovered from
+        the journal and has not registered since. */
+    public synchronized boolean onlyRecovered(List<PathComponents> fileservers) {
+        for(PathComponents p: fileservers) {
+            if(!this.recovered.contains(p)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Adds a Storage server named in the journal, which need not register
+        again. */
+    public synchronized PathComponents addRecoveredServer(Storage storage, Command command) {
+        for(PathComponents s: this.servers) {
+            if(s.getStorageStub().equals(storage)) {
+                return s;
+            }
+        }
+        PathComponents server = new PathComponents(this.servers.size(), storage, command);
+        this.servers.add(server);
+        this.recovered.add(server);
+        return server;
     }
 }
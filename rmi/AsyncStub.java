@@ -0,0 +1,150 @@
+package rmi;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+/** Asynchronous view of a remote interface.
+
+    <p>
+    A call is written as a lambda which calls one method of the interface on
+    the object it is given, for example
+    <code>async.call(s -> s.read(file, offset, length))</code>. The lambda is
+    run at once against a recording object, which notes the method and its
+    arguments; the call is then sent to the skeleton, and a future is
+    returned without waiting for the result. Many calls can thus be in flight
+    from a single thread. They share the stub connections of the
+    <code>ConnectionPool</code>.
+
+    <p>
+    The arguments are encoded before <code>call</code> returns, so the caller
+    may reuse an argument array as soon as it has the future.
+
+    <p>
+    An asynchronous view may also be made of an object which is not a stub.
+    Calls are then made directly on the object, and return completed futures.
+
+    <p>
+    Asynchronous views are created by <code>Stub.createAsync</code> and
+    <code>Stub.async</code>.
+ */
+public class AsyncStub<T>
+{
+    /** A call of one method of the remote interface. */
+    public interface Call<T, R>
+    {
+        R invoke(T stub) throws Exception;
+    }
+
+    /** A call of one method of the remote interface with no result. */
+    public interface Task<T>
+    {
+        void invoke(T stub) throws Exception;
+    }
+
+    private final Class<T> intf;
+    /* The stub's handler, or null if calls are made on a local object. */
+    private final RMIInvocationHandler handler;
+    private final T target;
+    private final CallRecorder<T> recorder;
+    private final MethodTable table;
+
+    AsyncStub(Class<T> intf, T target)
+    {
+        this.intf = intf;
+        this.target = target;
+        this.table = MethodTable.forInterface(intf);
+        this.handler = handlerOf(target);
+        this.recorder = new CallRecorder<T>(intf);
+    }
+
+    /** Sends a call and returns at once.
+
+        @param call A lambda calling exactly one method of the remote interface
+                    on the object it is given.
+        @return A future completed with the method's result. It fails with the
+                exception thrown by the method, or with an
+                <code>RMIException</code> if the call cannot be completed.
+        @throws IllegalArgumentException If the lambda does not call exactly
+                                         one method of the remote interface.
+        @throws NullPointerException If <code>call</code> is <code>null</code>.
+     */
+    public <R> CompletableFuture<R> call(Call<T, R> call)
+    {
+        if(call == null) {
+            throw new NullPointerException();
+        }
+
+        CallRecorder.Invocation invocation = this.recorder.record(call);
+        Method method = invocation.method;
+        Object[] args = invocation.args;
+
+        CompletableFuture<Object> result;
+        if(this.handler != null) {
+            result = this.handler.invokeAsync(this.table.ordinal(method), args);
+        }
+        else {
+            result = invokeLocal(this.target, method, args);
+        }
+
+        @SuppressWarnings("unchecked")
+        CompletableFuture<R> typed = (CompletableFuture<R>) (CompletableFuture<?>) result;
+        return typed;
+    }
+
+    /** Sends a call of a method with no result and returns at once.
+
+        @see #call(Call)
+     */
+    public CompletableFuture<Void> run(Task<T> task)
+    {
+        if(task == null) {
+            throw new NullPointerException();
+        }
+        return call(stub -> {
+            task.invoke(stub);
+            return null;
+        }).thenApply(value -> null);
+    }
+
+    /** Returns the interface whose methods are called. */
+    public Class<T> getInterface()
+    {
+        return this.intf;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "async " + this.target;
+    }
+
+    /** Returns the handler of a stub, or <code>null</code> if the object is
+        not a stub. */
+    static RMIInvocationHandler handlerOf(Object target)
+    {
+        if(target instanceof GeneratedStub) {
+            return ((GeneratedStub) target).handler;
+        }
+        if(Proxy.isProxyClass(target.getClass())
+                && Proxy.getInvocationHandler(target) instanceof RMIInvocationHandler) {
+            return (RMIInvocationHandler) Proxy.getInvocationHandler(target);
+        }
+        return null;
+    }
+
+    /** Calls a method directly on a local object. */
+    static CompletableFuture<Object> invokeLocal(Object target, Method method, Object[] args)
+    {
+        CompletableFuture<Object> result = new CompletableFuture<Object>();
+        try {
+            result.complete(method.invoke(target, args));
+        }
+        catch(InvocationTargetException e) {
+            result.completeExceptionally(e.getTargetException());
+        }
+        catch(IllegalAccessException e) {
+            result.completeExceptionally(new RMIException(e));
+        }
+        return result;
+    }
+}
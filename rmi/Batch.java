@@ -0,0 +1,215 @@
+package rmi;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Group of calls to one skeleton, sent in a single request.
+
+    <p>
+    Calls are added as lambdas, as with <code>AsyncStub</code>, and each
+    returns a future. Nothing is sent until <code>send</code> is called; the
+    skeleton then runs the calls one after another, in the order in which they
+    were added, and answers all of them in one response. A call which throws
+    does not stop the calls after it: each future is completed with its own
+    result or exception.
+
+    <p>
+    The arguments of each call are encoded when the call is added, so the
+    caller may reuse them at once.
+
+    <p>
+    A batch made for an object which is not a stub runs its calls directly on
+    the object when it is sent.
+
+    <p>
+    Batches are created by <code>Stub.batch</code>. A batch is not thread-safe,
+    and may be sent only once.
+ */
+public class Batch<T>
+{
+    private final Class<T> intf;
+    /* The stub's handler, or null if calls are made on a local object. */
+    private final RMIInvocationHandler handler;
+    private final T target;
+    private final CallRecorder<T> recorder;
+    private final MethodTable table;
+
+    /* The request, with the call id, time left and call count left
+       blank. */
+    private final Protocol.FrameBuffer request = new Protocol.FrameBuffer();
+    /* The calls recorded, for a local object. */
+    private final List<CallRecorder.Invocation> invocations =
+                                    new ArrayList<CallRecorder.Invocation>();
+    private final List<CompletableFuture<Object>> results =
+                                    new ArrayList<CompletableFuture<Object>>();
+    private boolean sent = false;
+    /* Set once a call to a method marked NoDeadline is added. */
+    private boolean noDeadline = false;
+
+    Batch(Class<T> intf, T target)
+    {
+        this.intf = intf;
+        this.target = target;
+        this.table = MethodTable.forInterface(intf);
+        this.handler = AsyncStub.handlerOf(target);
+        this.recorder = new CallRecorder<T>(intf);
+
+        try {
+            this.request.data.writeInt(0);
+            this.request.data.writeInt(0);
+            this.request.data.writeInt(Protocol.BATCH);
+            this.request.data.writeInt(0);
+        }
+        catch(IOException e) {
+            // not thrown by a byte array
+            throw new Error(e);
+        }
+    }
+
+    /** Adds a call to the batch.
+
+        @param call A lambda calling exactly one method of the remote interface
+                    on the object it is given.
+        @return A future completed with the method's result once the batch has
+                been sent and answered. It fails with the exception thrown by
+                the method, or with an <code>RMIException</code> if the batch
+                cannot be completed or the arguments cannot be encoded.
+        @throws IllegalArgumentException If the lambda does not call exactly
+                                         one method of the remote interface.
+        @throws IllegalStateException If the batch has already been sent.
+        @throws NullPointerException If <code>call</code> is <code>null</code>.
+     */
+    public <R> CompletableFuture<R> call(AsyncStub.Call<T, R> call)
+    {
+        if(call == null) {
+            throw new NullPointerException();
+        }
+        if(this.sent) {
+            throw new IllegalStateException("batch already sent");
+        }
+
+        CallRecorder.Invocation invocation = this.recorder.record(call);
+        CompletableFuture<Object> result = new CompletableFuture<Object>();
+
+        if(this.handler == null) {
+            this.invocations.add(invocation);
+            this.results.add(result);
+        }
+        else {
+            int mark = this.request.size();
+            int ordinal = this.table.ordinal(invocation.method);
+            try {
+                Connection.encodeCall(this.request.data, ordinal, invocation.args);
+                this.results.add(result);
+                this.noDeadline |= ordinal >= 0 && this.table.noDeadline[ordinal];
+            }
+            catch(IOException e) {
+                // The call is left out of the batch.
+                this.request.truncate(mark);
+                result.completeExceptionally(new RMIException(e));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        CompletableFuture<R> typed = (CompletableFuture<R>) (CompletableFuture<?>) result;
+        return typed;
+    }
+
+    /** Adds a call of a method with no result to the batch.
+
+        @see #call(AsyncStub.Call)
+     */
+    public CompletableFuture<Void> run(AsyncStub.Task<T> task)
+    {
+        if(task == null) {
+            throw new NullPointerException();
+        }
+        return call(stub -> {
+            task.invoke(stub);
+            return null;
+        }).thenApply(value -> null);
+    }
+
+    /** Returns the number of calls in the batch. */
+    public int size()
+    {
+        return this.results.size();
+    }
+
+    /** Sends the batch.
+
+        @return A future completed once every call in the batch has completed,
+                whether or not it threw. It fails only if the batch could not
+                be sent or answered.
+        @throws IllegalStateException If the batch has already been sent.
+     */
+    public CompletableFuture<Void> send()
+    {
+        if(this.sent) {
+            throw new IllegalStateException("batch already sent");
+        }
+        this.sent = true;
+
+        if(this.results.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        if(this.handler == null) {
+            for(int i = 0; i < this.results.size(); i++) {
+                CallRecorder.Invocation invocation = this.invocations.get(i);
+                forward(AsyncStub.invokeLocal(this.target, invocation.method, invocation.args),
+                        this.results.get(i));
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        this.request.setInt(12, this.results.size());
+        return this.handler.invokeAsync(this.request, this.noDeadline).<Void>handle((value, error) -> {
+            if(error == null && !(value instanceof Object[])) {
+                error = new RMIException("skeleton does not support batches");
+            }
+            if(error == null && ((Object[]) value).length != this.results.size()) {
+                error = new RMIException("batch response has the wrong number of results");
+            }
+            if(error != null) {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                for(CompletableFuture<Object> result: this.results) {
+                    result.completeExceptionally(cause);
+                }
+                throw new CompletionException(cause);
+            }
+
+            Object[] values = (Object[]) value;
+            for(int i = 0; i < values.length; i++) {
+                if(values[i] instanceof InvocationTargetException) {
+                    this.results.get(i).completeExceptionally(
+                        ((InvocationTargetException) values[i]).getTargetException());
+                }
+                else {
+                    this.results.get(i).complete(values[i]);
+                }
+            }
+            return null;
+        });
+    }
+
+    /** Returns the interface whose methods are called. */
+    public Class<T> getInterface()
+    {
+        return this.intf;
+    }
+
+    private static void forward(CompletableFuture<Object> from, CompletableFuture<Object> to)
+    {
+        from.whenComplete((value, error) -> {
+            if(error == null) {
+                to.complete(value);
+            }
+            else {
+                to.completeExceptionally(error);
+            }
+        });
+    }
+}
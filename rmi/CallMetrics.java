@@ -0,0 +1,159 @@
+package rmi;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Counts and latencies of the calls made to the methods of one remote
+    interface.
+
+    <p>
+    For each method, the number of calls, the number which failed, the bytes
+    received and sent, and two latency histograms are kept: the time spent
+    encoding and decoding the call (serialization), and the time spent
+    waiting for the method (execution). On a skeleton, execution is the time
+    the method ran for, and bytes in are the bytes of the requests. For
+    stubs, execution is the time from sending the request to receiving the
+    response, and bytes in are the bytes of the responses. Batches sent by
+    stubs are counted together under <code>BATCH_METHOD</code>.
+
+    <p>
+    All counters are striped, so that recording from many threads at once does
+    not contend. Snapshots may be taken at any time.
+
+    <p>
+    Each skeleton has its own metrics - see <code>Skeleton.getMetrics</code>.
+    The stubs in a JVM share one set per interface - see
+    <code>Stub.metrics</code>.
+ */
+public class CallMetrics {
+    /** Name under which the batches sent by stubs are counted. */
+    public static final String BATCH_METHOD = "batch";
+
+    private static final ConcurrentHashMap<Class<?>, CallMetrics> stubs =
+                                    new ConcurrentHashMap<Class<?>, CallMetrics>();
+
+    final MethodTable table;
+    /* One entry per method, by ordinal, and a last one for batches. */
+    private final Entry[] entries;
+
+    CallMetrics(MethodTable table) {
+        this.table = table;
+        this.entries = new Entry[table.size() + 1];
+        for(int i = 0; i < this.entries.length; i++) {
+            this.entries[i] = new Entry();
+        }
+    }
+
+    /** Returns the metrics shared by the stubs for an interface. */
+    static CallMetrics forStubs(Class<?> intf) {
+        CallMetrics metrics = stubs.get(intf);
+        if(metrics == null) {
+            stubs.putIfAbsent(intf, new CallMetrics(MethodTable.forInterface(intf)));
+            metrics = stubs.get(intf);
+        }
+        return metrics;
+    }
+
+    /** Records one call.
+
+        @param ordinal The method's ordinal in the interface's method table, or
+                       <code>Protocol.BATCH</code> for a batch. Other values
+                       are ignored.
+     */
+    void record(int ordinal, boolean failed, long bytesIn, long bytesOut,
+                long serializationNanos, long executionNanos) {
+        Entry entry;
+        if(ordinal == Protocol.BATCH) {
+            entry = this.entries[this.entries.length - 1];
+        }
+        else if(ordinal >= 0 && ordinal < this.entries.length - 1) {
+            entry = this.entries[ordinal];
+        }
+        else {
+            return;
+        }
+
+        entry.calls.increment();
+        if(failed) {
+            entry.errors.increment();
+        }
+        entry.bytesIn.add(bytesIn);
+        entry.bytesOut.add(bytesOut);
+        entry.serialization.record(serializationNanos);
+        entry.execution.record(executionNanos);
+    }
+
+    /** Returns the interface whose calls are counted. */
+    public Class<?> getInterface() {
+        return this.table.intf;
+    }
+
+    /** Returns the metrics of every method called at least once, by
+        signature, with batches last. */
+    public List<MethodSnapshot> snapshot() {
+        List<MethodSnapshot> snapshots = new ArrayList<MethodSnapshot>();
+        for(int i = 0; i < this.entries.length; i++) {
+            Entry entry = this.entries[i];
+            if(entry.calls.sum() == 0) {
+                continue;
+            }
+            String method = i < this.table.size() ? this.table.signature(i) : BATCH_METHOD;
+            snapshots.add(new MethodSnapshot(method, entry));
+        }
+        return snapshots;
+    }
+
+    /** Returns one line per method called, as given by
+        <code>MethodSnapshot.toString</code>. */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(this.table.intf.getName());
+        sb.append('\n');
+        for(MethodSnapshot snapshot: snapshot()) {
+            sb.append("  ").append(snapshot).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /** The metrics of one method at one moment. */
+    public static class MethodSnapshot {
+        /** The method's signature, as in <code>MethodTable</code>, or
+            <code>BATCH_METHOD</code>. */
+        public final String method;
+        public final long calls;
+        public final long errors;
+        public final long bytesIn;
+        public final long bytesOut;
+        public final LatencyHistogram.Snapshot serialization;
+        public final LatencyHistogram.Snapshot execution;
+
+        MethodSnapshot(String method, Entry entry) {
+            this.method = method;
+            this.calls = entry.calls.sum();
+            this.errors = entry.errors.sum();
+            this.bytesIn = entry.bytesIn.sum();
+            this.bytesOut = entry.bytesOut.sum();
+            this.serialization = entry.serialization.snapshot();
+            this.execution = entry.execution.snapshot();
+        }
+
+        @Override
+        public String toString() {
+            return this.method + " calls=" + this.calls + " errors=" + this.errors
+                    + " in=" + this.bytesIn + "B out=" + this.bytesOut + "B"
+                    + " serialization[" + this.serialization + "]"
+                    + " execution[" + this.execution + "]";
+        }
+    }
+
+    /** The counters of one method. */
+    private static class Entry {
+        final LongAdder calls = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LatencyHistogram serialization = new LatencyHistogram();
+        final LatencyHistogram execution = new LatencyHistogram();
+    }
+}
@@ -0,0 +1,97 @@
+package rmi;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+/** Finds out which method of a remote interface a lambda calls.
+
+    <p>
+    The lambda is run against a proxy which notes the method called and its
+    arguments, and returns a default value of the method's return type. Used
+    by <code>AsyncStub</code> and <code>Batch</code>.
+ */
+class CallRecorder<T>
+{
+    /** A method call noted by the recorder. */
+    static class Invocation
+    {
+        final Method method;
+        final Object[] args;
+
+        Invocation(Method method, Object[] args)
+        {
+            this.method = method;
+            this.args = args;
+        }
+    }
+
+    /* The call noted on the current thread. */
+    private static final ThreadLocal<Invocation> recorded = new ThreadLocal<Invocation>();
+    /* Values returned for primitive return types. */
+    private static final Map<Class<?>, Object> defaults = new HashMap<Class<?>, Object>();
+
+    static {
+        defaults.put(boolean.class, false);
+        defaults.put(byte.class, (byte) 0);
+        defaults.put(short.class, (short) 0);
+        defaults.put(char.class, (char) 0);
+        defaults.put(int.class, 0);
+        defaults.put(long.class, 0L);
+        defaults.put(float.class, 0f);
+        defaults.put(double.class, 0d);
+    }
+
+    private final T proxy;
+
+    CallRecorder(Class<T> intf)
+    {
+        @SuppressWarnings("unchecked")
+        T proxy = (T) Proxy.newProxyInstance(intf.getClassLoader(), new Class<?>[] {intf},
+                                             new Handler());
+        this.proxy = proxy;
+    }
+
+    /** Runs the lambda against the recording proxy.
+
+        @return The method the lambda called, and its arguments.
+        @throws IllegalArgumentException If the lambda does not call exactly one
+                                         method of the interface, or throws.
+     */
+    Invocation record(AsyncStub.Call<T, ?> call)
+    {
+        recorded.remove();
+        try {
+            call.invoke(this.proxy);
+        }
+        catch(IllegalArgumentException e) {
+            recorded.remove();
+            throw e;
+        }
+        catch(Exception e) {
+            recorded.remove();
+            throw new IllegalArgumentException("call failed while being recorded", e);
+        }
+
+        Invocation invocation = recorded.get();
+        recorded.remove();
+        if(invocation == null) {
+            throw new IllegalArgumentException("no remote method called");
+        }
+        return invocation;
+    }
+
+    private static class Handler implements InvocationHandler
+    {
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            if(method.getDeclaringClass() == Object.class) {
+                throw new IllegalArgumentException(method.getName() + " is not a remote method");
+            }
+            if(recorded.get() != null) {
+                throw new IllegalArgumentException("more than one remote method called");
+            }
+            recorded.set(new Invocation(method, args == null ? new Object[0] : args));
+            return defaults.get(method.getReturnType());
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package rmi;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/** One connection served by a <code>SelectorThread</code>.
+
+    <p>
+    Bytes are read by the selector thread as they arrive. Each complete frame
+    is decoded in place into a request, which is handed to the skeleton's
+    executor. Workers write
+    their responses straight to the channel with a gathering write of the
+    length prefix and the body; whatever the socket cannot take at once is
+    queued, and the selector thread finishes writing it when the channel
+    becomes writable. See <code>Protocol</code> for the message layout.
+ */
+public class ChannelConnection<T> {
+    /* Initial size of the read buffer. Kept small, since most connections
+       are idle and most requests are short. */
+    static final int INITIAL_BUFFER = 512;
+    /* A read buffer grown past this size is given back once it empties. */
+    static final int RETAINED_BUFFER = 64 * 1024;
+
+    Skeleton<T> skeleton;
+    SelectorThread<T> loop;
+    SocketChannel channel;
+    SelectionKey key;
+    /* Maps the ordinals of the stub's method table to the skeleton's, or null
+       until the handshake has been read. */
+    int[] ordinals = null;
+    ByteBuffer input = ByteBuffer.allocate(INITIAL_BUFFER);
+    /* Responses not yet taken by the socket. Guarded by writeLock. */
+    ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+    final ReentrantLock writeLock = new ReentrantLock();
+    /* Calls handed to the executor whose responses have not been queued. */
+    AtomicInteger inFlight = new AtomicInteger();
+    /* Set once no more calls will be read. */
+    volatile boolean inputClosed = false;
+    volatile boolean closed = false;
+
+    public ChannelConnection(Skeleton<T> skeleton, SelectorThread<T> loop, SocketChannel channel) {
+        this.skeleton = skeleton;
+        this.loop = loop;
+        this.channel = channel;
+    }
+
+    /** Reads what the channel has and dispatches every complete request.
+        Called by the selector thread only. */
+    void read() {
+        int n;
+        try {
+            n = this.channel.read(this.input);
+        }
+        catch(IOException e) {
+            if(!this.inputClosed) {
+                this.skeleton.service_error(new RMIException("Exception thrown in service response.", e));
+            }
+            close();
+            return;
+        }
+        if(n < 0) {
+            // The stub has closed the connection.
+            shutdownInput();
+            return;
+        }
+
+        this.input.flip();
+        try {
+            while(this.ordinals == null ? handshake() : nextFrame()) {
+            }
+        }
+        catch(IOException e) {
+            // The stream is corrupt, or the handshake failed.
+            if(this.ordinals != null) {
+                this.skeleton.service_error(new RMIException("Exception thrown in service response.", e));
+            }
+            close();
+            return;
+        }
+        this.input.compact();
+
+        if(this.input.position() == 0 && this.input.capacity() > RETAINED_BUFFER) {
+            this.input = ByteBuffer.allocate(INITIAL_BUFFER);
+        }
+    }
+
+    /** Answers the handshake, if all of it has arrived.
+
+        @return <code>true</code> if the handshake was read.
+     */
+    private boolean handshake() throws IOException {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(
+                this.input.array(), this.input.arrayOffset() + this.input.position(),
+                this.input.remaining());
+        ByteArrayOutputStream answer = new ByteArrayOutputStream();
+        try {
+            this.ordinals = Protocol.accept(new DataInputStream(bytes),
+                                            new DataOutputStream(answer), this.skeleton.table);
+        }
+        catch(EOFException e) {
+            // Only part of the handshake has arrived.
+            ensureCapacity(this.input.remaining() + INITIAL_BUFFER);
+            return false;
+        }
+        this.input.position(this.input.limit() - bytes.available());
+        write(new ByteBuffer[] { ByteBuffer.wrap(answer.toByteArray()) });
+        return true;
+    }
+
+    /** Dispatches the next request, if all of it has arrived.
+
+        @return <code>true</code> if a request was dispatched.
+     */
+    private boolean nextFrame() throws IOException {
+        if(this.input.remaining() < 4) {
+            return false;
+        }
+        int length = this.input.getInt(this.input.position());
+        if(length < 0 || length > Protocol.MAX_FRAME - 4) {
+            throw new StreamCorruptedException("bad frame length " + length);
+        }
+        if(this.input.remaining() < 4 + length) {
+            ensureCapacity(4 + length);
+            return false;
+        }
+
+        // The request is decoded from the read buffer in place.
+        this.input.getInt();
+        int start = this.input.arrayOffset() + this.input.position();
+        Request request = Request.decode(new Protocol.FrameInput(
+                new ByteArrayInputStream(this.input.array(), start, length), length));
+        this.input.position(this.input.position() + length);
+        dispatch(request);
+        return true;
+    }
+
+    /** Grows the read buffer, which is in read mode, to hold at least
+        <code>size</code> bytes. */
+    private void ensureCapacity(int size) {
+        if(this.input.capacity() >= size) {
+            return;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(size, this.input.capacity() * 2));
+        larger.put(this.input);
+        larger.flip();
+        this.input = larger;
+    }
+
+    private void dispatch(final Request request) {
+        this.inFlight.incrementAndGet();
+        try {
+            this.skeleton.executor.execute(new Runnable() {
+                public void run() {
+                    serve(request);
+                }
+            });
+        }
+        catch(RejectedExecutionException e) {
+            try {
+                write(this.skeleton.overloaded(request).toBuffers());
+            }
+            catch(IOException ep) {
+                close();
+            }
+            finally {
+                completed();
+            }
+        }
+    }
+
+    /** Executes a single call on a worker thread, and writes its response
+        unless the method has deferred it. */
+    private void serve(Request request) {
+        Protocol.FrameBuffer frame;
+        try {
+            frame = this.skeleton.serve(request, this.ordinals, this::respond);
+        }
+        catch(IOException e) {
+            this.skeleton.service_error(new RMIException("Exception thrown in service response.", e));
+            respond(null);
+            return;
+        }
+        if(frame != null) {
+            respond(frame);
+        }
+    }
+
+    /** Writes the response to a call, and counts the call as answered. A
+        partly written response leaves the stream unusable, so the connection
+        is dropped if the response cannot be written, or is
+        <code>null</code>. */
+    private void respond(Protocol.FrameBuffer frame) {
+        try {
+            if(frame == null) {
+                close();
+            }
+            else {
+                write(frame.toBuffers());
+            }
+        }
+        catch(IOException e) {
+            // Exception thrown in service response.
+            this.skeleton.service_error(new RMIException("Exception thrown in service response.", e));
+            close();
+        }
+        finally {
+            completed();
+        }
+    }
+
+    private void completed() {
+        this.inFlight.decrementAndGet();
+        closeIfDrained();
+    }
+
+    /** Writes as much of a response as the socket takes, and queues the rest
+        for the selector thread. Responses are never reordered within a
+        connection's byte stream, and a frame is never interleaved with
+        another. */
+    void write(ByteBuffer[] buffers) throws IOException {
+        this.writeLock.lock();
+        try {
+            if(this.closed) {
+                return;
+            }
+            if(this.output.isEmpty()) {
+                this.channel.write(buffers);
+            }
+            boolean queued = false;
+            for(ByteBuffer b: buffers) {
+                if(b.hasRemaining()) {
+                    this.output.add(b);
+                    queued = true;
+                }
+            }
+            if(queued) {
+                this.loop.interest(this, SelectionKey.OP_WRITE, true);
+            }
+        }
+        finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /** Writes queued responses once the channel is writable. Called by the
+        selector thread only. */
+    void flush() {
+        this.writeLock.lock();
+        try {
+            ByteBuffer[] buffers = this.output.toArray(new ByteBuffer[this.output.size()]);
+            this.channel.write(buffers);
+            while(!this.output.isEmpty() && !this.output.peek().hasRemaining()) {
+                this.output.poll();
+            }
+            if(this.output.isEmpty()) {
+                this.loop.interest(this, SelectionKey.OP_WRITE, false);
+            }
+        }
+        catch(IOException e) {
+            this.skeleton.service_error(new RMIException("Exception thrown in service response.", e));
+            close();
+            return;
+        }
+        finally {
+            this.writeLock.unlock();
+        }
+        closeIfDrained();
+    }
+
+    /** Stops reading calls from the connection. Calls in progress still write
+        their results, and the connection is then closed. */
+    void shutdownInput() {
+        this.inputClosed = true;
+        this.loop.interest(this, SelectionKey.OP_READ, false);
+        closeIfDrained();
+    }
+
+    private void closeIfDrained() {
+        if(!this.inputClosed || this.inFlight.get() > 0) {
+            return;
+        }
+        this.writeLock.lock();
+        try {
+            if(!this.output.isEmpty()) {
+                return;
+            }
+        }
+        finally {
+            this.writeLock.unlock();
+        }
+        close();
+    }
+
+    void close() {
+        this.writeLock.lock();
+        try {
+            if(this.closed) {
+                return;
+            }
+            this.closed = true;
+            this.inputClosed = true;
+            this.output.clear();
+        }
+        finally {
+            this.writeLock.unlock();
+        }
+        if(this.key != null) {
+            this.key.cancel();
+        }
+        ServerThread.close(this.channel);
+        this.loop.closed(this);
+    }
+}
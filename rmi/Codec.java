@@ -0,0 +1,396 @@
+package rmi;
+
+import java.io.*;
+import java.lang.reflect.Modifier;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+
+import common.Path;
+
+/** Encoding of argument and result values on the wire.
+
+    <p>
+    Each value starts with a one-byte tag. The types that make up almost all
+    filesystem calls - <code>Path</code>, <code>Path[]</code>,
+    <code>byte[]</code>, <code>long</code>, <code>int</code>,
+    <code>boolean</code>, <code>String</code>, <code>String[]</code> and stubs -
+    have hand-written encodings. Any other value is sent in Java serialized
+    form.
+
+    <p>
+    A path is sent as its components. In a <code>Path[]</code>, each path
+    is sent as the number of leading components it shares with the path
+    before it, followed by the rest, so that the many files of a directory
+    tree - listed directory by directory, as <code>Path.list</code> does -
+    cost little more than their names.
+
+    <p>
+    A large <code>byte[]</code> written into a
+    <code>Protocol.FrameBuffer</code> that carries attachments is not copied:
+    the frame keeps the array and writes it to the socket directly.
+ */
+public class Codec {
+    public static final byte NULL = 0;
+    public static final byte FALSE = 1;
+    public static final byte TRUE = 2;
+    public static final byte INT = 3;
+    public static final byte LONG = 4;
+    public static final byte STRING = 5;
+    public static final byte BYTES = 6;
+    public static final byte STRING_ARRAY = 7;
+    public static final byte PATH = 8;
+    public static final byte STUB = 9;
+    public static final byte SERIALIZED = 10;
+    public static final byte PATH_ARRAY = 11;
+
+    /** Byte arrays at least this long are attached to a frame which allows
+        it, rather than copied into it. Shorter arrays cost less to copy than
+        to write separately. */
+    static final int ATTACH_THRESHOLD = 8 * 1024;
+
+    private static final ConcurrentHashMap<String, Class<?>> classes =
+                                    new ConcurrentHashMap<String, Class<?>>();
+
+    public static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if(value == null) {
+            out.writeByte(NULL);
+        }
+        else if(value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        }
+        else if(value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        }
+        else if(value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        }
+        else if(value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        }
+        else if(value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            out.writeInt(bytes.length);
+            if(bytes.length >= ATTACH_THRESHOLD && out instanceof Protocol.FrameOutput
+                    && ((Protocol.FrameOutput) out).frame.attachments) {
+                ((Protocol.FrameOutput) out).frame.attach(bytes);
+            }
+            else {
+                out.write(bytes);
+            }
+        }
+        else if(value instanceof String[]) {
+            String[] strings = (String[]) value;
+            out.writeByte(STRING_ARRAY);
+            out.writeInt(strings.length);
+            for(String s: strings) {
+                out.writeBoolean(s != null);
+                if(s != null) {
+                    writeString(out, s);
+                }
+            }
+        }
+        else if(value instanceof Path) {
+            out.writeByte(PATH);
+            writePath(out, (Path) value);
+        }
+        else if(value instanceof Path[]) {
+            out.writeByte(PATH_ARRAY);
+            writePaths(out, (Path[]) value);
+        }
+        else if(isStub(value)) {
+            RMIInvocationHandler handler = AsyncStub.handlerOf(value);
+            out.writeByte(STUB);
+            writeString(out, handler.intf.getName());
+            writeAddress(out, handler.skeletonAddress);
+        }
+        else {
+            out.writeByte(SERIALIZED);
+            writeSerialized(out, value);
+        }
+    }
+
+    public static Object readValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch(tag) {
+            case NULL:          return null;
+            case FALSE:         return Boolean.FALSE;
+            case TRUE:          return Boolean.TRUE;
+            case INT:           return in.readInt();
+            case LONG:          return in.readLong();
+            case STRING:        return readString(in);
+            case BYTES: {
+                byte[] bytes = new byte[readLength(in, 1)];
+                in.readFully(bytes);
+                return bytes;
+            }
+            case STRING_ARRAY: {
+                String[] strings = new String[readLength(in, 1)];
+                for(int i = 0; i < strings.length; i++) {
+                    strings[i] = in.readBoolean() ? readString(in) : null;
+                }
+                return strings;
+            }
+            case PATH:          return readPath(in);
+            case PATH_ARRAY:    return readPaths(in);
+            case STUB: {
+                Class<?> intf = classForName(readString(in));
+                return Stub.create(intf, readAddress(in));
+            }
+            case SERIALIZED:    return readSerialized(in);
+            default:
+                throw new StreamCorruptedException("unknown value tag " + tag);
+        }
+    }
+
+    /** Reads the length of an array whose elements take at least
+        <code>size</code> bytes each on the wire.
+
+        @throws StreamCorruptedException If the length is negative, or, when
+                                         reading a frame, greater than the
+                                         rest of the frame can hold.
+     */
+    static int readLength(DataInputStream in, int size) throws IOException {
+        int length = in.readInt();
+        long left = in instanceof Protocol.FrameDataInput
+                    ? ((Protocol.FrameDataInput) in).frame.remaining : Integer.MAX_VALUE;
+        if(length < 0 || (long) length * size > left) {
+            throw new StreamCorruptedException("bad length " + length);
+        }
+        return length;
+    }
+
+    /** Writes a path as its component count followed by the components. */
+    public static void writePath(DataOutputStream out, Path path) throws IOException {
+        int count = 0;
+        for(String component: path) {
+            count++;
+        }
+        out.writeInt(count);
+        for(String component: path) {
+            writeString(out, component);
+        }
+    }
+
+    public static Path readPath(DataInputStream in) throws IOException {
+        return extendPath(in, new Path(), in.readInt());
+    }
+
+    /** Writes an array of paths, each as the number of components it shares
+        with the one before, the number of components which follow, and
+        these. A <code>null</code> element is written as -1, and shares
+        nothing with the path after it. */
+    public static void writePaths(DataOutputStream out, Path[] paths) throws IOException {
+        out.writeInt(paths.length);
+        ArrayList<String> previous = new ArrayList<String>();
+        ArrayList<String> current = new ArrayList<String>();
+        for(Path path: paths) {
+            current.clear();
+            if(path == null) {
+                out.writeInt(-1);
+            }
+            else {
+                for(String component: path) {
+                    current.add(component);
+                }
+                int shared = 0;
+                while(shared < previous.size() && shared < current.size()
+                        && previous.get(shared).equals(current.get(shared))) {
+                    shared++;
+                }
+                out.writeInt(shared);
+                out.writeInt(current.size() - shared);
+                for(int i = shared; i < current.size(); i++) {
+                    writeString(out, current.get(i));
+                }
+            }
+            ArrayList<String> swap = previous;
+            previous = current;
+            current = swap;
+        }
+    }
+
+    public static Path[] readPaths(DataInputStream in) throws IOException {
+        Path[] paths = new Path[readLength(in, 4)];
+        Path previous = new Path();
+        int depth = 0;
+        for(int i = 0; i < paths.length; i++) {
+            int shared = in.readInt();
+            if(shared < 0) {
+                previous = new Path();
+                depth = 0;
+                continue;
+            }
+            if(shared > depth) {
+                throw new StreamCorruptedException("bad path prefix " + shared);
+            }
+            Path path = previous;
+            for(; depth > shared; depth--) {
+                path = path.parent();
+            }
+            int added = in.readInt();
+            paths[i] = extendPath(in, path, added);
+            previous = paths[i];
+            depth = shared + added;
+        }
+        return paths;
+    }
+
+    /** Reads components and appends them to a path. */
+    private static Path extendPath(DataInputStream in, Path path, int count) throws IOException {
+        for(int i = 0; i < count; i++) {
+            String component = readString(in);
+            try {
+                path = new Path(path, component);
+            }
+            catch(IllegalArgumentException e) {
+                throw new StreamCorruptedException("bad path component " + component);
+            }
+        }
+        return path;
+    }
+
+    public static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readLength(in, 1)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Writes a socket address as the host name, the raw IP address, if the
+        address is resolved, and the port. The raw address spares the receiver a
+        name lookup. */
+    static void writeAddress(DataOutputStream out, InetSocketAddress address)
+            throws IOException {
+        writeString(out, address.getHostString());
+        InetAddress ip = address.getAddress();
+        byte[] raw = ip == null ? new byte[0] : ip.getAddress();
+        out.writeByte(raw.length);
+        out.write(raw);
+        out.writeInt(address.getPort());
+    }
+
+    static InetSocketAddress readAddress(DataInputStream in) throws IOException {
+        String host = readString(in);
+        byte length = in.readByte();
+        if(length != 0 && length != 4 && length != 16) {
+            throw new StreamCorruptedException("bad address length " + length);
+        }
+        byte[] raw = new byte[length];
+        in.readFully(raw);
+        int port = in.readInt();
+        if(raw.length == 0) {
+            return InetSocketAddress.createUnresolved(host, port);
+        }
+        return new InetSocketAddress(InetAddress.getByAddress(host, raw), port);
+    }
+
+    public static void writeSerialized(DataOutputStream out, Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream objOutput = new ObjectOutputStream(bytes);
+        objOutput.writeObject(value);
+        objOutput.close();
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    public static Object readSerialized(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readLength(in, 1)];
+        in.readFully(bytes);
+        ObjectInputStream objInput = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return objInput.readObject();
+        }
+        catch(ClassNotFoundException e) {
+            throw new InvalidClassException(e.getMessage());
+        }
+    }
+
+    /** Writes the status byte and body of an error response. The exception is
+        sent as its class name and message if it can be rebuilt from those on
+        the other side, and in serialized form otherwise. The stack trace is
+        never sent in the compact form.
+     */
+    public static void writeError(DataOutputStream out, Throwable t) throws IOException {
+        if(isRebuildable(t.getClass())) {
+            out.writeByte(Protocol.STATUS_ERROR);
+            writeString(out, t.getClass().getName());
+            out.writeBoolean(t.getMessage() != null);
+            if(t.getMessage() != null) {
+                writeString(out, t.getMessage());
+            }
+        }
+        else {
+            out.writeByte(Protocol.STATUS_ERROR_SERIALIZED);
+            writeSerialized(out, t);
+        }
+    }
+
+    /** Reads an error frame body written by <code>writeError</code>. */
+    public static Throwable readError(byte status, DataInputStream in) throws IOException {
+        if(status == Protocol.STATUS_ERROR_SERIALIZED) {
+            return (Throwable) readSerialized(in);
+        }
+        String name = readString(in);
+        String message = in.readBoolean() ? readString(in) : null;
+        try {
+            // The class is neither initialized nor constructed unless it is
+            // an exception class.
+            Class<?> c = classForName(name);
+            if(!Throwable.class.isAssignableFrom(c)) {
+                return new RMIException(name + ": " + message);
+            }
+            if(message == null) {
+                return (Throwable) c.getConstructor().newInstance();
+            }
+            return (Throwable) c.getConstructor(String.class).newInstance(message);
+        }
+        catch(Exception e) {
+            return new RMIException(name + ": " + message);
+        }
+    }
+
+    private static boolean isRebuildable(Class<?> c) {
+        if(!Modifier.isPublic(c.getModifiers())) {
+            return false;
+        }
+        try {
+            c.getConstructor();
+            c.getConstructor(String.class);
+            return true;
+        }
+        catch(NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static boolean isStub(Object value) {
+        return AsyncStub.handlerOf(value) != null;
+    }
+
+    /** Loads a class named by the peer, without initializing it. */
+    private static Class<?> classForName(String name) throws IOException {
+        Class<?> c = classes.get(name);
+        if(c == null) {
+            try {
+                c = Class.forName(name, false, Codec.class.getClassLoader());
+            }
+            catch(ClassNotFoundException e) {
+                throw new InvalidClassException(name);
+            }
+            classes.putIfAbsent(name, c);
+        }
+        return c;
+    }
+}
@@ -0,0 +1,398 @@
+package rmi;
+
+import java.net.*;
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.lang.reflect.InvocationTargetException;
+
+/** Client side of a persistent, multiplexed connection to a skeleton.
+
+    <p>
+    Any number of threads may have calls in flight on one connection at the
+    same time. Every request carries a call id, and the skeleton may answer
+    the calls in any order; a reader thread owned by the connection matches
+    each response to its call by that id.
+
+    <p>
+    The connection is opened for one remote interface: the handshake sends the
+    interface's method table, and requests then name methods by ordinal. See
+    <code>Protocol</code> for the message layout.
+
+    <p>
+    A skeleton on the same host is reached through its Unix domain socket
+    when it has one, and over TCP otherwise.
+ */
+public class Connection {
+    InetSocketAddress address;
+    MethodTable table;
+    /* The TCP socket, or null if the connection is local. */
+    Socket socket;
+    /* The Unix domain socket of a local connection, or null. */
+    SocketChannel channel;
+    DataOutputStream output;
+    /* Held while a request is written to the output. Not a monitor, so that a
+       virtual thread blocked in the write does not hold its carrier. */
+    final ReentrantLock writeLock = new ReentrantLock();
+    DataInputStream input;
+    Thread reader;
+
+    ConcurrentHashMap<Integer, Reply> pending = new ConcurrentHashMap<Integer, Reply>();
+    AtomicInteger nextCallId = new AtomicInteger();
+    /* Calls handed out by the pool and not yet released. */
+    AtomicInteger inFlight = new AtomicInteger();
+    volatile long lastUsed;
+    volatile long completedCalls = 0;
+    volatile IOException failure = null;
+
+    /** Longest wait for a TCP connection to be accepted. */
+    public static final int CONNECT_TIMEOUT_MS = 10000;
+    private static ScheduledThreadPoolExecutor timers = null;
+
+    /** Opens a new connection to the skeleton at the given address.
+
+        @throws IOException If the socket cannot be connected or the handshake
+                            fails.
+     */
+    public Connection(InetSocketAddress address, MethodTable table) throws IOException {
+        this(address, table, null);
+    }
+
+    /** Opens a new connection to the skeleton at the given address, giving up
+        when a deadline passes.
+
+        @param deadline The deadline of the call which needs the connection, or
+                        <code>null</code>. Without one, connecting still gives
+                        up after <code>CONNECT_TIMEOUT_MS</code>, but the
+                        handshake is waited for indefinitely.
+        @throws IOException If the socket cannot be connected or the handshake
+                            fails, or if the deadline passes first.
+     */
+    public Connection(InetSocketAddress address, MethodTable table, Deadline deadline)
+            throws IOException {
+        this.address = address;
+        this.table = table;
+        if(!connectLocal()) {
+            this.socket = new Socket();
+            try {
+                int timeout = deadline == null ? 0 : timeoutMillis(deadline);
+                this.socket.connect(new InetSocketAddress(address.getAddress(), address.getPort()),
+                                    timeout == 0 ? CONNECT_TIMEOUT_MS
+                                                 : Math.min(timeout, CONNECT_TIMEOUT_MS));
+                this.socket.setTcpNoDelay(true);
+                this.output = new DataOutputStream(
+                                    new BufferedOutputStream(this.socket.getOutputStream()));
+                this.input = new DataInputStream(
+                                    new BufferedInputStream(this.socket.getInputStream()));
+                this.socket.setSoTimeout(timeout);
+                Protocol.connect(this.input, this.output, table);
+                this.socket.setSoTimeout(0);
+            }
+            catch(IOException e) {
+                close();
+                throw e;
+            }
+        }
+        this.lastUsed = System.nanoTime();
+
+        this.reader = new Thread("rmi-connection-reader " + address) {
+            public void run() {
+                readResponses();
+            }
+        };
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /** Connects through the skeleton's Unix domain socket, if it is on this
+        host and has one - see <code>LocalSockets</code>.
+
+        @return <code>true</code> if the connection is open. On
+                <code>false</code>, the caller connects over TCP.
+     */
+    private boolean connectLocal() {
+        this.channel = LocalSockets.connect(this.address);
+        if(this.channel == null) {
+            return false;
+        }
+        try {
+            this.output = new DataOutputStream(
+                                new BufferedOutputStream(LocalSockets.output(this.channel)));
+            this.input = new DataInputStream(
+                                new BufferedInputStream(LocalSockets.input(this.channel)));
+            Protocol.connect(this.input, this.output, this.table);
+            return true;
+        }
+        catch(IOException e) {
+            ServerThread.close(this.channel);
+            this.channel = null;
+            return false;
+        }
+    }
+
+    /** Encodes a call into a request frame. The call id and the time left
+        are left blank and are filled in when the frame is sent, so that the
+        same frame can be sent again on another connection.
+
+        @throws IOException If an argument cannot be encoded.
+     */
+    public static Protocol.FrameBuffer encode(int ordinal, Object[] args) throws IOException {
+        Protocol.FrameBuffer frame = new Protocol.FrameBuffer();
+        frame.data.writeInt(0);
+        frame.data.writeInt(0);
+        encodeCall(frame.data, ordinal, args);
+        return frame;
+    }
+
+    /** Returns the time left before a deadline in whole milliseconds, at
+        least one, so that zero can stand for no deadline. */
+    static int timeoutMillis(Deadline deadline) {
+        long left = deadline.remaining(TimeUnit.MILLISECONDS);
+        return (int) Math.max(1, Math.min(left, Integer.MAX_VALUE));
+    }
+
+    /** Writes the method ordinal, argument count and arguments of a call. */
+    static void encodeCall(DataOutputStream out, int ordinal, Object[] args) throws IOException {
+        out.writeInt(ordinal);
+        out.writeInt(args == null ? 0 : args.length);
+        if(args != null) {
+            for(Object arg: args) {
+                Codec.writeValue(out, arg);
+            }
+        }
+    }
+
+    /** Sends one call without waiting for its result.
+
+        @return A future completed with the return value of the method, or with
+                an <code>InvocationTargetException</code> wrapping the exception
+                it threw. The future fails with an <code>IOException</code> if
+                the call cannot be encoded, or if the connection is lost before
+                the result arrives.
+     */
+    public Reply send(int ordinal, Object[] args) {
+        Protocol.FrameBuffer frame;
+        try {
+            frame = encode(ordinal, args);
+        }
+        catch(IOException e) {
+            // Nothing has been written, so only this call fails.
+            Reply result = new Reply();
+            result.completeExceptionally(e);
+            return result;
+        }
+        return send(frame);
+    }
+
+    /** Sends a call encoded by <code>encode</code> without waiting for its
+        result. The frame's call id is overwritten.
+
+        @return A future completed as for <code>send(int, Object[])</code>.
+     */
+    public Reply send(Protocol.FrameBuffer frame) {
+        return send(frame, null);
+    }
+
+    /** Sends a call encoded by <code>encode</code> with a deadline, without
+        waiting for its result. The frame's call id and time left are
+        overwritten.
+
+        @param deadline The call's deadline, or <code>null</code>.
+        @return A future completed as for <code>send(int, Object[])</code>. It
+                fails with a <code>SocketTimeoutException</code> if there is
+                no response by the deadline; a response arriving later is
+                dropped.
+     */
+    public Reply send(Protocol.FrameBuffer frame, Deadline deadline) {
+        int callId = this.nextCallId.incrementAndGet();
+        Reply result = new Reply();
+        frame.setInt(0, callId);
+        frame.setInt(4, deadline == null ? 0 : timeoutMillis(deadline));
+        // Pending before the expiry is scheduled, which may fire at once.
+        this.pending.put(callId, result);
+        result.idle = isReused() && this.pending.size() == 1;
+        if(deadline != null) {
+            expireAt(callId, result, deadline);
+        }
+        try {
+            this.writeLock.lock();
+            try {
+                if(this.failure != null) {
+                    throw this.failure;
+                }
+                Protocol.writeFrame(this.output, frame);
+            }
+            finally {
+                this.writeLock.unlock();
+            }
+        }
+        catch(IOException e) {
+            // A half-written frame leaves the stream unusable for every other
+            // call sharing the connection.
+            fail(e);
+        }
+        return result;
+    }
+
+    /** Sends one call and waits for its result. */
+    public Object call(int ordinal, Object[] args) throws IOException {
+        try {
+            return send(ordinal, args).join();
+        }
+        catch(CompletionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /** Decodes responses as they arrive. Each is decoded straight from the
+        socket, so that a large result is read into its own array and nowhere
+        else. */
+    private void readResponses() {
+        try {
+            while(true) {
+                Protocol.FrameInput frame = Protocol.openFrame(this.input);
+                DataInputStream in = new Protocol.FrameDataInput(frame);
+                int callId = in.readInt();
+                Reply call = this.pending.remove(callId);
+                this.completedCalls++;
+                if(call == null) {
+                    frame.skipRemaining();
+                    continue;
+                }
+                call.size = frame.remaining + 4;
+
+                // A response that cannot be decoded fails only its own call:
+                // the frame boundary keeps the stream in step. If the
+                // connection itself has failed, skipping the rest of the frame
+                // fails too, and so does every call.
+                long started = System.nanoTime();
+                Object result;
+                try {
+                    byte status = in.readByte();
+                    if(status == Protocol.STATUS_BATCH) {
+                        Object[] results = new Object[in.readInt()];
+                        for(int i = 0; i < results.length; i++) {
+                            results[i] = readResult(in.readByte(), in);
+                        }
+                        result = results;
+                    }
+                    else {
+                        result = readResult(status, in);
+                    }
+                }
+                catch(IOException | RuntimeException e) {
+                    frame.skipRemaining();
+                    call.completeExceptionally(
+                        e instanceof IOException ? (IOException) e : new IOException(e));
+                    continue;
+                }
+                call.decodeNanos = System.nanoTime() - started;
+                frame.skipRemaining();
+                call.complete(result);
+            }
+        }
+        catch(IOException e) {
+            fail(e);
+        }
+    }
+
+    /** Fails a call which is still waiting for its response when its
+        deadline passes. */
+    private void expireAt(final int callId, final Reply reply, Deadline deadline) {
+        final ScheduledFuture<?> timer = timers().schedule(() -> {
+            if(this.pending.remove(callId, reply)) {
+                reply.completeExceptionally(new SocketTimeoutException("call deadline exceeded"));
+            }
+        }, deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        reply.whenComplete((value, error) -> timer.cancel(false));
+    }
+
+    /** Returns the thread which fails calls at their deadlines, starting it
+        if needed. */
+    private static synchronized ScheduledThreadPoolExecutor timers() {
+        if(timers == null) {
+            timers = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "rmi-deadlines");
+                t.setDaemon(true);
+                return t;
+            });
+            // Most calls complete well before their deadlines.
+            timers.setRemoveOnCancelPolicy(true);
+        }
+        return timers;
+    }
+
+    /** The future result of a call sent on a connection. Once it has
+        completed with a response, it also gives the size of the response
+        and the time taken to decode it. */
+    public static class Reply extends CompletableFuture<Object> {
+        /* Bytes of the response frame, or zero if none arrived. */
+        int size = 0;
+        /* Whether the call was sent on a connection which had carried calls
+           and had no other waiting, which the skeleton may have closed as
+           idle before the call reached it. */
+        volatile boolean idle = false;
+        long decodeNanos = 0;
+    }
+
+    /** Reads the result of one call: its return value, or an
+        <code>InvocationTargetException</code> wrapping the exception it
+        threw. */
+    static Object readResult(byte status, DataInputStream in) throws IOException {
+        if(status == Protocol.STATUS_OK) {
+            return Codec.readValue(in);
+        }
+        return new InvocationTargetException(Codec.readError(status, in));
+    }
+
+    /** Closes the connection and fails every call still waiting on it. */
+    void fail(IOException cause) {
+        synchronized(this) {
+            if(this.failure == null) {
+                this.failure = cause;
+            }
+        }
+        close();
+        for(Integer callId: new ArrayList<Integer>(this.pending.keySet())) {
+            Reply call = this.pending.remove(callId);
+            if(call != null) {
+                call.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /** Indicates that the connection can no longer carry calls. */
+    public boolean isClosed() {
+        if(this.failure != null) {
+            return true;
+        }
+        return this.socket != null ? this.socket.isClosed() : !this.channel.isOpen();
+    }
+
+    /** Indicates whether this connection has already carried a call. A failure
+        on such a connection is likely due to the skeleton having closed it
+        while it was idle. */
+    public boolean isReused() {
+        return this.completedCalls > 0;
+    }
+
+    /** Closes the socket. The data streams are not closed separately: they
+        may be in use by a writing thread, which fails once the socket is
+        gone. */
+    public void close() {
+        ServerThread.close(this.socket);
+        ServerThread.close(this.channel);
+    }
+
+    /** Indicates whether the connection goes through the skeleton's Unix
+        domain socket rather than TCP. */
+    public boolean isLocal() {
+        return this.channel != null;
+    }
+}
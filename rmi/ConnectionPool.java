@@ -0,0 +1,202 @@
+package rmi;
+
+import java.net.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/** Pool of stub connections, shared by all stubs in the JVM.
+
+    <p>
+    Connections are kept per skeleton address and remote interface, and are
+    multiplexed: many calls from different threads share one connection. A
+    new connection to an address is only opened when every existing
+    connection already carries <code>MAX_CALLS_PER_CONNECTION</code> calls,
+    and no more than <code>MAX_CONNECTIONS_PER_ADDRESS</code> are opened.
+    Connections which have carried no call for <code>IDLE_TIMEOUT_MS</code>
+    milliseconds are closed by a background reaper thread.
+
+    <p>
+    The connections to each address and interface are guarded by a
+    <code>ReentrantLock</code> rather than a monitor, since a new connection is
+    opened while it is held: a virtual thread waiting on the connect then does
+    not hold its carrier thread.
+ */
+public class ConnectionPool {
+    public static final int MAX_CONNECTIONS_PER_ADDRESS = 4;
+    public static final int MAX_CALLS_PER_CONNECTION = 32;
+    public static final long IDLE_TIMEOUT_MS = 30000;
+
+    private static final ConcurrentHashMap<InetSocketAddress, ConcurrentHashMap<Class<?>, Group>>
+            connections = new ConcurrentHashMap<InetSocketAddress, ConcurrentHashMap<Class<?>, Group>>();
+    private static Thread reaper = null;
+
+    /** Takes a connection to the given address, speaking the given interface,
+        for one call.
+
+        <p>
+        The least busy live connection is chosen. Every connection acquired
+        must be given back with <code>release</code> once the call completes.
+     */
+    public static Connection acquire(InetSocketAddress address, MethodTable table)
+            throws IOException {
+        return acquire(address, table, null);
+    }
+
+    /** Takes a connection for one call which has a deadline. Connecting, and
+        waiting for another caller to connect, give up when the deadline
+        passes.
+
+        @param deadline The call's deadline, or <code>null</code>.
+        @throws SocketTimeoutException If the deadline passes first.
+     */
+    public static Connection acquire(InetSocketAddress address, MethodTable table,
+                                     Deadline deadline) throws IOException {
+        ConcurrentHashMap<Class<?>, Group> byIntf = connections.get(address);
+        if(byIntf == null) {
+            connections.putIfAbsent(address, new ConcurrentHashMap<Class<?>, Group>());
+            byIntf = connections.get(address);
+        }
+        Group group = byIntf.get(table.intf);
+        if(group == null) {
+            byIntf.putIfAbsent(table.intf, new Group());
+            group = byIntf.get(table.intf);
+        }
+
+        List<Connection> conns = group.connections;
+        if(deadline == null) {
+            group.lock.lock();
+        }
+        else {
+            try {
+                if(!group.lock.tryLock(deadline.remaining(TimeUnit.NANOSECONDS),
+                                       TimeUnit.NANOSECONDS)) {
+                    throw new SocketTimeoutException("call deadline exceeded");
+                }
+            }
+            catch(InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        try {
+            Connection best = null;
+            Iterator<Connection> it = conns.iterator();
+            while(it.hasNext()) {
+                Connection c = it.next();
+                if(c.isClosed()) {
+                    it.remove();
+                }
+                else if(best == null || c.inFlight.get() < best.inFlight.get()) {
+                    best = c;
+                }
+            }
+            if(best != null && (best.inFlight.get() < MAX_CALLS_PER_CONNECTION
+                                    || conns.size() >= MAX_CONNECTIONS_PER_ADDRESS)) {
+                best.inFlight.incrementAndGet();
+                return best;
+            }
+
+            // Connecting under the lock keeps a burst of callers to a new
+            // address from opening a connection each.
+            Connection conn = new Connection(address, table, deadline);
+            conn.inFlight.incrementAndGet();
+            conns.add(conn);
+            startReaper();
+            return conn;
+        }
+        finally {
+            group.lock.unlock();
+        }
+    }
+
+    /** Gives back a connection after a call has completed. */
+    public static void release(Connection conn) {
+        conn.lastUsed = System.nanoTime();
+        conn.inFlight.decrementAndGet();
+    }
+
+    /** Closes every connection to the given address. Calls in flight on those
+        connections fail. */
+    public static void evict(InetSocketAddress address) {
+        ConcurrentHashMap<Class<?>, Group> byIntf = connections.get(address);
+        if(byIntf == null) {
+            return;
+        }
+        List<Connection> closing = new ArrayList<Connection>();
+        for(Group group: byIntf.values()) {
+            group.lock.lock();
+            try {
+                closing.addAll(group.connections);
+                group.connections.clear();
+            }
+            finally {
+                group.lock.unlock();
+            }
+        }
+        for(Connection c: closing) {
+            c.fail(new SocketException("connection evicted"));
+        }
+    }
+
+    /** Closes connections which carry no calls and have passed their idle
+        timeout. */
+    static void evictExpired() {
+        long now = System.nanoTime();
+        long timeout = TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS);
+        for(ConcurrentHashMap<Class<?>, Group> byIntf: connections.values()) {
+            for(Group group: byIntf.values()) {
+                evictExpired(group, now, timeout);
+            }
+        }
+    }
+
+    private static void evictExpired(Group group, long now, long timeout) {
+        List<Connection> closing = new ArrayList<Connection>();
+        group.lock.lock();
+        try {
+            Iterator<Connection> it = group.connections.iterator();
+            while(it.hasNext()) {
+                Connection c = it.next();
+                if(c.isClosed()
+                        || (c.inFlight.get() == 0 && now - c.lastUsed > timeout)) {
+                    it.remove();
+                    closing.add(c);
+                }
+            }
+        }
+        finally {
+            group.lock.unlock();
+        }
+        for(Connection c: closing) {
+            c.close();
+        }
+    }
+
+    private static synchronized void startReaper() {
+        if(reaper != null) {
+            return;
+        }
+        reaper = new Thread("rmi-connection-reaper") {
+            public void run() {
+                while(true) {
+                    try {
+                        Thread.sleep(IDLE_TIMEOUT_MS / 2);
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+                    evictExpired();
+                }
+            }
+        };
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /** The connections to one address for one interface, and their lock. */
+    private static class Group {
+        final ReentrantLock lock = new ReentrantLock();
+        final List<Connection> connections = new ArrayList<Connection>();
+    }
+}
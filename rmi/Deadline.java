@@ -0,0 +1,116 @@
+package rmi;
+
+import java.util.concurrent.*;
+
+/** Time by which the remote calls made by a thread must complete.
+
+    <p>
+    A deadline is entered for a block of code with <code>within</code>, and
+    applies to every call the thread makes through a stub until it is closed:
+
+    <pre>
+    try(Deadline deadline = Deadline.within(2, TimeUnit.SECONDS)) {
+        storage.read(file, 0, length);
+    }
+    </pre>
+
+    A deadline entered while another is in force never extends it. A call
+    which is still waiting for its result when the deadline passes fails with
+    a <code>DeadlineExceededException</code>.
+
+    <p>
+    The time left is sent with each request, and the skeleton enters the same
+    deadline on the thread which runs the call. Server code can therefore read
+    it with <code>current</code> and give up work whose caller has gone, and
+    calls the server makes to other skeletons on the caller's behalf inherit
+    it. A call whose deadline has passed before it leaves the skeleton's queue
+    is not run at all.
+ */
+public class Deadline implements AutoCloseable {
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<Deadline>();
+
+    /* Expiry time, in System.nanoTime terms. */
+    final long expires;
+    /* The deadline this one replaced when it was entered, and the thread it
+       was entered on, or null if it has not been entered. */
+    private Deadline outer = null;
+    private Thread owner = null;
+
+    private Deadline(long expires) {
+        this.expires = expires;
+    }
+
+    /** Returns a deadline the given time from now, without entering it. */
+    public static Deadline after(long timeout, TimeUnit unit) {
+        return new Deadline(System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /** Enters a deadline the given time from now, or keeps the current one if
+        that is earlier. The deadline stays in force on this thread until the
+        returned object is closed.
+
+        @throws IllegalArgumentException If <code>timeout</code> is negative.
+     */
+    public static Deadline within(long timeout, TimeUnit unit) {
+        if(timeout < 0) {
+            throw new IllegalArgumentException("negative timeout");
+        }
+        return enter(after(timeout, unit));
+    }
+
+    /** Returns the deadline in force on this thread, or <code>null</code> if
+        there is none. */
+    public static Deadline current() {
+        return current.get();
+    }
+
+    /** Returns the earlier of two deadlines, either of which may be
+        <code>null</code>. */
+    static Deadline earliest(Deadline a, Deadline b) {
+        if(a == null) {
+            return b;
+        }
+        if(b == null) {
+            return a;
+        }
+        return a.expires - b.expires <= 0 ? a : b;
+    }
+
+    /** Enters a deadline on this thread, or keeps the current one if that is
+        earlier, and returns the scope to close. */
+    static Deadline enter(Deadline deadline) {
+        Deadline outer = current.get();
+        Deadline scope = new Deadline(earliest(outer, deadline).expires);
+        scope.outer = outer;
+        scope.owner = Thread.currentThread();
+        current.set(scope);
+        return scope;
+    }
+
+    /** Returns the time left, or zero if the deadline has passed. */
+    public long remaining(TimeUnit unit) {
+        long left = this.expires - System.nanoTime();
+        return left <= 0 ? 0 : unit.convert(left, TimeUnit.NANOSECONDS);
+    }
+
+    /** Indicates whether the deadline has passed. */
+    public boolean isExpired() {
+        return this.expires - System.nanoTime() <= 0;
+    }
+
+    /** Restores the deadline which was in force when this one was entered.
+        Has no effect if the deadline was not entered, or if it is closed on
+        another thread or more than once. */
+    @Override
+    public void close() {
+        if(this.owner == Thread.currentThread() && current.get() == this) {
+            current.set(this.outer);
+            this.owner = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "deadline in " + remaining(TimeUnit.MILLISECONDS) + " ms";
+    }
+}
@@ -0,0 +1,21 @@
+package rmi;
+
+/** Thrown when a remote call does not complete before its deadline. See
+    <code>Deadline</code>. */
+public class DeadlineExceededException extends RMIException
+{
+    private static final long serialVersionUID = 1L;
+
+    /** Creates a <code>DeadlineExceededException</code> with no detail. */
+    public DeadlineExceededException()
+    {
+        super("deadline exceeded");
+    }
+
+    /** Creates a <code>DeadlineExceededException</code> with the given message
+        string. */
+    public DeadlineExceededException(String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,114 @@
+package rmi;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+/** The response to a call, which the method serving it leaves to be sent
+    later.
+
+    <p>
+    A method which would otherwise wait a long time for something another
+    call brings about - a lock held by another caller, say - may call
+    <code>defer</code>, return at once, and have the response sent once it is
+    ready, by whichever thread makes it ready, with <code>complete</code> or
+    <code>fail</code>. The worker thread which ran the method then serves
+    other calls meanwhile, so that a skeleton with a bounded number of
+    workers is not filled with waiting calls, and the call which ends the
+    wait is never queued behind them. The value the method returns is
+    ignored; an exception it throws is sent, if no response has been sent.
+
+    <p>
+    Only a single call can be deferred: a method run as part of a batch, or
+    called other than through a skeleton, must answer by returning.
+ */
+public class DeferredReply {
+    private static final ThreadLocal<DeferredReply> serving = new ThreadLocal<DeferredReply>();
+
+    private final Skeleton<?> skeleton;
+    private final Request request;
+    private final int[] ordinals;
+    private final Responder responder;
+    private final long started;
+    /* Set by defer, on the thread serving the call. */
+    boolean deferred = false;
+    private final AtomicBoolean sent = new AtomicBoolean();
+
+    DeferredReply(Skeleton<?> skeleton, Request request, int[] ordinals, Responder responder,
+                  long started) {
+        this.skeleton = skeleton;
+        this.request = request;
+        this.ordinals = ordinals;
+        this.responder = responder;
+        this.started = started;
+    }
+
+    /** Defers the response to the call the calling thread is serving.
+
+        @return The reply to complete, or <code>null</code> if the thread is
+                not serving a call which can be deferred. The method must then
+                answer by returning.
+     */
+    public static DeferredReply defer() {
+        DeferredReply reply = serving.get();
+        if(reply != null) {
+            reply.deferred = true;
+        }
+        return reply;
+    }
+
+    /** Makes the call deferrable while the calling thread serves it. */
+    void enter() {
+        serving.set(this);
+    }
+
+    void exit() {
+        serving.remove();
+    }
+
+    /** Sends the value as the method's result.
+
+        @return <code>false</code> if a response has already been sent.
+     */
+    public boolean complete(Object value) {
+        return send(value, null);
+    }
+
+    /** Sends an exception as thrown by the method.
+
+        @return <code>false</code> if a response has already been sent.
+        @throws NullPointerException If <code>thrown</code> is
+                                     <code>null</code>.
+     */
+    public boolean fail(Throwable thrown) {
+        if(thrown == null) {
+            throw new NullPointerException();
+        }
+        return send(null, thrown);
+    }
+
+    private boolean send(Object value, Throwable thrown) {
+        if(!this.sent.compareAndSet(false, true)) {
+            return false;
+        }
+        Protocol.FrameBuffer frame;
+        try {
+            frame = this.skeleton.respond(this.request, this.ordinals, value, thrown,
+                                          this.started);
+        }
+        catch(IOException e) {
+            this.skeleton.service_error(
+                new RMIException("Exception thrown in service response.", e));
+            frame = null;
+        }
+        this.responder.respond(frame);
+        return true;
+    }
+
+    /** Writes the response to a call served by a skeleton, and counts the
+        call as answered. */
+    interface Responder {
+        /** @param frame The response, or <code>null</code> if none could be
+                         encoded, in which case the connection is dropped. */
+        void respond(Protocol.FrameBuffer frame);
+    }
+}
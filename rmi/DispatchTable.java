@@ -0,0 +1,97 @@
+package rmi;
+
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+
+/** Immutable table of pre-bound method handles, one for each method of a
+    remote interface, indexed by the ordinals of the interface's
+    <code>MethodTable</code>.
+
+    <p>
+    Each handle is bound to the server object and adapted to take its arguments
+    as an <code>Object[]</code> and return an <code>Object</code>, so that every
+    call goes through the same <code>invokeExact</code> call site with no
+    per-call reflection, access checks or argument copying.
+
+    <p>
+    If a <code>Dispatcher</code> has been generated for the interface, calls go
+    through it instead, and no handles are made.
+ */
+public class DispatchTable {
+    private final MethodHandle[] handles;
+    /* The generated dispatcher and the object it calls, or null. */
+    private final Dispatcher dispatcher;
+    private final Object server;
+    /* Boxed parameter types, for checking decoded arguments before the call. */
+    private final Class<?>[][] paramTypes;
+    private final boolean[][] primitive;
+
+    /** Builds the table for the given server object.
+
+        @throws Error If a method of the interface cannot be made accessible.
+     */
+    public DispatchTable(MethodTable table, Object server) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodType generic = MethodType.methodType(Object.class, Object[].class);
+
+        this.dispatcher = table.intf.isInstance(server) ? Generated.dispatcher(table.intf) : null;
+        this.server = server;
+        this.handles = new MethodHandle[table.size()];
+        this.paramTypes = new Class<?>[table.size()][];
+        this.primitive = new boolean[table.size()][];
+        for(int i = 0; i < table.size(); i++) {
+            Method m = table.method(i);
+            if(this.dispatcher == null) {
+                try {
+                    // if it cannot be made accessible, unreflect says so
+                    m.trySetAccessible();
+                    this.handles[i] = lookup.unreflect(m)
+                                            .bindTo(server)
+                                            .asSpreader(Object[].class, m.getParameterCount())
+                                            .asType(generic);
+                }
+                catch(IllegalAccessException | RuntimeException e) {
+                    throw new Error("cannot dispatch " + MethodTable.signature(m), e);
+                }
+            }
+
+            Class<?>[] types = m.getParameterTypes();
+            this.primitive[i] = new boolean[types.length];
+            for(int j = 0; j < types.length; j++) {
+                this.primitive[i][j] = types[j].isPrimitive();
+                types[j] = MethodType.methodType(types[j]).wrap().returnType();
+            }
+            this.paramTypes[i] = types;
+        }
+    }
+
+    /** Calls the method with the given ordinal on the server object.
+
+        @throws IllegalArgumentException If the arguments do not match the
+                                         method's parameter types.
+        @throws InvocationTargetException Wrapping the exception thrown by the
+                                          method.
+     */
+    public Object invoke(int ordinal, Object[] args)
+            throws IllegalArgumentException, InvocationTargetException {
+        Class<?>[] types = this.paramTypes[ordinal];
+        if(args.length != types.length) {
+            throw new IllegalArgumentException("wrong number of arguments");
+        }
+        for(int i = 0; i < args.length; i++) {
+            if(args[i] == null ? this.primitive[ordinal][i] : !types[i].isInstance(args[i])) {
+                throw new IllegalArgumentException("argument type mismatch");
+            }
+        }
+
+        try {
+            if(this.dispatcher != null) {
+                return this.dispatcher.dispatch(this.server, ordinal, args);
+            }
+            return this.handles[ordinal].invokeExact(args);
+        }
+        catch(Throwable t) {
+            throw new InvocationTargetException(t);
+        }
+    }
+}
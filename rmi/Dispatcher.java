@@ -0,0 +1,23 @@
+package rmi;
+
+/** Calls the methods of a remote interface on a server object by ordinal.
+
+    <p>
+    Dispatchers are generated by <code>build.GenerateStubs</code>, one for each
+    interface, as a switch over the ordinals of the interface's
+    <code>MethodTable</code> which casts the arguments and calls the method
+    directly. <code>DispatchTable</code> uses the dispatcher for its interface
+    if there is one, and method handles otherwise.
+ */
+public interface Dispatcher {
+    /** Returns the signatures of the methods the dispatcher was generated
+        for, in ordinal order. */
+    String[] signatures();
+
+    /** Calls a method on a server object. The arguments have already been
+        checked against the method's parameter types.
+
+        @throws Throwable The exception thrown by the method.
+     */
+    Object dispatch(Object server, int ordinal, Object[] args) throws Throwable;
+}
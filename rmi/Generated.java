@@ -0,0 +1,87 @@
+package rmi;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Finds the stub and dispatcher classes generated for a remote interface.
+
+    <p>
+    For an interface <code>p.I</code>, <code>build.GenerateStubs</code> writes
+    the stub <code>p.I_Stub</code> and the dispatcher <code>p.I_Skel</code>.
+    They are used only if both are present and the dispatcher was generated
+    for the same methods, in the same order, as the interface now has - so
+    that sources left behind by a change to the interface fall back to proxy
+    stubs and method handles instead of calling the wrong methods. Setting the
+    system property <code>rmi.generatedStubs</code> to <code>false</code>
+    turns generated classes off altogether.
+
+    <p>
+    The lookup is made once per interface.
+ */
+class Generated {
+    private static final boolean enabled =
+        !"false".equals(System.getProperty("rmi.generatedStubs"));
+    private static final ConcurrentHashMap<Class<?>, Generated> found =
+                                    new ConcurrentHashMap<Class<?>, Generated>();
+    private static final Generated NONE = new Generated(null, null);
+
+    final Constructor<?> stub;
+    final Dispatcher dispatcher;
+
+    private Generated(Constructor<?> stub, Dispatcher dispatcher) {
+        this.stub = stub;
+        this.dispatcher = dispatcher;
+    }
+
+    /** Creates a generated stub with the given handler, or returns
+        <code>null</code> if the interface has no generated stub. */
+    static <T> T stub(Class<T> intf, RMIInvocationHandler handler) {
+        Constructor<?> constructor = forInterface(intf).stub;
+        if(constructor == null) {
+            return null;
+        }
+        try {
+            return intf.cast(constructor.newInstance(handler));
+        }
+        catch(ReflectiveOperationException e) {
+            throw new Error("cannot create " + constructor.getDeclaringClass().getName(), e);
+        }
+    }
+
+    /** Returns the generated dispatcher for an interface, or
+        <code>null</code>. */
+    static Dispatcher dispatcher(Class<?> intf) {
+        return forInterface(intf).dispatcher;
+    }
+
+    private static Generated forInterface(Class<?> intf) {
+        Generated generated = found.get(intf);
+        if(generated == null) {
+            found.putIfAbsent(intf, enabled ? load(intf) : NONE);
+            generated = found.get(intf);
+        }
+        return generated;
+    }
+
+    private static Generated load(Class<?> intf) {
+        ClassLoader loader = intf.getClassLoader();
+        try {
+            Class<?> skel = Class.forName(intf.getName() + "_Skel", true, loader);
+            Class<?> stub = Class.forName(intf.getName() + "_Stub", true, loader);
+            if(!Dispatcher.class.isAssignableFrom(skel) || !intf.isAssignableFrom(stub)
+                    || !GeneratedStub.class.isAssignableFrom(stub)) {
+                return NONE;
+            }
+
+            Dispatcher dispatcher = (Dispatcher) skel.getConstructor().newInstance();
+            if(!Arrays.equals(dispatcher.signatures(), MethodTable.forInterface(intf).signatures)) {
+                return NONE;
+            }
+            return new Generated(stub.getConstructor(RMIInvocationHandler.class), dispatcher);
+        }
+        catch(ReflectiveOperationException | LinkageError | ClassCastException e) {
+            return NONE;
+        }
+    }
+}
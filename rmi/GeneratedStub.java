@@ -0,0 +1,61 @@
+package rmi;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/** Base class of the stubs generated by <code>build.GenerateStubs</code>.
+
+    <p>
+    A generated stub implements its remote interface with one plain method per
+    interface method, each of which passes a constant ordinal and its arguments
+    to <code>call</code>. Calls therefore skip the method lookup and the
+    reflective dispatch of a proxy stub. Otherwise a generated stub behaves
+    exactly as a proxy stub for the same interface and address would, and the
+    two are equal.
+
+    <p>
+    Generated stubs are created by <code>Stub.create</code> in place of proxy
+    stubs when they are present and match the interface - see
+    <code>Generated</code>.
+ */
+public abstract class GeneratedStub implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final RMIInvocationHandler handler;
+
+    protected GeneratedStub(RMIInvocationHandler handler) {
+        if(handler == null) {
+            throw new NullPointerException();
+        }
+        this.handler = handler;
+    }
+
+    /** Calls the method with the given ordinal on the remote object and waits
+        for its result.
+
+        @param ordinal The method's ordinal in the interface's
+                       <code>MethodTable</code>.
+        @param args The arguments, or <code>null</code> if there are none.
+        @throws Throwable The exception thrown by the method, or an
+                          <code>RMIException</code> if the call cannot be
+                          completed.
+     */
+    protected final Object call(int ordinal, Object[] args) throws Throwable {
+        return this.handler.call(ordinal, args);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return this.handler.equalsStub(other);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.handler.hashCodeStub();
+    }
+
+    @Override
+    public String toString() {
+        return this.handler.toStringStub();
+    }
+}
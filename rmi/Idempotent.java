@@ -0,0 +1,20 @@
+package rmi;
+
+import java.lang.annotation.*;
+
+/** Marks a method of a remote interface whose calls may be shared.
+
+    <p>
+    A call to an idempotent method has no effect on the server, and returns
+    the same result whether it is made once or several times at the same
+    moment. Stubs made with <code>Stub.coalescing</code> send only one request
+    for concurrent identical calls to such methods. A method which returns
+    one of several results at random, such as a server picked among several,
+    should not be marked, since every caller sharing a call gets the same.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Idempotent
+{
+}
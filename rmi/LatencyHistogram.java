@@ -0,0 +1,158 @@
+package rmi;
+
+import java.util.concurrent.atomic.*;
+
+/** Histogram of durations in nanoseconds, with a fixed relative precision.
+
+    <p>
+    Values are counted in log-linear buckets, as in HdrHistogram: each power
+    of two is split into <code>2^SUB_BITS</code> buckets of equal width, so a
+    value is known to within about 3% whatever its magnitude. Recording is
+    one increment of a bucket and of two striped counters, with no locking;
+    a snapshot copies the buckets while recording goes on.
+
+    <p>
+    The buckets are allocated on the first value recorded, so that a
+    histogram which is never used costs almost nothing.
+ */
+public class LatencyHistogram {
+    /* Each power of two is split into 2^SUB_BITS buckets. */
+    static final int SUB_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /* Values at or above 2^MAX_BITS nanoseconds (about 68 s) share the last
+       bucket. The true maximum is kept separately. */
+    static final int MAX_BITS = 36;
+    static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private volatile AtomicLongArray counts = null;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /** Records one duration. Negative durations are counted as zero. */
+    public void record(long nanos) {
+        if(nanos < 0) {
+            nanos = 0;
+        }
+        AtomicLongArray buckets = this.counts;
+        if(buckets == null) {
+            synchronized(this) {
+                if(this.counts == null) {
+                    this.counts = new AtomicLongArray(BUCKETS);
+                }
+                buckets = this.counts;
+            }
+        }
+        buckets.incrementAndGet(bucket(nanos));
+        this.count.increment();
+        this.total.add(nanos);
+        this.max.accumulate(nanos);
+    }
+
+    /** Returns a copy of the histogram as it is now. */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        AtomicLongArray buckets = this.counts;
+        long n = 0;
+        if(buckets != null) {
+            for(int i = 0; i < BUCKETS; i++) {
+                copy[i] = buckets.get(i);
+                n += copy[i];
+            }
+        }
+        // The bucket counts, not the striped total, decide the percentiles,
+        // so that a snapshot taken during recording is self-consistent.
+        return new Snapshot(copy, n, this.total.sum(), this.max.get());
+    }
+
+    /** Returns the bucket holding a value. */
+    static int bucket(long value) {
+        if(value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if(magnitude >= MAX_BITS) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (value >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** Returns the smallest value counted in a bucket. */
+    static long lowestValue(int bucket) {
+        if(bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return (1L << magnitude) + ((long) sub << (magnitude - SUB_BITS));
+    }
+
+    /** Returns the width of a bucket. */
+    static long width(int bucket) {
+        if(bucket < SUB_BUCKETS) {
+            return 1;
+        }
+        return 1L << (bucket / SUB_BUCKETS - 1);
+    }
+
+    /** A histogram's contents at one moment. */
+    public static class Snapshot {
+        private final long[] counts;
+        /** Number of values recorded. */
+        public final long count;
+        /** Sum of the values recorded, in nanoseconds. */
+        public final long total;
+        /** Largest value recorded, in nanoseconds. */
+        public final long max;
+
+        Snapshot(long[] counts, long count, long total, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        /** Returns the mean value in nanoseconds, or zero if there are no
+            values. */
+        public long mean() {
+            return this.count == 0 ? 0 : this.total / this.count;
+        }
+
+        /** Returns the value below which the given fraction of the values
+            fall, in nanoseconds, to within the precision of the histogram.
+
+            @param fraction Between <code>0</code> and <code>1</code>, for
+                            example <code>0.99</code>.
+            @throws IllegalArgumentException If <code>fraction</code> is out
+                                             of range.
+         */
+        public long percentile(double fraction) {
+            if(!(fraction >= 0 && fraction <= 1)) {
+                throw new IllegalArgumentException("fraction out of range: " + fraction);
+            }
+            if(this.count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * this.count));
+            long seen = 0;
+            for(int i = 0; i < this.counts.length; i++) {
+                seen += this.counts[i];
+                if(seen >= rank) {
+                    // The middle of the bucket, but never above the maximum.
+                    return Math.min(lowestValue(i) + width(i) / 2, this.max);
+                }
+            }
+            return this.max;
+        }
+
+        /** Returns the count, mean, median, 99th percentile and maximum, in
+            microseconds. */
+        @Override
+        public String toString() {
+            return String.format("n=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus",
+                                 this.count, mean() / 1e3, percentile(0.5) / 1e3,
+                                 percentile(0.99) / 1e3, this.max / 1e3);
+        }
+    }
+}
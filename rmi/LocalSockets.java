@@ -0,0 +1,230 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Unix domain sockets shared by skeletons and stubs on the same host.
+
+    <p>
+    A skeleton listening on the wildcard address may also listen on a Unix
+    domain socket named after its port, in the directory given by the
+    <code>rmi.localSocketDir</code> system property. No other TCP listener can
+    hold that port on this host, so a stub whose skeleton address is one of
+    the host's own addresses may connect to the socket of that name instead.
+    Calls then skip the TCP/IP stack; the protocol spoken over the socket is
+    unchanged.
+
+    <p>
+    Stubs use local sockets only if the <code>rmi.localSocket</code> system
+    property is set, as skeletons listen on them. The default directory is
+    <code>rmi-</code><i>user</i> in the temporary directory, made readable by
+    its owner only. A directory which belongs to another user, or which
+    others may write to, is not used, and a stub only connects to a socket
+    file owned by the user it runs as: otherwise another user of the host
+    could take the socket's place.
+
+    <p>
+    The streams over a channel are made here rather than by
+    <code>Channels</code>, whose streams serialize reads with writes: a
+    multiplexed connection reads and writes at the same time.
+ */
+public class LocalSockets {
+    /** Whether stubs connect to local sockets. */
+    static final boolean ENABLED = Boolean.getBoolean("rmi.localSocket");
+
+    /* Addresses known to be, or not to be, addresses of this host. */
+    private static final ConcurrentHashMap<InetAddress, Boolean> local =
+                                    new ConcurrentHashMap<InetAddress, Boolean>();
+
+    /** Returns the socket address of the local listener for a port, or
+        <code>null</code> if there is no directory fit to hold it. */
+    public static UnixDomainSocketAddress address(int port) {
+        java.nio.file.Path dir = directory();
+        return dir == null ? null : UnixDomainSocketAddress.of(dir.resolve("rmi-" + port + ".sock"));
+    }
+
+    /** Returns the directory of the local sockets, making the default one if
+        need be, or <code>null</code> if it belongs to another user or others
+        may write to it. */
+    private static java.nio.file.Path directory() {
+        String user = System.getProperty("user.name");
+        String dir = System.getProperty("rmi.localSocketDir");
+        java.nio.file.Path path = dir != null ? Paths.get(dir)
+                        : Paths.get(System.getProperty("java.io.tmpdir"), "rmi-" + user);
+        try {
+            if(dir == null) {
+                try {
+                    Files.createDirectory(path, PosixFilePermissions.asFileAttribute(
+                                                PosixFilePermissions.fromString("rwx------")));
+                }
+                catch(FileAlreadyExistsException e) {
+                    // checked below like any other
+                }
+            }
+            if(!ownedByUser(path)) {
+                return null;
+            }
+            Set<PosixFilePermission> permissions =
+                Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+            if(permissions.contains(PosixFilePermission.GROUP_WRITE)
+                    || permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+                return null;
+            }
+            return path;
+        }
+        catch(IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /** Indicates whether a file, not followed if it is a link, belongs to the
+        user this process runs as. */
+    private static boolean ownedByUser(java.nio.file.Path path) throws IOException {
+        if(!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        return Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).getName()
+                    .equals(System.getProperty("user.name"));
+    }
+
+    /** Indicates whether a skeleton address belongs to this host, so that a
+        local listener for its port, if there is one, is the same skeleton. */
+    public static boolean isLocal(InetSocketAddress address) {
+        InetAddress ip = address.getAddress();
+        if(ip == null) {
+            return false;
+        }
+        if(ip.isLoopbackAddress() || ip.isAnyLocalAddress()) {
+            return true;
+        }
+        Boolean known = local.get(ip);
+        if(known == null) {
+            try {
+                known = NetworkInterface.getByInetAddress(ip) != null;
+            }
+            catch(SocketException e) {
+                known = false;
+            }
+            local.put(ip, known);
+        }
+        return known;
+    }
+
+    /** Opens the local listener for a port, replacing any socket file left
+        behind by an earlier listener on the same port.
+
+        @return The listener, or <code>null</code> if the socket cannot be
+                created.
+     */
+    static ServerSocketChannel listen(int port) {
+        UnixDomainSocketAddress address = address(port);
+        if(address == null) {
+            return null;
+        }
+        ServerSocketChannel channel = null;
+        try {
+            Files.deleteIfExists(address.getPath());
+            channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.bind(address, 1000);
+            return channel;
+        }
+        catch(IOException | UnsupportedOperationException e) {
+            ServerThread.close(channel);
+            return null;
+        }
+    }
+
+    /** Closes a local listener and removes its socket file. */
+    static void close(ServerSocketChannel channel) {
+        if(channel == null) {
+            return;
+        }
+        try {
+            SocketAddress address = channel.getLocalAddress();
+            channel.close();
+            if(address instanceof UnixDomainSocketAddress) {
+                Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+            }
+        }
+        catch(IOException e) {
+            // the file is replaced by the next listener on the port
+        }
+    }
+
+    /** Connects to the local listener for a skeleton's port.
+
+        @return The connected channel, or <code>null</code> if local sockets
+                are not enabled, the skeleton is not on this host, or it has
+                no local listener owned by this user.
+     */
+    static SocketChannel connect(InetSocketAddress skeleton) {
+        if(!ENABLED || !isLocal(skeleton)) {
+            return null;
+        }
+        UnixDomainSocketAddress address = address(skeleton.getPort());
+        if(address == null) {
+            return null;
+        }
+        try {
+            if(!ownedByUser(address.getPath())) {
+                return null;
+            }
+            return SocketChannel.open(address);
+        }
+        catch(IOException | UnsupportedOperationException e) {
+            // A socket file left behind by a listener which has gone.
+            return null;
+        }
+    }
+
+    /** Returns a stream reading from a blocking channel. */
+    static InputStream input(final SocketChannel channel) {
+        return new InputStream() {
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                if(len == 0) {
+                    return 0;
+                }
+                return channel.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /** Returns a stream writing to a blocking channel. */
+    static OutputStream output(final SocketChannel channel) {
+        return new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while(buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,102 @@
+package rmi;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** The methods of a remote interface, numbered in a fixed order.
+
+    <p>
+    Methods are ordered by signature: the method name followed by the names of
+    its parameter types. Stubs send their table to the skeleton once per
+    connection, and from then on identify each method by its ordinal in that
+    table instead of by name and parameter types.
+ */
+public class MethodTable {
+    private static final ConcurrentHashMap<Class<?>, MethodTable> tables =
+                                    new ConcurrentHashMap<Class<?>, MethodTable>();
+
+    Class<?> intf;
+    Method[] methods;
+    String[] signatures;
+    /* Whether each method is marked Idempotent, and NoDeadline. */
+    boolean[] idempotent;
+    boolean[] noDeadline;
+    HashMap<Method, Integer> ordinals = new HashMap<Method, Integer>();
+    HashMap<String, Integer> bySignature = new HashMap<String, Integer>();
+
+    private MethodTable(Class<?> intf) {
+        this.intf = intf;
+        Method[] all = intf.getMethods();
+        TreeMap<String, Method> sorted = new TreeMap<String, Method>();
+        for(Method m: all) {
+            sorted.put(signature(m), m);
+        }
+
+        this.methods = new Method[sorted.size()];
+        this.signatures = new String[sorted.size()];
+        this.idempotent = new boolean[sorted.size()];
+        this.noDeadline = new boolean[sorted.size()];
+        int ordinal = 0;
+        for(Map.Entry<String, Method> e: sorted.entrySet()) {
+            this.methods[ordinal] = e.getValue();
+            this.signatures[ordinal] = e.getKey();
+            this.idempotent[ordinal] = e.getValue().isAnnotationPresent(Idempotent.class);
+            this.noDeadline[ordinal] = e.getValue().isAnnotationPresent(NoDeadline.class);
+            this.ordinals.put(e.getValue(), ordinal);
+            this.bySignature.put(e.getKey(), ordinal);
+            ordinal++;
+        }
+    }
+
+    /** Returns the (cached) table for the given interface. */
+    public static MethodTable forInterface(Class<?> intf) {
+        MethodTable table = tables.get(intf);
+        if(table == null) {
+            tables.putIfAbsent(intf, new MethodTable(intf));
+            table = tables.get(intf);
+        }
+        return table;
+    }
+
+    /** Returns the signature of a method, for example
+        <code>read(common.Path,long,int)</code>. */
+    public static String signature(Method m) {
+        StringBuilder sb = new StringBuilder(m.getName());
+        sb.append('(');
+        Class<?>[] params = m.getParameterTypes();
+        for(int i = 0; i < params.length; i++) {
+            if(i > 0) {
+                sb.append(',');
+            }
+            sb.append(params[i].getName());
+        }
+        sb.append(')');
+        return sb.toString();
+    }
+
+    /** Returns the ordinal of a method of the interface, or <code>-1</code>. */
+    public int ordinal(Method m) {
+        Integer ordinal = this.ordinals.get(m);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    /** Returns the ordinal of the method with the given signature, or
+        <code>-1</code>. */
+    public int ordinal(String signature) {
+        Integer ordinal = this.bySignature.get(signature);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    public int size() {
+        return this.methods.length;
+    }
+
+    public Method method(int ordinal) {
+        return this.methods[ordinal];
+    }
+
+    public String signature(int ordinal) {
+        return this.signatures[ordinal];
+    }
+}
@@ -0,0 +1,22 @@
+package rmi;
+
+import java.lang.annotation.*;
+
+/** Marks a method of a remote interface whose calls are sent without a
+    deadline.
+
+    <p>
+    A call which takes something the caller must later give back, such as a
+    lock, cannot be abandoned by the caller alone: the server may still
+    complete it after the caller has stopped waiting, and nothing then gives
+    back what it took. Calls to a marked method wait for their result
+    whatever deadline is in force on the calling thread or set on the stub,
+    and the server runs them with no deadline. A batch holding such a call is
+    sent without a deadline too.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface NoDeadline
+{
+}
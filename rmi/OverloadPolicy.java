@@ -0,0 +1,19 @@
+package rmi;
+
+/** What a skeleton does when its call queue or connection limit is full.
+
+    <p>
+    See <code>Skeleton.setOverloadPolicy</code>.
+ */
+public enum OverloadPolicy
+{
+    /** Refuse the excess work at once. A call which cannot be queued fails on
+        the stub with an <code>RMIException</code>, and a connection beyond
+        the limit is closed as soon as it is accepted. */
+    REJECT,
+
+    /** Push back on the callers. A connection whose call cannot be queued is
+        not read from until there is room, and no further connections are
+        accepted while the queue or the connection limit is full. */
+    BLOCK
+}
@@ -0,0 +1,330 @@
+package rmi;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/** Wire protocol spoken between stubs and skeletons.
+
+    <p>
+    A connection opens with a handshake. The stub sends <code>MAGIC</code>,
+    <code>VERSION</code> and its method table: the number of methods followed by
+    the signature of each, in ordinal order (see <code>MethodTable</code>). The
+    skeleton answers with <code>MAGIC</code> and a status byte.
+
+    <p>
+    After the handshake, every message is a frame: an <code>int</code> length
+    followed by that many bytes. A request frame holds the call id, the time
+    left before the caller's deadline in milliseconds (zero if it has none),
+    the method ordinal, the argument count and the arguments, each encoded by
+    <code>Codec</code>. A response frame holds the call id, a status byte and
+    either the encoded result (<code>STATUS_OK</code>), the class name and
+    message of the exception thrown (<code>STATUS_ERROR</code>), or the
+    exception itself in Java serialized form (<code>STATUS_ERROR_SERIALIZED</code>)
+    when it cannot be rebuilt from a class name and message.
+
+    <p>
+    A batch request carries the call id and time left, the ordinal
+    <code>BATCH</code>, then the number of calls, then for each call its
+    ordinal, argument count and arguments. The skeleton runs the calls in
+    order, and answers with <code>STATUS_BATCH</code>, the number of calls,
+    and for each call a status byte followed by its result or exception,
+    encoded as in a single response.
+ */
+public class Protocol {
+    public static final int MAGIC = 0x44465352;
+    public static final byte VERSION = 3;
+
+    public static final byte HANDSHAKE_OK = 0;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+    public static final byte STATUS_ERROR_SERIALIZED = 2;
+    public static final byte STATUS_BATCH = 3;
+
+    /** Method ordinal which marks a batch request. */
+    public static final int BATCH = -1;
+
+    /** Largest frame that fits in a Java array. Longer lengths can only come
+        from a corrupt stream. */
+    public static final int MAX_FRAME = Integer.MAX_VALUE - 8;
+
+    /** Sends the stub's side of the handshake and waits for the answer. */
+    public static void connect(DataInputStream in, DataOutputStream out, MethodTable table)
+            throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(table.size());
+        for(int i = 0; i < table.size(); i++) {
+            out.writeUTF(table.signature(i));
+        }
+        out.flush();
+
+        if(in.readInt() != MAGIC) {
+            throw new StreamCorruptedException("not an RMI skeleton");
+        }
+        if(in.readByte() != HANDSHAKE_OK) {
+            throw new StreamCorruptedException("handshake refused");
+        }
+    }
+
+    /** Reads the stub's side of the handshake and answers it.
+
+        @return For each ordinal in the stub's table, the ordinal of the same
+                method in the skeleton's table, or <code>-1</code> if the
+                skeleton does not implement the method.
+     */
+    public static int[] accept(DataInputStream in, DataOutputStream out, MethodTable table)
+            throws IOException {
+        if(in.readInt() != MAGIC || in.readByte() != VERSION) {
+            throw new StreamCorruptedException("not an RMI stub");
+        }
+        int count = in.readInt();
+        if(count < 0) {
+            throw new StreamCorruptedException("bad method count");
+        }
+        int[] ordinals = new int[count];
+        for(int i = 0; i < count; i++) {
+            ordinals[i] = table.ordinal(in.readUTF());
+        }
+
+        out.writeInt(MAGIC);
+        out.writeByte(HANDSHAKE_OK);
+        out.flush();
+        return ordinals;
+    }
+
+    /** Reads the length of the next frame, and returns a stream limited to
+        its body. The body can then be decoded straight from the connection,
+        without first being copied into an array; the caller must call
+        <code>skipRemaining</code> once it is done with the frame.
+
+        @throws EOFException If the stream ends before a frame starts, which is
+                             how the peer closes a connection.
+     */
+    public static FrameInput openFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length < 0 || length > MAX_FRAME) {
+            throw new StreamCorruptedException("bad frame length " + length);
+        }
+        return new FrameInput(in, length);
+    }
+
+    /** Writes one frame and flushes it. The caller must hold the lock on
+        <code>out</code> if the stream is shared. */
+    public static void writeFrame(DataOutputStream out, FrameBuffer frame) throws IOException {
+        out.writeInt(frame.size());
+        frame.writeTo(out);
+        out.flush();
+    }
+
+    /** Stream over the body of one frame, read from the connection. Reads past
+        the end of the body see the end of the stream. */
+    public static class FrameInput extends FilterInputStream {
+        int remaining;
+
+        FrameInput(InputStream in, int length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(this.remaining == 0) {
+                return -1;
+            }
+            int b = this.in.read();
+            if(b < 0) {
+                throw new EOFException("connection closed within a frame");
+            }
+            this.remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            if(this.remaining == 0) {
+                return -1;
+            }
+            int n = this.in.read(b, off, Math.min(len, this.remaining));
+            if(n < 0) {
+                throw new EOFException("connection closed within a frame");
+            }
+            this.remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = this.in.skip(Math.min(n, this.remaining));
+            this.remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.min(this.in.available(), this.remaining);
+        }
+
+        @Override
+        public void close() {
+            // the connection stays open
+        }
+
+        /** Discards the rest of the body, so that the connection is positioned
+            at the next frame. */
+        public void skipRemaining() throws IOException {
+            byte[] discard = null;
+            while(this.remaining > 0) {
+                long n = this.in.skip(this.remaining);
+                if(n > 0) {
+                    this.remaining -= n;
+                    continue;
+                }
+                if(discard == null) {
+                    discard = new byte[Math.min(this.remaining, 8192)];
+                }
+                if(read(discard, 0, Math.min(discard.length, this.remaining)) < 0) {
+                    throw new EOFException("connection closed within a frame");
+                }
+            }
+        }
+    }
+
+    /** Data stream over the body of one frame, through which
+        <code>Codec</code> learns how much of the body is left, and so rejects
+        lengths that the frame cannot hold. */
+    public static class FrameDataInput extends DataInputStream {
+        final FrameInput frame;
+
+        public FrameDataInput(FrameInput frame) {
+            super(frame);
+            this.frame = frame;
+        }
+    }
+
+    /** Output stream of a <code>FrameBuffer</code>. */
+    public static class FrameOutput extends DataOutputStream {
+        final FrameBuffer frame;
+
+        FrameOutput(FrameBuffer frame) {
+            super(frame);
+            this.frame = frame;
+        }
+    }
+
+    /** Growable buffer in which a frame is encoded before it is written.
+
+        <p>
+        A buffer made to carry attachments does not copy large byte arrays
+        written by <code>Codec</code>: it keeps a reference to each, and writes
+        it in its place when the frame is written. Such an array must not be
+        changed until the frame has been written.
+     */
+    public static class FrameBuffer extends ByteArrayOutputStream {
+        public final FrameOutput data = new FrameOutput(this);
+        /* Whether large arrays are attached rather than copied. */
+        final boolean attachments;
+        /* Arrays attached, in order, and the offset in the frame at which
+           each starts. */
+        private final ArrayList<byte[]> attached = new ArrayList<byte[]>(0);
+        private final ArrayList<Integer> attachedAt = new ArrayList<Integer>(0);
+        /* Total length of the arrays attached. */
+        private int attachedLength = 0;
+
+        public FrameBuffer() {
+            this(false);
+        }
+
+        /** @param attachments Whether large arrays may be attached rather than
+                               copied into the buffer. */
+        public FrameBuffer(boolean attachments) {
+            super(256);
+            this.attachments = attachments;
+        }
+
+        /** Adds an array to the frame, after the bytes written so far, without
+            copying it. */
+        void attach(byte[] bytes) {
+            this.attachedAt.add(size());
+            this.attached.add(bytes);
+            this.attachedLength += bytes.length;
+        }
+
+        /** Returns the length of the frame, including attached arrays. */
+        @Override
+        public int size() {
+            return this.count + this.attachedLength;
+        }
+
+        /** Overwrites four bytes already written with an <code>int</code>,
+            in the byte order of <code>DataOutputStream</code>. The bytes must
+            come before any attached array. */
+        public void setInt(int index, int value) {
+            int limit = this.attached.isEmpty() ? this.count : this.attachedAt.get(0);
+            if(index < 0 || index + 4 > limit) {
+                throw new IndexOutOfBoundsException();
+            }
+            this.buf[index] = (byte) (value >>> 24);
+            this.buf[index + 1] = (byte) (value >>> 16);
+            this.buf[index + 2] = (byte) (value >>> 8);
+            this.buf[index + 3] = (byte) value;
+        }
+
+        /** Discards everything written after the first <code>size</code>
+            bytes of the frame. */
+        public void truncate(int size) {
+            if(size < 0 || size > size()) {
+                throw new IndexOutOfBoundsException();
+            }
+            int last = this.attached.size() - 1;
+            while(last >= 0 && this.attachedAt.get(last) >= size) {
+                this.attachedLength -= this.attached.remove(last).length;
+                this.attachedAt.remove(last);
+                last--;
+            }
+            this.count = size - this.attachedLength;
+        }
+
+        /** Writes the frame, with its attached arrays in place. */
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            int written = 0;
+            int inline = 0;
+            for(int i = 0; i < this.attached.size(); i++) {
+                int upTo = this.attachedAt.get(i) - (written - inline);
+                out.write(this.buf, inline, upTo - inline);
+                written += upTo - inline;
+                inline = upTo;
+                out.write(this.attached.get(i));
+                written += this.attached.get(i).length;
+            }
+            out.write(this.buf, inline, this.count - inline);
+        }
+
+        /** Returns the frame as its length prefix and its body, for a
+            gathering write. Neither the body nor the attached arrays are
+            copied. */
+        public ByteBuffer[] toBuffers() {
+            ByteBuffer[] buffers = new ByteBuffer[2 + 2 * this.attached.size()];
+            buffers[0] = ByteBuffer.allocate(4);
+            buffers[0].putInt(0, size());
+
+            int n = 1;
+            int inline = 0;
+            int attachedSoFar = 0;
+            for(int i = 0; i < this.attached.size(); i++) {
+                int upTo = this.attachedAt.get(i) - attachedSoFar;
+                buffers[n++] = ByteBuffer.wrap(this.buf, inline, upTo - inline);
+                buffers[n++] = ByteBuffer.wrap(this.attached.get(i));
+                attachedSoFar += this.attached.get(i).length;
+                inline = upTo;
+            }
+            buffers[n] = ByteBuffer.wrap(this.buf, inline, this.count - inline);
+            return buffers;
+        }
+    }
+}
@@ -1,20 +1,47 @@
 package rmi;
 import java.lang.reflect.*;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 public class RMIInvocationHandler implements InvocationHandler, Serializable {
     InetSocketAddress skeletonAddress;
     Class<?> intf;
+    /* Time allowed for each call made through the stub, or zero for no
+       limit. See Stub.withTimeout. */
+    long timeoutNanos = 0;
+    /* Whether concurrent identical calls to idempotent methods share one
+       request. See Stub.coalescing. */
+    boolean coalescing = false;
+    /* The shared calls in progress, by method and arguments. Made on the first
+       shared call, so that it need not be serialized. */
+    private transient volatile ConcurrentHashMap<SharedCall, CompletableFuture<Object>> shared;
+    /* Bumped as each call which may change the server completes, before its
+       caller has the result, so that a shared call is only joined by callers
+       whose own earlier calls it follows. */
+    private transient volatile long epoch;
+
+    private static final AtomicLongFieldUpdater<RMIInvocationHandler> EPOCH =
+        AtomicLongFieldUpdater.newUpdater(RMIInvocationHandler.class, "epoch");
 
     public RMIInvocationHandler(Class<?> c, InetSocketAddress address) {
         this.intf = c;
         this.skeletonAddress = address;
     }
 
+    /** Returns a handler for the same skeleton with the same settings, which
+        shares no calls with this one. */
+    RMIInvocationHandler copy() {
+        RMIInvocationHandler copy = new RMIInvocationHandler(this.intf, this.skeletonAddress);
+        copy.timeoutNanos = this.timeoutNanos;
+        copy.coalescing = this.coalescing;
+        return copy;
+    }
+
 
     public boolean equalsStub(Object stub) {
         if(stub == null) {
@@ -22,7 +49,7 @@ public class RMIInvocationHandler implements InvocationHandler, Serializable {
         }
 
         try {
-            RMIInvocationHandler stubhandler = (RMIInvocationHandler) Proxy.getInvocationHandler(stub);
+            RMIInvocationHandler stubhandler = AsyncStub.handlerOf(stub);
             if(this.skeletonAddress.toString().equals(stubhandler.skeletonAddress.toString())
                     && this.intf.toString().equals(stubhandler.intf.toString())) {
                 return true;
@@ -45,16 +72,9 @@ public class RMIInvocationHandler implements InvocationHandler, Serializable {
     }
 
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-        Object result = null;
-        Socket socket = null;
-        ObjectOutputStream objOutput = null;
-        ObjectInputStream objInput = null;
-
-        //System.out.println(method.getName());
-        try {
-            this.intf.getMethod(method.getName(), method.getParameterTypes());
-        }
-        catch(NoSuchMethodException e) {
+        // Only equals, hashCode and toString come from Object; every other
+        // method belongs to the interface.
+        if(method.getDeclaringClass() == Object.class) {
             switch(method.getName()) {
                 case "equals":                  return this.equalsStub(args[0]);
                 case "hashCode":                return this.hashCodeStub();
@@ -63,36 +83,279 @@ public class RMIInvocationHandler implements InvocationHandler, Serializable {
             }
         }
 
+        return call(MethodTable.forInterface(this.intf).ordinal(method), args);
+    }
+
+    /** Makes a call and waits for its result.
+
+        @throws Throwable The exception thrown by the method, or an
+                          <code>RMIException</code> if the call cannot be
+                          completed.
+     */
+    Object call(int ordinal, Object[] args) throws Throwable {
+        if(this.coalescing && ordinal >= 0
+                && MethodTable.forInterface(this.intf).idempotent[ordinal]) {
+            return callShared(ordinal, args);
+        }
         try {
-            socket = new Socket(this.skeletonAddress.getAddress(),
-                                       this.skeletonAddress.getPort());
-            objOutput = new ObjectOutputStream(socket.getOutputStream());
-            objOutput.flush();
-            objInput = new ObjectInputStream(socket.getInputStream());
+            return invokeAsync(ordinal, args).join();
+        }
+        catch(CompletionException e) {
+            throw e.getCause();
+        }
+    }
 
-            objOutput.writeObject(method.getName());
-            //System.out.println("\n\n---Writing " + method.getParameterTypes());
-            objOutput.writeObject(method.getParameterTypes());
-            //System.out.println("\n\n---Writing " + Arrays.toString(args));
-            objOutput.writeObject(args);
-            objOutput.flush();
+    /** Makes a call to an idempotent method, or waits for an identical call
+        already in progress on this stub and takes its result.
 
-            result = objInput.readObject();
+        <p>
+        Only a call sent since the last call to another method on this stub
+        completed is joined, so a caller never takes a result which may not
+        reflect its own earlier calls.
+
+        <p>
+        A caller which joins another call waits no longer than its own
+        deadline. If the call it joined fails because of the first caller's
+        deadline, and its own has not passed, it makes the call again. Arrays
+        returned to the callers which joined are copies.
+     */
+    private Object callShared(int ordinal, Object[] args) throws Throwable {
+        final ConcurrentHashMap<SharedCall, CompletableFuture<Object>> calls = shared();
+        while(true) {
+            final SharedCall key = new SharedCall(this.epoch, ordinal, args);
+            final CompletableFuture<Object> own = new CompletableFuture<Object>();
+            CompletableFuture<Object> running = calls.putIfAbsent(key, own);
+            if(running == null) {
+                invokeAsync(ordinal, args).whenComplete((value, error) -> {
+                    calls.remove(key, own);
+                    if(error == null) {
+                        own.complete(value);
+                    }
+                    else {
+                        own.completeExceptionally(error);
+                    }
+                });
+                try {
+                    return own.join();
+                }
+                catch(CompletionException e) {
+                    throw e.getCause();
+                }
+            }
+
+            Deadline deadline = deadline();
+            try {
+                Object value = deadline == null ? running.get()
+                                : running.get(deadline.remaining(TimeUnit.NANOSECONDS),
+                                              TimeUnit.NANOSECONDS);
+                return copyOf(value);
+            }
+            catch(TimeoutException e) {
+                throw new DeadlineExceededException("call did not complete within its deadline");
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RMIException(e);
+            }
+            catch(ExecutionException e) {
+                if(!(e.getCause() instanceof DeadlineExceededException)
+                        || (deadline != null && deadline.isExpired())) {
+                    throw e.getCause();
+                }
+            }
         }
-        catch(UnknownHostException e) {
-            throw new RMIException(e);
+    }
+
+    /** Returns the map of shared calls in progress, making it if need be. */
+    private ConcurrentHashMap<SharedCall, CompletableFuture<Object>> shared() {
+        ConcurrentHashMap<SharedCall, CompletableFuture<Object>> calls = this.shared;
+        if(calls == null) {
+            synchronized(this) {
+                if(this.shared == null) {
+                    this.shared = new ConcurrentHashMap<SharedCall, CompletableFuture<Object>>();
+                }
+                calls = this.shared;
+            }
         }
-        catch(IOException e) {
-            throw new RMIException(e);
+        return calls;
+    }
+
+    /** Returns a shallow copy of a value if it is an array, and the value
+        itself otherwise, so that callers sharing a result cannot see each
+        other's changes to it. */
+    private static Object copyOf(Object value) {
+        if(value == null || !value.getClass().isArray()) {
+            return value;
+        }
+        int length = Array.getLength(value);
+        Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+        System.arraycopy(value, 0, copy, 0, length);
+        return copy;
+    }
+
+    /** A method and its arguments, compared by value, with the stub's epoch
+        when the call was made. */
+    private static class SharedCall {
+        final long epoch;
+        final int ordinal;
+        final Object[] args;
+        final int hash;
+
+        SharedCall(long epoch, int ordinal, Object[] args) {
+            this.epoch = epoch;
+            this.ordinal = ordinal;
+            this.args = args == null ? new Object[0] : args.clone();
+            this.hash = 31 * (31 * Long.hashCode(epoch) + ordinal)
+                        + Arrays.deepHashCode(this.args);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(!(other instanceof SharedCall)) {
+                return false;
+            }
+            SharedCall call = (SharedCall) other;
+            return this.epoch == call.epoch && this.ordinal == call.ordinal
+                && Arrays.deepEquals(this.args, call.args);
         }
-        finally {
-            if(objInput != null) objInput.close();
-            if(objOutput != null) objOutput.close();
-            if(socket != null) socket.close();
+
+        @Override
+        public int hashCode() {
+            return this.hash;
         }
-        if(result instanceof InvocationTargetException) {
-            throw ((InvocationTargetException) result).getTargetException();
+    }
+
+    /** Sends a call without waiting for its result.
+
+        <p>
+        The arguments are encoded before this method returns, so the caller may
+        reuse them at once.
+
+        @return A future completed with the return value of the method. It
+                fails with the exception thrown by the method, or with an
+                <code>RMIException</code> if the call cannot be completed.
+     */
+    CompletableFuture<Object> invokeAsync(int ordinal, Object[] args) {
+        CompletableFuture<Object> result = new CompletableFuture<Object>();
+        long started = System.nanoTime();
+        Protocol.FrameBuffer request;
+        try {
+            request = Connection.encode(ordinal, args);
+        }
+        catch(IOException e) {
+            CallMetrics.forStubs(this.intf).record(ordinal, true, 0, 0,
+                                                   System.nanoTime() - started, 0);
+            result.completeExceptionally(new RMIException(e));
+            return result;
         }
+        long encoded = System.nanoTime();
+        MethodTable table = MethodTable.forInterface(this.intf);
+        Deadline deadline = ordinal >= 0 && table.noDeadline[ordinal] ? null : deadline();
+        attempt(table, ordinal, request, result, deadline, encoded - started, encoded);
         return result;
     }
+
+    /** Sends a request frame encoded by the caller - such as a batch - without
+        waiting for the response.
+
+        @param noDeadline Whether the request is sent without a deadline, as
+                          for a method marked <code>NoDeadline</code>.
+        @return A future completed with the decoded response, or failed with an
+                <code>RMIException</code> if the call cannot be completed.
+     */
+    CompletableFuture<Object> invokeAsync(Protocol.FrameBuffer request, boolean noDeadline) {
+        CompletableFuture<Object> result = new CompletableFuture<Object>();
+        attempt(MethodTable.forInterface(this.intf), Protocol.BATCH, request, result,
+                noDeadline ? null : deadline(), 0, System.nanoTime());
+        return result;
+    }
+
+    /** Sends a request on a pooled connection, retrying on another if the
+        connection turns out to have been closed, and records the call in the
+        stub metrics once it completes.
+
+        @param deadline The call's deadline, or <code>null</code>.
+        @param encodeNanos The time taken to encode the request.
+        @param sent When the request was first sent.
+     */
+    private void attempt(final MethodTable table, final int ordinal,
+                         final Protocol.FrameBuffer request,
+                         final CompletableFuture<Object> result, final Deadline deadline,
+                         final long encodeNanos, final long sent) {
+        final CallMetrics metrics = CallMetrics.forStubs(this.intf);
+        final Connection conn;
+        try {
+            if(deadline != null && deadline.isExpired()) {
+                throw new SocketTimeoutException("call deadline exceeded");
+            }
+            conn = ConnectionPool.acquire(this.skeletonAddress, table, deadline);
+        }
+        catch(IOException e) {
+            metrics.record(ordinal, true, 0, request.size(), encodeNanos,
+                           System.nanoTime() - sent);
+            result.completeExceptionally(failure(e, deadline));
+            return;
+        }
+
+        // A pooled connection may have been closed by the skeleton while it
+        // was idle. A call sent alone on it then never reached the server, and
+        // is retried on another connection. A call which shared the connection
+        // with others may have run before it dropped, so it is retried only if
+        // it is idempotent. Failures on fresh connections are reported to the
+        // caller.
+        final boolean retryable = conn.isReused()
+                && ordinal >= 0 && table.idempotent[ordinal];
+        final Connection.Reply reply = conn.send(request, deadline);
+        reply.whenComplete((value, error) -> {
+            ConnectionPool.release(conn);
+            if(ordinal < 0 || !table.idempotent[ordinal]) {
+                EPOCH.incrementAndGet(this);
+            }
+            if(error == null) {
+                metrics.record(ordinal, value instanceof InvocationTargetException,
+                               reply.size, request.size(), encodeNanos + reply.decodeNanos,
+                               System.nanoTime() - sent - reply.decodeNanos);
+                if(value instanceof InvocationTargetException) {
+                    result.completeExceptionally(
+                        ((InvocationTargetException) value).getTargetException());
+                }
+                else {
+                    result.complete(value);
+                }
+                return;
+            }
+
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if((reply.idle || retryable)
+                    && (cause instanceof EOFException || cause instanceof SocketException)) {
+                attempt(table, ordinal, request, result, deadline, encodeNanos, sent);
+            }
+            else {
+                metrics.record(ordinal, true, reply.size, request.size(),
+                               encodeNanos + reply.decodeNanos, System.nanoTime() - sent);
+                result.completeExceptionally(failure(cause, deadline));
+            }
+        });
+    }
+
+    /** Returns the deadline for a call made now: the earlier of the calling
+        thread's deadline and this stub's timeout, or <code>null</code> if
+        there is neither. */
+    private Deadline deadline() {
+        Deadline own = this.timeoutNanos > 0
+                        ? Deadline.after(this.timeoutNanos, TimeUnit.NANOSECONDS) : null;
+        return Deadline.earliest(Deadline.current(), own);
+    }
+
+    /** Returns the exception for a call which could not be completed. */
+    private static RMIException failure(Throwable cause, Deadline deadline) {
+        if(cause instanceof SocketTimeoutException
+                || (deadline != null && deadline.isExpired())) {
+            RMIException e = new DeadlineExceededException(
+                                "call did not complete within its deadline");
+            e.initCause(cause);
+            return e;
+        }
+        return new RMIException(cause);
+    }
 }
@@ -0,0 +1,98 @@
+package rmi;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A call or a batch of calls, decoded from a request frame.
+
+    <p>
+    Requests are decoded by the thread reading the connection, straight from
+    its input, and then handed to a worker. A call whose arguments cannot be
+    decoded is kept, with the error, so that the worker can still answer it;
+    in a batch, the calls after it cannot be found and share the same error.
+ */
+class Request {
+    int callId;
+    /* The caller's deadline, or null. */
+    Deadline deadline = null;
+    boolean batch = false;
+    /* Number of calls; one unless the request is a batch. */
+    int count = 1;
+    /* Method ordinal and arguments of each call decoded, in the stub's
+       method table. */
+    int[] methods = new int[1];
+    Object[][] params = new Object[1][];
+    int decoded = 0;
+    /* Bytes of the frame taken by each call decoded, and the time spent
+       decoding it. */
+    int[] sizes = new int[1];
+    long[] decodeNanos = new long[1];
+    /* Why the calls after the first <code>decoded</code> could not be read. */
+    Exception error = null;
+
+    /** Decodes a request frame.
+
+        @throws IOException If not even the call id and the time left can be
+                            read, so that the request cannot be answered.
+     */
+    static Request decode(Protocol.FrameInput frame) throws IOException {
+        DataInputStream in = new Protocol.FrameDataInput(frame);
+        int length = frame.remaining;
+        long started = System.nanoTime();
+        Request request = new Request();
+        request.callId = in.readInt();
+        int timeout = in.readInt();
+        if(timeout > 0) {
+            request.deadline = Deadline.after(timeout, TimeUnit.MILLISECONDS);
+        }
+        try {
+            int ordinal = in.readInt();
+            if(ordinal == Protocol.BATCH) {
+                // A batch whose size cannot be read is answered as one call.
+                int count = in.readInt();
+                if(count < 0) {
+                    throw new StreamCorruptedException("bad batch size " + count);
+                }
+                request.batch = true;
+                request.count = count;
+                for(int i = 0; i < request.count; i++) {
+                    int remaining = frame.remaining;
+                    long callStarted = System.nanoTime();
+                    request.add(in.readInt(), in, frame, remaining, callStarted);
+                }
+            }
+            else {
+                request.add(ordinal, in, frame, length, started);
+            }
+        }
+        catch(IOException | RuntimeException e) {
+            request.error = e;
+        }
+        return request;
+    }
+
+    /** Decodes the arguments of one call and appends it.
+
+        @param remaining The bytes left in the frame when the call started.
+        @param started When decoding of the call started.
+     */
+    private void add(int ordinal, DataInputStream in, Protocol.FrameInput frame,
+                     int remaining, long started) throws IOException {
+        Object[] args = new Object[in.readInt()];
+        for(int i = 0; i < args.length; i++) {
+            args[i] = Codec.readValue(in);
+        }
+        if(this.decoded == this.methods.length) {
+            this.methods = Arrays.copyOf(this.methods, this.decoded * 2);
+            this.params = Arrays.copyOf(this.params, this.decoded * 2);
+            this.sizes = Arrays.copyOf(this.sizes, this.decoded * 2);
+            this.decodeNanos = Arrays.copyOf(this.decodeNanos, this.decoded * 2);
+        }
+        this.methods[this.decoded] = ordinal;
+        this.params[this.decoded] = args;
+        this.sizes[this.decoded] = remaining - frame.remaining;
+        this.decodeNanos[this.decoded] = System.nanoTime() - started;
+        this.decoded++;
+    }
+}
@@ -0,0 +1,188 @@
+package rmi;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Event loop serving every connection of a skeleton from one thread.
+
+    <p>
+    The thread accepts connections and reads requests from all of them,
+    waiting on a <code>Selector</code>; the calls themselves run on the
+    skeleton's executor. An idle connection therefore costs no thread. When
+    the listening channel is closed, the loop stops reading, waits for the
+    calls in progress to write their responses, and closes every connection.
+    The skeleton's Unix domain socket, if it has one, is served by the same
+    loop.
+
+    <p>
+    Under <code>OverloadPolicy.BLOCK</code>, a call that cannot be queued holds
+    up the loop until there is room, so that no connection is read from in the
+    meantime, and connections are not accepted while the connection limit is
+    reached or the queue is full.
+ */
+public class SelectorThread<T> extends Thread {
+    /* Open connections. Each removes itself when it closes. */
+    Set<ChannelConnection<T>> connections = ConcurrentHashMap.newKeySet();
+    Skeleton<T> skeleton;
+    ServerSocketChannel serverChannel;
+    /* The skeleton's Unix domain socket, or null. */
+    ServerSocketChannel localChannel;
+    Selector selector;
+    SelectionKey acceptKey;
+    SelectionKey localKey = null;
+
+    public SelectorThread(Skeleton<T> skeleton, ServerSocketChannel serverChannel,
+                          ServerSocketChannel localChannel) throws IOException {
+        super("rmi-selector-" + skeleton.intf.getSimpleName());
+        this.skeleton = skeleton;
+        this.serverChannel = serverChannel;
+        this.localChannel = localChannel;
+        this.selector = Selector.open();
+        serverChannel.configureBlocking(false);
+        this.acceptKey = serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        if(localChannel != null) {
+            localChannel.configureBlocking(false);
+            this.localKey = localChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    public void run() {
+        try {
+            while(this.serverChannel.isOpen()) {
+                boolean admitting = admitting();
+                this.acceptKey.interestOps(admitting ? SelectionKey.OP_ACCEPT : 0);
+                if(this.localKey != null) {
+                    this.localKey.interestOps(admitting ? SelectionKey.OP_ACCEPT : 0);
+                }
+                // Re-check admission periodically while connections are held
+                // back.
+                this.selector.select(admitting ? 0 : 10);
+                handleKeys();
+            }
+        }
+        catch(ClosedSelectorException | CancelledKeyException e) {
+            // the skeleton is stopping
+        }
+        catch(IOException e) {
+            if(this.serverChannel.isOpen()) {
+                this.skeleton.listen_error(e);
+            }
+        }
+        finally {
+            drain();
+        }
+    }
+
+    private boolean admitting() {
+        if(this.skeleton.overloadPolicy != OverloadPolicy.BLOCK) {
+            return true;
+        }
+        return this.connections.size() < this.skeleton.maxConnections
+                && !this.skeleton.isQueueFull();
+    }
+
+    private void handleKeys() throws IOException {
+        Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+        while(it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            if(!key.isValid()) {
+                continue;
+            }
+            if(key == this.acceptKey || key == this.localKey) {
+                if(key.isAcceptable()) {
+                    accept((ServerSocketChannel) key.channel());
+                }
+                continue;
+            }
+
+            @SuppressWarnings("unchecked")
+            ChannelConnection<T> conn = (ChannelConnection<T>) key.attachment();
+            if(key.isWritable()) {
+                conn.flush();
+            }
+            if(key.isValid() && key.isReadable()) {
+                conn.read();
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel;
+        while((channel = server.accept()) != null) {
+            if(this.connections.size() >= this.skeleton.maxConnections) {
+                // Only reached under OverloadPolicy.REJECT.
+                this.skeleton.rejectedCalls.incrementAndGet();
+                ServerThread.close(channel);
+                continue;
+            }
+            try {
+                channel.configureBlocking(false);
+                if(server == this.serverChannel) {
+                    channel.socket().setTcpNoDelay(true);
+                }
+                ChannelConnection<T> conn = new ChannelConnection<T>(this.skeleton, this, channel);
+                conn.key = channel.register(this.selector, SelectionKey.OP_READ, conn);
+                this.connections.add(conn);
+            }
+            catch(IOException e) {
+                ServerThread.close(channel);
+            }
+        }
+    }
+
+    /** Stops reading every connection, then serves the remaining writes until
+        all of them have closed. */
+    private void drain() {
+        try {
+            for(ChannelConnection<T> conn: new ArrayList<ChannelConnection<T>>(this.connections)) {
+                conn.shutdownInput();
+            }
+            while(!this.connections.isEmpty() && this.selector.isOpen()) {
+                this.selector.select(10);
+                handleKeys();
+            }
+        }
+        catch(IOException | ClosedSelectorException e) {
+            // nothing more can be written
+        }
+        finally {
+            for(ChannelConnection<T> conn: new ArrayList<ChannelConnection<T>>(this.connections)) {
+                conn.close();
+            }
+            ServerThread.close(this.selector);
+            ServerThread.close(this.serverChannel);
+            LocalSockets.close(this.localChannel);
+        }
+    }
+
+    /** Adds or removes an operation from a connection's interest set. May be
+        called from any thread. */
+    void interest(ChannelConnection<T> conn, int op, boolean on) {
+        SelectionKey key = conn.key;
+        try {
+            int ops = key.interestOps();
+            int updated = on ? ops | op : ops & ~op;
+            if(updated != ops) {
+                key.interestOps(updated);
+                if(Thread.currentThread() != this) {
+                    this.selector.wakeup();
+                }
+            }
+        }
+        catch(CancelledKeyException e) {
+            // the connection has closed
+        }
+    }
+
+    void closed(ChannelConnection<T> conn) {
+        this.connections.remove(conn);
+    }
+
+    /** Wakes the loop, so that it notices the listening channel closing. */
+    void wakeup() {
+        this.selector.wakeup();
+    }
+}
@@ -1,13 +1,53 @@
 package rmi;
 import java.net.*;
 import java.io.*;
+import java.nio.channels.*;
 import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
-public class ServerThread<T> extends Thread {
+/** Reads the calls arriving on one connection.
+
+    <p>
+    Each request carries a call id chosen by the stub. The call is handed to the
+    skeleton's executor as soon as it has been read, so calls on the same
+    connection run concurrently, and the response - tagged with the same call
+    id - is written back as soon as the call returns, in whatever order the
+    calls complete. See <code>Protocol</code> for the message layout.
+
+    <p>
+    The connection is read on a thread from the skeleton's connection thread
+    factory, which may make virtual threads. Responses are therefore
+    serialized with a <code>ReentrantLock</code> rather than a monitor, so that
+    a virtual thread blocked writing to the socket does not hold its carrier.
+ */
+public class ServerThread<T> implements Runnable {
+    /* The TCP socket, or null if the connection came through the skeleton's
+       Unix domain socket. */
     Socket socket = null;
+    /* The Unix domain socket, or null. */
+    SocketChannel channel = null;
     T server = null;
     Class<T> intf;
     Skeleton<T> skeleton;
+    DataOutputStream output = null;
+    /* Held while a response is written to the output. */
+    final ReentrantLock writeLock = new ReentrantLock();
+    /* The thread reading the connection. */
+    Thread thread;
+    /* Maps the ordinals of the stub's method table to the skeleton's. */
+    int[] ordinals;
+    /* Calls read from the connection whose responses have not been written,
+       which may be any number while their responses are deferred. Guarded by
+       drainLock, which is signalled when the count falls to zero. */
+    int inFlight = 0;
+    final ReentrantLock drainLock = new ReentrantLock();
+    final Condition drained = this.drainLock.newCondition();
+    /* The listening thread's set of open connections. */
+    Set<ServerThread<T>> connections = null;
+    /* Set once no more calls are to be read. */
+    volatile boolean inputShutdown = false;
 
     public ServerThread(Skeleton<T> skeleton, Socket socket, T server, Class<T> intf) {
         this.skeleton = skeleton;
@@ -16,70 +56,224 @@ public class ServerThread<T> extends Thread {
         this.intf = intf;
     }
 
+    /** Serves a connection accepted on the skeleton's Unix domain socket. */
+    public ServerThread(Skeleton<T> skeleton, SocketChannel channel, T server, Class<T> intf) {
+        this.skeleton = skeleton;
+        this.channel = channel;
+        this.server = server;
+        this.intf = intf;
+    }
+
+    /** Starts reading the connection on a thread made by the given factory. */
+    void start(ThreadFactory factory) {
+        this.thread = factory.newThread(this);
+        this.thread.start();
+    }
+
+    /** Waits for the connection to be closed. */
+    void join() throws InterruptedException {
+        this.thread.join();
+    }
+
+    /** Serves calls on the connection until the stub closes it.
+
+        <p>
+        The end of the stream between two requests is the normal way for a stub
+        to give up the connection, and is not reported as an error. The socket
+        is closed only after every call read from it has been answered.
+     */
     public void run() {
-        ObjectOutputStream objOutput = null;
-        ObjectInputStream objInput = null;
-        Object ret = null;
+        DataInputStream input = null;
 
         try {
-            objOutput = new ObjectOutputStream(this.socket.getOutputStream());
-            objOutput.flush();
-            objInput = new ObjectInputStream(this.socket.getInputStream());
+            if(this.socket != null) {
+                this.socket.setTcpNoDelay(true);
+                this.output = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+                input = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+            }
+            else {
+                this.output = new DataOutputStream(new BufferedOutputStream(LocalSockets.output(this.channel)));
+                input = new DataInputStream(new BufferedInputStream(LocalSockets.input(this.channel)));
+            }
+            this.ordinals = Protocol.accept(input, this.output, this.skeleton.table);
         }
         catch(Exception e) {
-            close(objInput);
-            close(objOutput);
+            closeConnection();
+            closed();
             // Exception thrown in service response.
             // this.skeleton.service_error(new RMIException("Exception thrown in service response."));
             return;
         }
 
         try {
-            @SuppressWarnings("unchecked")
-            String methodName = (String) objInput.readObject();
-            @SuppressWarnings("unchecked")
-            Class<T>[] paramTypes = (Class<T>[]) objInput.readObject();
-            @SuppressWarnings("unchecked")
-            Object[] params = (Object[]) objInput.readObject();
+            while(true) {
+                Request request;
+                try {
+                    // The request is decoded straight from the socket, so
+                    // that a large argument is read into its own array and
+                    // nowhere else.
+                    Protocol.FrameInput frame = Protocol.openFrame(input);
+                    request = Request.decode(frame);
+                    frame.skipRemaining();
+                }
+                catch(EOFException e) {
+                    // The stub has closed the connection.
+                    break;
+                }
+                catch(Exception e) {
+                    // The skeleton is stopping, or the stream is corrupt.
+                    if(!this.inputShutdown) {
+                        this.skeleton.service_error(new RMIException("Exception thrown in service response.", e));
+                    }
+                    break;
+                }
 
-            this.intf.getMethod(methodName, paramTypes);
-
-            Method method = this.server.getClass().getMethod(methodName, paramTypes);
+                started();
+                try {
+                    this.skeleton.executor.execute(() -> serve(request));
+                }
+                catch(RejectedExecutionException e) {
+                    reject(request);
+                }
+            }
+        }
+        finally {
+            awaitDrained();
+            closeConnection();
+            closed();
+        }
+    }
 
+    private void closed() {
+        if(this.connections != null) {
+            this.connections.remove(this);
+        }
+    }
 
-            if(!method.isAccessible()) {
-                method.setAccessible(true);
-            }
+    /** Answers a call which the skeleton has no room to queue. */
+    private void reject(Request request) {
+        try {
+            write(this.skeleton.overloaded(request));
+        }
+        catch(IOException e) {
+            closeConnection();
+        }
+        finally {
+            answered();
+        }
+    }
 
-            ret = method.invoke(this.server, params);
+    /** Executes a single call, and writes its response unless the method
+        has deferred it. */
+    private void serve(Request request) {
+        Protocol.FrameBuffer frame;
+        try {
+            frame = this.skeleton.serve(request, this.ordinals, this::respond);
         }
         catch(Exception e) {
-            if(e instanceof InvocationTargetException) {
-                ret = e;
+            this.skeleton.service_error(new RMIException("Exception thrown in service response.", e));
+            respond(null);
+            return;
+        }
+        if(frame != null) {
+            respond(frame);
+        }
+    }
+
+    /** Writes the response to a call, and counts the call as answered. A
+        partly written response leaves the stream unusable, so the
+        connection is dropped if the response cannot be written, or is
+        <code>null</code>. */
+    private void respond(Protocol.FrameBuffer frame) {
+        try {
+            if(frame == null) {
+                closeConnection();
             }
             else {
-                //throw new RMIException(e);
-                close(objInput);
-                close(objOutput);
-                // Exception thrown in service response.
-                this.skeleton.service_error(new RMIException("Exception thrown in service response.", e));
-                return;
+                write(frame);
             }
         }
+        catch(Exception e) {
+            // Exception thrown in service response.
+            this.skeleton.service_error(new RMIException("Exception thrown in service response.", e));
+            closeConnection();
+        }
+        finally {
+            answered();
+        }
+    }
 
+    private void started() {
+        this.drainLock.lock();
         try {
-            objOutput.writeObject(ret);
+            this.inFlight++;
         }
-        catch(Exception e) {
-            // Exception thrown in service response.
-            this.skeleton.service_error(new RMIException("Exception thrown in service response."));
+        finally {
+            this.drainLock.unlock();
+        }
+    }
+
+    private void answered() {
+        this.drainLock.lock();
+        try {
+            if(--this.inFlight == 0) {
+                this.drained.signalAll();
+            }
         }
         finally {
-            close(objInput);
-            close(objOutput);
+            this.drainLock.unlock();
         }
     }
 
+    /** Waits until every call read from the connection has been answered. */
+    private void awaitDrained() {
+        this.drainLock.lock();
+        try {
+            while(this.inFlight > 0) {
+                this.drained.awaitUninterruptibly();
+            }
+        }
+        finally {
+            this.drainLock.unlock();
+        }
+    }
+
+    private void write(Protocol.FrameBuffer frame) throws IOException {
+        this.writeLock.lock();
+        try {
+            Protocol.writeFrame(this.output, frame);
+        }
+        finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /** Stops the connection from accepting further calls.
+
+        <p>
+        Calls in progress still write their results; the thread then finds the
+        end of the input stream and exits.
+     */
+    public void shutdownInput() {
+        this.inputShutdown = true;
+        try {
+            if(this.socket != null) {
+                this.socket.shutdownInput();
+            }
+            else {
+                this.channel.shutdownInput();
+            }
+        }
+        catch(IOException e) {
+            // the connection is already closed
+        }
+    }
+
+    private void closeConnection() {
+        close(this.socket);
+        close(this.channel);
+    }
+
     public static void close(Closeable c) {
         if (c == null) return;
         try {
@@ -2,8 +2,11 @@ package rmi;
 
 import java.net.*;
 import java.io.*;
+import java.nio.channels.*;
 import java.util.*;
 import java.lang.reflect.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /** RMI skeleton
 
@@ -26,14 +29,70 @@ import java.lang.reflect.*;
     The skeleton's response to these exceptions can be customized by deriving
     a class from <code>Skeleton</code> and overriding <code>listen_error</code>
     or <code>service_error</code>.
+
+    <p>
+    Calls are run by a fixed pool of worker threads, fed by a bounded queue. The
+    pool size, the queue capacity, the maximum number of open connections and
+    the policy applied when these limits are reached can be set before the
+    skeleton is started; the counters of queued, active and rejected calls can
+    be read at any time, and so can the counts and latencies of the calls to
+    each method - see <code>getMetrics</code>.
+
+    <p>
+    Connections and calls may instead be served on virtual threads - see
+    <code>setVirtualThreads</code>. A call blocked on the network or on a lock
+    then does not hold an operating system thread, and the worker pool can be
+    made large enough for every caller to be served at once.
+
+    <p>
+    By default each connection is read by a thread of its own. With
+    <code>Transport.SELECTOR</code>, a single event loop reads every
+    connection instead, so that a skeleton can hold many idle connections
+    without a thread for each - see <code>setTransport</code>.
+
+    <p>
+    A skeleton may also listen on a Unix domain socket, through which stubs on
+    the same host reach it without going through TCP - see
+    <code>setLocalSocket</code>.
 */
 public class Skeleton<T>
 {
     T server;
     InetSocketAddress address;
     SkeletonThread<T> skeletonThread;
+    SelectorThread<T> selectorThread;
+    /* Accepts on the Unix domain socket under Transport.BLOCKING, or null. */
+    SkeletonThread<T> localThread;
     Class<T> intf;
     ServerSocket socketServer;
+    /* The Unix domain socket also listened on, or null. */
+    ServerSocketChannel localServer;
+    /* Runs the calls read by the service threads. */
+    ExecutorService executor;
+    /* The methods of the remote interface, by ordinal. */
+    MethodTable table;
+    /* Handles bound to the server object, by the same ordinals. */
+    DispatchTable dispatch;
+    /* Counts and latencies of the calls served, by method. */
+    CallMetrics metrics;
+
+    public static final int DEFAULT_WORKER_THREADS = 256;
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+    public static final int DEFAULT_MAX_CONNECTIONS = 4096;
+
+    int workerThreads = DEFAULT_WORKER_THREADS;
+    int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    OverloadPolicy overloadPolicy = OverloadPolicy.BLOCK;
+    boolean virtualThreads = Boolean.getBoolean("rmi.virtualThreads");
+    Transport transport = "selector".equalsIgnoreCase(System.getProperty("rmi.transport"))
+                            ? Transport.SELECTOR : Transport.BLOCKING;
+    boolean localSocket = Boolean.getBoolean("rmi.localSocket");
+    /* Creates the threads which read connections. */
+    ThreadFactory connectionThreads;
+
+    AtomicInteger activeCalls = new AtomicInteger();
+    AtomicLong rejectedCalls = new AtomicLong();
     /** Creates a <code>Skeleton</code> with no initial server address. The
         address will be determined by the system when <code>start</code> is
         called. Equivalent to using <code>Skeleton(null)</code>.
@@ -76,6 +135,9 @@ public class Skeleton<T>
         }
         this.server = server;
         this.intf = c;
+        this.table = MethodTable.forInterface(c);
+        this.dispatch = new DispatchTable(this.table, server);
+        this.metrics = new CallMetrics(this.table);
     }
 
     /** Creates a <code>Skeleton</code> with the given initial server address.
@@ -182,35 +244,76 @@ public class Skeleton<T>
             throw new RMIException("The server has already been started and has not since stopped");
         }
 
+        ServerSocketChannel channel = null;
         try{
+            if(this.transport == Transport.SELECTOR) {
+                channel = ServerSocketChannel.open();
+                this.socketServer = channel.socket();
+            }
             if(this.address == null
                     || this.address.getPort() == 0 || this.address.getHostName() == null) {
-                this.socketServer = new ServerSocket(0);
+                if(channel == null) {
+                    this.socketServer = new ServerSocket(0);
+                }
+                else {
+                    this.socketServer.bind(null, 1000);
+                }
                 // System.out.printf("\n\n----- Start a Skeleton on default port %s-----\n", this.socketServer.getInetAddress());
                 this.address = new InetSocketAddress(this.socketServer.getInetAddress(),
                                                         this.socketServer.getLocalPort());
             }
             else {
-                this.socketServer = new ServerSocket(
-                                            this.address.getPort(),
-                                            1000,
-                                            this.address.getAddress()
-                                            );
+                if(channel == null) {
+                    this.socketServer = new ServerSocket(
+                                                this.address.getPort(),
+                                                1000,
+                                                this.address.getAddress()
+                                                );
+                }
+                else {
+                    this.socketServer.bind(new InetSocketAddress(this.address.getAddress(),
+                                                                 this.address.getPort()), 1000);
+                }
                 // System.out.printf("\n\n----- Start a Skeleton on %d-----\n", this.address.getPort());
             }
         }
         catch(Exception e) {
             // service_error(new RMIException(e));
             // When the listening socket cannot be created or bound.
+            if(this.socketServer != null) {
+                ServerThread.close(this.socketServer);
+            }
             throw new RMIException(e);
         }
         try {
+            this.executor = createExecutor();
+            this.connectionThreads = Threads.factory(
+                                        "rmi-connection-" + this.intf.getSimpleName() + "-",
+                                        this.virtualThreads);
+            this.localServer = null;
+            this.localThread = null;
+            if(this.localSocket && this.socketServer.getInetAddress().isAnyLocalAddress()) {
+                this.localServer = LocalSockets.listen(this.socketServer.getLocalPort());
+            }
+            if(channel != null) {
+                this.skeletonThread = null;
+                this.selectorThread = new SelectorThread<T>(this, channel, this.localServer);
+                this.selectorThread.start();
+            }
+            else {
+                this.selectorThread = null;
         //System.out.println("\n\n-----Start Skeleton Thread-----");
-            this.skeletonThread = (new SkeletonThread<T>(this, this.socketServer, this.address,
-                                                    this.intf, this.server));
+                this.skeletonThread = (new SkeletonThread<T>(this, this.socketServer, this.address,
+                                                        this.intf, this.server));
         //System.out.printf("\n\n----- Waiting for a connection on %s:%d-----\n",
         //                        this.address.getHostName(), this.address.getPort());
-            this.skeletonThread.start();
+                this.skeletonThread.start();
+                if(this.localServer != null) {
+                    this.localThread = new SkeletonThread<T>(this, this.localServer,
+                                                             this.skeletonThread);
+                    this.localThread.start();
+                }
+            }
         }
         catch (Exception e){
 
@@ -241,7 +344,20 @@ public class Skeleton<T>
             listen_error(e);
         }
         try {
-            skeletonThread.join();
+            if(this.selectorThread != null) {
+                this.selectorThread.wakeup();
+                this.selectorThread.join();
+            }
+            else {
+                LocalSockets.close(this.localServer);
+                skeletonThread.join();
+                if(this.localThread != null) {
+                    this.localThread.join();
+                }
+            }
+            this.localServer = null;
+            // Every connection has been drained by now.
+            this.executor.shutdown();
             stopped(null);
         }
         catch(Exception e) {
@@ -250,6 +366,424 @@ public class Skeleton<T>
         }
     }
 
+    /** Sets the number of worker threads which run calls. Takes effect the
+        next time the skeleton is started.
+
+        <p>
+        A call which waits for another to release something - a lock, say -
+        should not hold its worker meanwhile: enough such calls would leave
+        the releasing call queued behind them. Its method defers the
+        response instead - see <code>DeferredReply</code>.
+
+        @throws IllegalArgumentException If <code>count</code> is not
+                                         positive.
+     */
+    public synchronized void setWorkerThreads(int count)
+    {
+        if(count <= 0) {
+            throw new IllegalArgumentException("worker thread count must be positive");
+        }
+        this.workerThreads = count;
+    }
+
+    /** Sets the number of calls which may wait for a worker thread. Takes
+        effect the next time the skeleton is started.
+
+        @throws IllegalArgumentException If <code>capacity</code> is not
+                                         positive.
+     */
+    public synchronized void setQueueCapacity(int capacity)
+    {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("queue capacity must be positive");
+        }
+        this.queueCapacity = capacity;
+    }
+
+    /** Sets the maximum number of connections served at once.
+
+        @throws IllegalArgumentException If <code>count</code> is not
+                                         positive.
+     */
+    public synchronized void setMaxConnections(int count)
+    {
+        if(count <= 0) {
+            throw new IllegalArgumentException("connection limit must be positive");
+        }
+        this.maxConnections = count;
+    }
+
+    /** Sets what happens to calls and connections beyond the limits. The
+        default is <code>OverloadPolicy.BLOCK</code>.
+
+        @throws NullPointerException If <code>policy</code> is
+                                     <code>null</code>.
+     */
+    public synchronized void setOverloadPolicy(OverloadPolicy policy)
+    {
+        if(policy == null) {
+            throw new NullPointerException();
+        }
+        this.overloadPolicy = policy;
+    }
+
+    /** Sets whether connections and calls are served on virtual threads. Takes
+        effect the next time the skeleton is started. The default is given by
+        the <code>rmi.virtualThreads</code> system property.
+
+        <p>
+        The worker thread count still bounds the number of calls run at once,
+        and should usually be raised along with this setting. On a runtime
+        without virtual threads, platform threads are used.
+     */
+    public synchronized void setVirtualThreads(boolean virtual)
+    {
+        this.virtualThreads = virtual;
+    }
+
+    /** Indicates whether connections and calls are served on virtual threads.
+        Always <code>false</code> on a runtime without virtual threads. */
+    public boolean isVirtualThreads()
+    {
+        return this.virtualThreads && Threads.virtualThreadsAvailable();
+    }
+
+    /** Sets how connections are read. Takes effect the next time the skeleton
+        is started. The default is <code>Transport.BLOCKING</code>, or
+        <code>Transport.SELECTOR</code> if the <code>rmi.transport</code>
+        system property is <code>selector</code>.
+
+        @throws NullPointerException If <code>transport</code> is
+                                     <code>null</code>.
+     */
+    public synchronized void setTransport(Transport transport)
+    {
+        if(transport == null) {
+            throw new NullPointerException();
+        }
+        this.transport = transport;
+    }
+
+    /** Sets whether the skeleton also listens on a Unix domain socket, which
+        stubs on the same host then use in place of TCP - see
+        <code>LocalSockets</code>. Takes effect the next time the skeleton is
+        started, and only if it listens on the wildcard address. The default
+        is given by the <code>rmi.localSocket</code> system property.
+     */
+    public synchronized void setLocalSocket(boolean local)
+    {
+        this.localSocket = local;
+    }
+
+    /** Returns the address of the Unix domain socket the skeleton listens on,
+        or <code>null</code> if it has none. */
+    public UnixDomainSocketAddress getLocalAddress()
+    {
+        ServerSocketChannel channel = this.localServer;
+        if(channel == null) {
+            return null;
+        }
+        try {
+            return (UnixDomainSocketAddress) channel.getLocalAddress();
+        }
+        catch(IOException e) {
+            // the skeleton is stopping
+            return null;
+        }
+    }
+
+    /** Returns the counts and latencies of the calls served by this
+        skeleton, by method, since it was created. */
+    public CallMetrics getMetrics()
+    {
+        return this.metrics;
+    }
+
+    /** Returns the number of calls waiting for a worker thread. */
+    public int getQueuedCalls()
+    {
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) this.executor;
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    /** Returns the number of calls being run by worker threads. */
+    public int getActiveCalls()
+    {
+        return this.activeCalls.get();
+    }
+
+    /** Returns the number of calls and connections refused because of
+        overload since the skeleton was created. */
+    public long getRejectedCalls()
+    {
+        return this.rejectedCalls.get();
+    }
+
+    /** Returns the number of open connections. */
+    public int getConnectionCount()
+    {
+        SelectorThread<T> loop = this.selectorThread;
+        if(loop != null) {
+            return loop.connections.size();
+        }
+        SkeletonThread<T> listener = this.skeletonThread;
+        return listener == null ? 0 : listener.threads.size();
+    }
+
+    /** Indicates whether the call queue is full. */
+    boolean isQueueFull()
+    {
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) this.executor;
+        return pool.getQueue().remainingCapacity() == 0;
+    }
+
+    /** Executes a single call or a batch read from a connection, and encodes
+        its response.
+
+        @param request The request, as decoded by the thread reading the
+                       connection.
+        @param ordinals The map from the ordinals of the stub's method table
+                        to the skeleton's, agreed in the handshake.
+        @param responder Writes the response to a single call whose method
+                         defers it - see <code>DeferredReply</code>.
+        @return The response, or <code>null</code> if the method has deferred
+                it.
+     */
+    Protocol.FrameBuffer serve(Request request, int[] ordinals,
+                               DeferredReply.Responder responder) throws IOException
+    {
+        if(request.batch) {
+            return serveBatch(request, ordinals);
+        }
+
+        Object ret = null;
+        Throwable thrown = null;
+        long started = System.nanoTime();
+        DeferredReply reply = new DeferredReply(this, request, ordinals, responder, started);
+
+        this.activeCalls.incrementAndGet();
+        reply.enter();
+        try {
+            if(request.decoded == 0) {
+                throw request.error;
+            }
+            ret = invoke(request.methods[0], request.params[0], ordinals, request.deadline);
+        }
+        catch(InvocationTargetException e) {
+            thrown = e.getTargetException();
+        }
+        catch(DeadlineExceededException e) {
+            thrown = e;
+        }
+        catch(Exception e) {
+            // Exception thrown in service response. The stub is still owed a
+            // response, since other calls share the connection.
+            RMIException error = new RMIException("Exception thrown in service response.", e);
+            service_error(error);
+            thrown = error;
+        }
+        finally {
+            reply.exit();
+            this.activeCalls.decrementAndGet();
+        }
+
+        if(reply.deferred) {
+            if(thrown != null) {
+                reply.fail(thrown);
+            }
+            return null;
+        }
+        return respond(request, ordinals, ret, thrown, started);
+    }
+
+    /** Encodes the response to a single call, and records the call, from
+        when it started to run, in the metrics. */
+    Protocol.FrameBuffer respond(Request request, int[] ordinals, Object ret, Throwable thrown,
+                                 long started) throws IOException
+    {
+        long executed = System.nanoTime();
+        Protocol.FrameBuffer frame = encodeResponse(request.callId, ret, thrown);
+        if(request.decoded > 0) {
+            this.metrics.record(localOrdinal(request.methods[0], ordinals), thrown != null,
+                                request.sizes[0], frame.size(),
+                                request.decodeNanos[0] + System.nanoTime() - executed,
+                                executed - started);
+        }
+        return frame;
+    }
+
+    /** Runs the calls of a batch in order, and encodes their results in one
+        response. */
+    private Protocol.FrameBuffer serveBatch(Request request, int[] ordinals)
+            throws IOException
+    {
+        Protocol.FrameBuffer frame = new Protocol.FrameBuffer(true);
+        frame.data.writeInt(request.callId);
+        frame.data.writeByte(Protocol.STATUS_BATCH);
+        frame.data.writeInt(request.count);
+
+        // Once a call cannot be decoded, the calls after it cannot be found.
+        RMIException unreadable = null;
+        if(request.decoded < request.count) {
+            unreadable = new RMIException("Exception thrown in service response.", request.error);
+            service_error(unreadable);
+        }
+
+        this.activeCalls.incrementAndGet();
+        try {
+            for(int i = 0; i < request.count; i++) {
+                Object ret = null;
+                Throwable thrown = unreadable;
+                long started = System.nanoTime();
+                if(i < request.decoded) {
+                    try {
+                        ret = invoke(request.methods[i], request.params[i], ordinals,
+                                     request.deadline);
+                    }
+                    catch(InvocationTargetException e) {
+                        thrown = e.getTargetException();
+                    }
+                    catch(DeadlineExceededException e) {
+                        thrown = e;
+                    }
+                    catch(Exception e) {
+                        RMIException error = new RMIException("Exception thrown in service response.", e);
+                        service_error(error);
+                        thrown = error;
+                    }
+                }
+
+                long executed = System.nanoTime();
+                int mark = frame.size();
+                encodeResult(frame, ret, thrown);
+                if(i < request.decoded) {
+                    this.metrics.record(localOrdinal(request.methods[i], ordinals), thrown != null,
+                                        request.sizes[i], frame.size() - mark,
+                                        request.decodeNanos[i] + System.nanoTime() - executed,
+                                        executed - started);
+                }
+            }
+        }
+        finally {
+            this.activeCalls.decrementAndGet();
+        }
+        return frame;
+    }
+
+    /** Returns the skeleton's ordinal for an ordinal of the stub's method
+        table, or <code>-2</code>, which no method has, if there is none. */
+    private static int localOrdinal(int ordinal, int[] ordinals)
+    {
+        if(ordinal < 0 || ordinal >= ordinals.length || ordinals[ordinal] < 0) {
+            return -2;
+        }
+        return ordinals[ordinal];
+    }
+
+    /** Runs a decoded call, with the caller's deadline in force on this
+        thread. A call whose deadline has already passed is not run: its caller
+        has given up on it.
+
+        @param deadline The caller's deadline, or <code>null</code>.
+     */
+    private Object invoke(int ordinal, Object[] params, int[] ordinals, Deadline deadline)
+            throws NoSuchMethodException, InvocationTargetException, DeadlineExceededException
+    {
+        if(ordinal < 0 || ordinal >= ordinals.length || ordinals[ordinal] < 0) {
+            throw new NoSuchMethodException("method " + ordinal + " of the stub's table");
+        }
+        if(deadline == null) {
+            return this.dispatch.invoke(ordinals[ordinal], params);
+        }
+        if(deadline.isExpired()) {
+            throw new DeadlineExceededException("deadline passed before the call was run");
+        }
+        Deadline scope = Deadline.enter(deadline);
+        try {
+            return this.dispatch.invoke(ordinals[ordinal], params);
+        }
+        finally {
+            scope.close();
+        }
+    }
+
+    /** Encodes the response to a call which the skeleton has no room to
+        queue. */
+    Protocol.FrameBuffer overloaded(Request request) throws IOException
+    {
+        this.rejectedCalls.incrementAndGet();
+        return encodeResponse(request.callId, null, new RMIException("skeleton overloaded"));
+    }
+
+    /** Encodes a response frame. A result which cannot be encoded is replaced
+        by an error for the caller. Large byte arrays in the result are
+        attached to the frame rather than copied. */
+    private Protocol.FrameBuffer encodeResponse(int callId, Object ret, Throwable thrown)
+            throws IOException
+    {
+        Protocol.FrameBuffer frame = new Protocol.FrameBuffer(true);
+        frame.data.writeInt(callId);
+        encodeResult(frame, ret, thrown);
+        return frame;
+    }
+
+    /** Appends the status and result of one call to a response frame. A
+        result which cannot be encoded is replaced by an error for the
+        caller. */
+    private void encodeResult(Protocol.FrameBuffer frame, Object ret, Throwable thrown)
+            throws IOException
+    {
+        int mark = frame.size();
+        try {
+            if(thrown == null) {
+                frame.data.writeByte(Protocol.STATUS_OK);
+                Codec.writeValue(frame.data, ret);
+            }
+            else {
+                Codec.writeError(frame.data, thrown);
+            }
+        }
+        catch(IOException e) {
+            RMIException error = new RMIException("Exception thrown in service response.", e);
+            service_error(error);
+            frame.truncate(mark);
+            Codec.writeError(frame.data, error);
+        }
+    }
+
+    private ExecutorService createExecutor()
+    {
+        ThreadFactory threads = Threads.factory("rmi-worker-" + intf.getSimpleName() + "-",
+                                                this.virtualThreads);
+
+        RejectedExecutionHandler overload;
+        if(this.overloadPolicy == OverloadPolicy.BLOCK) {
+            // Wait for room in the queue. The reading thread stops reading
+            // its connection in the meantime.
+            overload = new RejectedExecutionHandler() {
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor pool) {
+                    try {
+                        pool.getQueue().put(r);
+                    }
+                    catch(InterruptedException e) {
+                        throw new RejectedExecutionException(e);
+                    }
+                }
+            };
+        }
+        else {
+            overload = new ThreadPoolExecutor.AbortPolicy();
+        }
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                                    this.workerThreads, this.workerThreads,
+                                    60, TimeUnit.SECONDS,
+                                    new ArrayBlockingQueue<Runnable>(this.queueCapacity),
+                                    threads, overload);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
     ////////////////////////////////////// Helper Function /////////////////////////////////////////
     private boolean isAssignableFromServer(Class<T> intf, Class<?> server) {
         return intf.isAssignableFrom(server);
@@ -2,15 +2,22 @@ package rmi;
 
 import java.net.*;
 import java.io.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.lang.reflect.*;
 
 public class SkeletonThread<T> extends Thread {
-    ArrayList<ServerThread<T>> threads = new ArrayList<ServerThread<T>>();
+    /* Threads reading open connections. Each removes itself when its
+       connection closes. */
+    Set<ServerThread<T>> threads = ConcurrentHashMap.newKeySet();
     InetSocketAddress address;
     Class<T> intf;
     T server;
     ServerSocket socketServer;
+    /* The skeleton's Unix domain socket, if this thread accepts on that
+       rather than on the TCP socket. */
+    ServerSocketChannel localServer = null;
     Skeleton<T> skeleton;
 
     public SkeletonThread(Skeleton<T> skeleton, ServerSocket socketServer, InetSocketAddress address,
@@ -22,23 +29,61 @@ public class SkeletonThread<T> extends Thread {
         this.server = server;
     }
 
+    /** Creates a thread accepting connections on the skeleton's Unix domain
+        socket. It shares its set of connections with the TCP listening
+        thread, so that the connection limit covers both. */
+    public SkeletonThread(Skeleton<T> skeleton, ServerSocketChannel localServer,
+                SkeletonThread<T> tcp) {
+        this(skeleton, tcp.socketServer, tcp.address, tcp.intf, tcp.server);
+        this.localServer = localServer;
+        this.threads = tcp.threads;
+        setName("rmi-local-listener-" + this.intf.getSimpleName());
+    }
+
     public void run() {
         try {
             while(true) {
+                awaitAdmission();
                 //System.out.println("-----Waiting for a connection...-----");
-                Socket socket = this.socketServer.accept();
-                //System.out.println("Client Connected!");
-                ServerThread<T> thread = (new ServerThread<T>(this.skeleton, socket, this.server, this.intf));
-                thread.start();
-                threads.add(thread);
+                ServerThread<T> thread;
+                if(this.localServer == null) {
+                    Socket socket = this.socketServer.accept();
+                    //System.out.println("Client Connected!");
+                    if(this.threads.size() >= this.skeleton.maxConnections) {
+                        // Only reached under OverloadPolicy.REJECT.
+                        this.skeleton.rejectedCalls.incrementAndGet();
+                        ServerThread.close(socket);
+                        continue;
+                    }
+                    thread = (new ServerThread<T>(this.skeleton, socket, this.server, this.intf));
+                }
+                else {
+                    SocketChannel channel = this.localServer.accept();
+                    if(this.threads.size() >= this.skeleton.maxConnections) {
+                        this.skeleton.rejectedCalls.incrementAndGet();
+                        ServerThread.close(channel);
+                        continue;
+                    }
+                    thread = new ServerThread<T>(this.skeleton, channel, this.server, this.intf);
+                }
+                thread.connections = this.threads;
+                this.threads.add(thread);
+                thread.start(this.skeleton.connectionThreads);
             }
         }
-        catch(SocketException e) {
+        catch(SocketException | ClosedChannelException e) {
             try {
-                if(this.socketServer.isClosed())
-                    for(ServerThread<T> t: this.threads) {
+                if(isClosed()) {
+                    // Idle connections would otherwise keep their threads
+                    // blocked waiting for the next call.
+                    List<ServerThread<T>> remaining = new ArrayList<ServerThread<T>>(this.threads);
+                    for(ServerThread<T> t: remaining) {
+                        t.shutdownInput();
+                    }
+                    for(ServerThread<T> t: remaining) {
                         t.join();
                     }
+                }
             }
             catch(InterruptedException ep) {
 
@@ -48,4 +93,31 @@ public class SkeletonThread<T> extends Thread {
             this.skeleton.listen_error(e);
         }
     }
+
+    /** Under <code>OverloadPolicy.BLOCK</code>, waits until another connection
+        may be accepted: the connection limit is not reached and the call queue
+        has room. Connections arriving in the meantime wait in the listen
+        backlog. */
+    private void awaitAdmission() throws InterruptedIOException {
+        if(this.skeleton.overloadPolicy != OverloadPolicy.BLOCK) {
+            return;
+        }
+        while(!isClosed()
+                && (this.threads.size() >= this.skeleton.maxConnections
+                    || this.skeleton.isQueueFull())) {
+            try {
+                Thread.sleep(10);
+            }
+            catch(InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private boolean isClosed() {
+        if(this.localServer != null) {
+            return !this.localServer.isOpen();
+        }
+        return this.socketServer.isClosed();
+    }
 }
@@ -3,7 +3,7 @@ package rmi;
 import java.net.*;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
-import java.lang.reflect.InvocationHandler;
+import java.util.concurrent.TimeUnit;
 
 /** RMI stub factory.
 
@@ -17,6 +17,11 @@ import java.lang.reflect.InvocationHandler;
     may not be modified afterwards. Two stubs are equal if they implement the
     same interface and carry the same remote server address - and would
     therefore connect to the same skeleton. Stubs are serializable.
+
+    <p>
+    Where <code>build.GenerateStubs</code> has generated a stub class for an
+    interface, stubs are instances of that class; for other interfaces they
+    are dynamic proxies. The two kinds behave alike.
  */
 public abstract class Stub
 {
@@ -139,13 +144,199 @@ public abstract class Stub
             throw new Error();
         }
 
-        // Create a Proxy object for the interface c
-        InvocationHandler handler = new RMIInvocationHandler(c, address);
+        return create(c, new RMIInvocationHandler(c, address));
+    }
+
+    /** Returns a stub for the same skeleton as an existing stub, whose calls
+        each fail with a <code>DeadlineExceededException</code> if they do not
+        complete within the given time. A deadline entered by the calling
+        thread still applies if it is earlier - see <code>Deadline</code>.
 
-        @SuppressWarnings("unchecked")
-        T stub = (T) Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[]{c}, handler);
+        <p>
+        If <code>stub</code> is not a stub but a local object implementing the
+        interface, it is returned unchanged.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param stub The stub.
+        @param timeout The time allowed for each call, or zero for no limit.
+        @param unit The unit of <code>timeout</code>.
+        @return The new stub.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>timeout</code> is negative.
+        @throws Error If <code>c</code> does not represent a remote interface.
+     */
+    public static <T> T withTimeout(Class<T> c, T stub, long timeout, TimeUnit unit)
+        throws NullPointerException, IllegalArgumentException, Error
+    {
+        if(c == null || stub == null || unit == null) {
+            throw new NullPointerException();
+        }
+        if(timeout < 0) {
+            throw new IllegalArgumentException("negative timeout");
+        }
+        if(!c.isInterface() || !isRemoteInterface(c)) {
+            throw new Error();
+        }
+
+        RMIInvocationHandler handler = AsyncStub.handlerOf(stub);
+        if(handler == null) {
+            return stub;
+        }
+        RMIInvocationHandler timed = handler.copy();
+        timed.timeoutNanos = unit.toNanos(timeout);
+        return create(c, timed);
+    }
+
+    /** Returns a stub for the same skeleton as an existing stub, on which
+        concurrent identical calls to methods marked <code>Idempotent</code>
+        share one request.
+
+        <p>
+        A call made while an identical one - to the same method, with equal
+        arguments - is waiting for its result on the returned stub does not
+        send a request of its own, but waits for that result and returns it.
+        Under bursts of identical calls, such as many threads looking up the
+        same path at once, the server then sees one call per burst. Calls to
+        other methods, and calls through <code>AsyncStub</code> and
+        <code>Batch</code>, are made as usual. A call is never shared with one
+        sent before the last call to another method on the stub completed,
+        so a thread which has changed something on the server sees the change.
+
+        <p>
+        If <code>stub</code> is not a stub but a local object implementing the
+        interface, it is returned unchanged.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param stub The stub.
+        @return The new stub.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> does not represent a remote interface.
+     */
+    public static <T> T coalescing(Class<T> c, T stub)
+        throws NullPointerException, Error
+    {
+        if(c == null || stub == null) {
+            throw new NullPointerException();
+        }
+        if(!c.isInterface() || !isRemoteInterface(c)) {
+            throw new Error();
+        }
 
-        return stub;
+        RMIInvocationHandler handler = AsyncStub.handlerOf(stub);
+        if(handler == null) {
+            return stub;
+        }
+        RMIInvocationHandler shared = handler.copy();
+        shared.coalescing = true;
+        return create(c, shared);
+    }
+
+    /** Creates an asynchronous view of a remote interface, given the address
+        of a remote server.
+
+        <p>
+        Calls through the view return <code>CompletableFuture</code>s instead
+        of blocking. See <code>AsyncStub</code>.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param address The network address of the remote skeleton.
+        @return The asynchronous view.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> does not represent a remote interface.
+     */
+    public static <T> AsyncStub<T> createAsync(Class<T> c, InetSocketAddress address)
+        throws NullPointerException, Error
+    {
+        return new AsyncStub<T>(c, create(c, address));
+    }
+
+    /** Creates an asynchronous view of an existing stub.
+
+        <p>
+        If <code>stub</code> is not a stub but a local object implementing the
+        interface, calls through the view are made directly on the object.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param stub The stub.
+        @return The asynchronous view.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> does not represent a remote interface.
+     */
+    public static <T> AsyncStub<T> async(Class<T> c, T stub)
+        throws NullPointerException, Error
+    {
+        if(c == null || stub == null) {
+            throw new NullPointerException();
+        }
+        if(!c.isInterface() || !isRemoteInterface(c)) {
+            throw new Error();
+        }
+        return new AsyncStub<T>(c, stub);
+    }
+
+    /** Starts a batch of calls to the skeleton of an existing stub. The calls
+        added to the batch are sent together in one request. See
+        <code>Batch</code>.
+
+        <p>
+        If <code>stub</code> is not a stub but a local object implementing the
+        interface, the calls are made directly on the object.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param stub The stub.
+        @return An empty batch.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> does not represent a remote interface.
+     */
+    public static <T> Batch<T> batch(Class<T> c, T stub)
+        throws NullPointerException, Error
+    {
+        if(c == null || stub == null) {
+            throw new NullPointerException();
+        }
+        if(!c.isInterface() || !isRemoteInterface(c)) {
+            throw new Error();
+        }
+        return new Batch<T>(c, stub);
+    }
+
+    /** Returns the counts and latencies of the calls made through every stub
+        for an interface in this JVM, by method. See
+        <code>CallMetrics</code>.
+
+        @param c A <code>Class</code> object representing the interface.
+        @throws NullPointerException If <code>c</code> is <code>null</code>.
+        @throws Error If <code>c</code> does not represent a remote interface.
+     */
+    public static CallMetrics metrics(Class<?> c)
+        throws NullPointerException, Error
+    {
+        if(c == null) {
+            throw new NullPointerException();
+        }
+        if(!c.isInterface() || !isRemoteInterface(c)) {
+            throw new Error();
+        }
+        return CallMetrics.forStubs(c);
+    }
+
+    /** Creates a stub with the given handler: an instance of the stub class
+        generated for the interface if there is one, and a proxy otherwise. */
+    private static <T> T create(Class<T> c, RMIInvocationHandler handler)
+    {
+        T stub = Generated.stub(c, handler);
+        if(stub != null) {
+            return stub;
+        }
+
+        @SuppressWarnings("unchecked")
+        T proxy = (T) Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[]{c}, handler);
+        return proxy;
     }
 
     private static <T> boolean isRemoteInterface(Class<T> intf) {
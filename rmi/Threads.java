@@ -0,0 +1,71 @@
+package rmi;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Creates the threads used by skeletons.
+
+    <p>
+    Virtual threads are created through reflection, so that the package still
+    builds and runs on runtimes which do not have them. On such runtimes a
+    request for virtual threads gives platform threads instead.
+ */
+public class Threads {
+    /* Thread.ofVirtual(), Thread.Builder.name(String, long) and
+       Thread.Builder.factory(), or null if the runtime has no virtual
+       threads. */
+    private static final Method ofVirtual;
+    private static final Method name;
+    private static final Method factory;
+
+    static {
+        Method v = null;
+        Method n = null;
+        Method f = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            v = Thread.class.getMethod("ofVirtual");
+            n = builder.getMethod("name", String.class, long.class);
+            f = builder.getMethod("factory");
+        }
+        catch(ClassNotFoundException | NoSuchMethodException e) {
+            v = null;
+        }
+        ofVirtual = v;
+        name = n;
+        factory = f;
+    }
+
+    /** Indicates whether the runtime supports virtual threads. */
+    public static boolean virtualThreadsAvailable() {
+        return ofVirtual != null;
+    }
+
+    /** Returns a factory for threads named <code>prefix</code> followed by a
+        sequence number.
+
+        @param prefix The thread name prefix.
+        @param virtual Whether virtual threads are wanted. Platform threads are
+                       made if the runtime has no virtual threads.
+     */
+    public static ThreadFactory factory(final String prefix, boolean virtual) {
+        if(virtual && ofVirtual != null) {
+            try {
+                Object builder = name.invoke(ofVirtual.invoke(null), prefix, 1L);
+                return (ThreadFactory) factory.invoke(builder);
+            }
+            catch(IllegalAccessException | InvocationTargetException e) {
+                // fall back to platform threads
+            }
+        }
+
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                return new Thread(r, prefix + count.incrementAndGet());
+            }
+        };
+    }
+}
@@ -0,0 +1,18 @@
+package rmi;
+
+/** How a skeleton reads its connections.
+
+    <p>
+    See <code>Skeleton.setTransport</code>.
+ */
+public enum Transport
+{
+    /** Each connection is read by a thread of its own, blocked in the read
+        while the connection is idle. */
+    BLOCKING,
+
+    /** All connections are read by a single thread waiting on a
+        <code>Selector</code>. An idle connection costs a channel and a small
+        buffer, but no thread. */
+    SELECTOR
+}
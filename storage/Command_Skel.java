@@ -0,0 +1,32 @@
+// Generated by build.GenerateStubs from storage.Command. Do not edit.
+package storage;
+
+/** Dispatcher for <code>storage.Command</code>. See <code>rmi.Dispatcher</code>. */
+public final class Command_Skel implements rmi.Dispatcher
+{
+    private static final String[] SIGNATURES = {
+        "copy(common.Path,storage.Storage)",
+        "create(common.Path)",
+        "delete(common.Path)",
+    };
+
+    public String[] signatures()
+    {
+        return SIGNATURES.clone();
+    }
+
+    public Object dispatch(Object server, int ordinal, Object[] args) throws Throwable
+    {
+        Command target = (Command) server;
+        switch(ordinal) {
+            case 0:
+                return target.copy((common.Path) args[0], (storage.Storage) args[1]);
+            case 1:
+                return target.create((common.Path) args[0]);
+            case 2:
+                return target.delete((common.Path) args[0]);
+            default:
+                throw new IllegalArgumentException("no method " + ordinal);
+        }
+    }
+}
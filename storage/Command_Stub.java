@@ -0,0 +1,55 @@
+// Generated by build.GenerateStubs from storage.Command. Do not edit.
+package storage;
+
+/** Stub for <code>storage.Command</code>. See <code>rmi.GeneratedStub</code>. */
+public final class Command_Stub extends rmi.GeneratedStub implements Command
+{
+    private static final long serialVersionUID = 1L;
+
+    public Command_Stub(rmi.RMIInvocationHandler handler)
+    {
+        super(handler);
+    }
+
+    public boolean copy(common.Path a0, storage.Storage a1)
+        throws rmi.RMIException, java.io.FileNotFoundException, java.io.IOException
+    {
+        try {
+            return (java.lang.Boolean) call(0, new Object[] { a0, a1 });
+        }
+        catch(rmi.RMIException | java.io.IOException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+
+    public boolean create(common.Path a0)
+        throws rmi.RMIException
+    {
+        try {
+            return (java.lang.Boolean) call(1, new Object[] { a0 });
+        }
+        catch(rmi.RMIException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+
+    public boolean delete(common.Path a0)
+        throws rmi.RMIException
+    {
+        try {
+            return (java.lang.Boolean) call(2, new Object[] { a0 });
+        }
+        catch(rmi.RMIException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package storage;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.*;
+
+import common.*;
+import rmi.*;
+
+/** Manifest of the files a storage server registered.
+
+    <p>
+    A manifest is the set of files held by a storage server once it has
+    registered, numbered by a generation, with a checksum of the set. It is
+    kept in a local file, so that a storage server which restarts can send
+    the naming server only the files added and removed since, as long as the
+    naming server still holds the same manifest.
+
+    <p>
+    The checksum does not depend on the order of the files. The file holds
+    the generation, the checksum and the files, sorted so that neighbours
+    share most of their components, written as <code>Codec</code> writes
+    arrays of paths, and ends with a CRC32 of its contents.
+ */
+public class Manifest
+{
+    static final int MAGIC = 0x44464d46;
+    static final int VERSION = 1;
+
+    /** The manifest's generation, which is never 0. */
+    public final long generation;
+    /** The checksum of the set of files. */
+    public final long checksum;
+    /** The files. */
+    public final Set<Path> files;
+
+    /** Creates a manifest of a set of files. */
+    public Manifest(long generation, Set<Path> files)
+    {
+        if(generation == 0)
+            throw new IllegalArgumentException("generation 0");
+        this.generation = generation;
+        this.files = files;
+        this.checksum = checksum(files);
+    }
+
+    /** Returns a checksum of a set of files, the same whatever their
+        order. */
+    public static long checksum(Collection<Path> files)
+    {
+        long sum = 0;
+        for(Path file : files)
+        {
+            // 64-bit FNV-1a of the path, mixed so that the sum is spread
+            long h = 0xcbf29ce484222325L;
+            String s = file.toString();
+            for(int i = 0; i < s.length(); i++)
+                h = (h ^ s.charAt(i)) * 0x100000001b3L;
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            sum += h;
+        }
+        return sum;
+    }
+
+    /** Reads a manifest.
+
+        @return The manifest, or <code>null</code> if the file does not exist,
+                cannot be read, or is damaged. The storage server then
+                registers all its files.
+     */
+    public static Manifest read(File file)
+    {
+        if(!file.exists())
+            return null;
+        try {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            if(bytes.length < 4)
+                return null;
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 4);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            in.skipBytes(bytes.length - 4);
+            if((int) crc.getValue() != in.readInt())
+                return null;
+
+            in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+            if(in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+            long generation = in.readLong();
+            long checksum = in.readLong();
+            Path[] paths = Codec.readPaths(in);
+            Manifest manifest = new Manifest(generation, new HashSet<Path>(Arrays.asList(paths)));
+            return manifest.checksum == checksum ? manifest : null;
+        }
+        catch(IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /** Writes the manifest to a file, replacing it atomically once the new
+        contents are on disk. */
+    public void write(File file) throws IOException
+    {
+        Path[] paths = this.files.toArray(new Path[this.files.size()]);
+        Arrays.sort(paths);
+
+        File temporary = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temporary);
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                                    new BufferedOutputStream(stream, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(this.generation);
+            out.writeLong(this.checksum);
+            Codec.writePaths(out, paths);
+            out.flush();
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            stream.getFD().sync();
+        }
+        finally {
+            stream.close();
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+}
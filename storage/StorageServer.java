@@ -2,7 +2,16 @@ package storage;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.*;
 
 import common.*;
 import rmi.*;
@@ -15,13 +24,26 @@ import naming.*;
     Storage servers respond to client file access requests. The files accessible
     through a storage server are those accessible under a given directory of the
     local filesystem.
+
+    <p>
+    Reads of file contents and sizes share a read lock and may run at once;
+    calls which change the files take the write lock. The locks are not
+    monitors, so that calls served on virtual threads do not hold their
+    carrier threads while they wait or do I/O.
  */
 public class StorageServer implements Storage, Command
 {
 
+    /** The greatest number of files registered with the naming server in one
+        call. */
+    static final int REGISTRATION_CHUNK = Integer.getInteger("storage.registrationChunk", 4096);
+
     private File root;
+    /* The file of the manifest of the files registered, or null. */
+    private File manifest;
     private Skeleton<Storage> storageSkeleton;
     private Skeleton<Command> commandSkeleton;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
     /** Creates a storage server, given a directory on the local filesystem, and
         ports to use for the client and command interfaces.
@@ -39,10 +61,31 @@ public class StorageServer implements Storage, Command
         @throws NullPointerException If <code>root</code> is <code>null</code>.
     */
     public StorageServer(File root, int client_port, int command_port)
+    {
+        this(root, client_port, command_port, null);
+    }
+
+    /** Creates a storage server which keeps a manifest of the files it
+        registers.
+
+        <p>
+        When the storage server starts again with the same ports, and the
+        naming server still holds its last manifest, only the files added and
+        removed since are sent to the naming server. Files which the naming
+        server creates, copies or deletes on the storage server while it runs
+        are known to the naming server, and are not kept in the manifest.
+
+        @param manifest The manifest's file, which must not be under
+                        <code>root</code>, or <code>null</code> to keep no
+                        manifest.
+        @throws NullPointerException If <code>root</code> is <code>null</code>.
+     */
+    public StorageServer(File root, int client_port, int command_port, File manifest)
     {
         if(root == null)
             throw new NullPointerException();
         this.root = root;
+        this.manifest = manifest;
         this.storageSkeleton = new Skeleton<Storage>(Storage.class, this, new InetSocketAddress(client_port));
         this.commandSkeleton = new Skeleton<Command>(Command.class, this, new InetSocketAddress(command_port));
     }
@@ -66,6 +109,22 @@ public class StorageServer implements Storage, Command
     /** Starts the storage server and registers it with the given naming
         server.
 
+        <p>
+        The files are registered in chunks of at most
+        <code>REGISTRATION_CHUNK</code> as the local directory tree is scanned
+        in parallel by a <code>PathScanner</code>, so that the list of files
+        is never held whole, and the files of each chunk are served as soon
+        as the naming server has them. A naming server which cannot take files
+        in chunks is sent them all at once. Directories left without files are
+        pruned once all the files are registered.
+
+        <p>
+        A storage server which keeps a manifest sends only the changes since
+        its last manifest, if the naming server still holds that manifest,
+        and otherwise registers all its files again, replacing any the naming
+        server still has registered for it. Either way, the files are then
+        written to a new manifest, which the naming server is sent.
+
         @param hostname The externally-routable hostname of the local host on
                         which the storage server is running. This is used to
                         ensure that the stub which is provided to the naming
@@ -86,35 +145,252 @@ public class StorageServer implements Storage, Command
     public synchronized void start(String hostname, Registration naming_server)
         throws RMIException, UnknownHostException, FileNotFoundException
     {
+        PathScanner scanner;
+        try {
+            scanner = new PathScanner(this.root);
+        }
+        catch(IllegalArgumentException e) {
+            throw new FileNotFoundException(this.root + " is not a directory");
+        }
+
         this.storageSkeleton.start();
         this.commandSkeleton.start();
         Storage storageStub = Stub.create(Storage.class, this.storageSkeleton, hostname);
         Command commandStub = Stub.create(Command.class, this.commandSkeleton, hostname);
-        Path[] filesToDelete = naming_server.register(storageStub, commandStub, Path.list(this.root));
 
-        for(Path f : filesToDelete){
+        Manifest previous = this.manifest == null ? null : Manifest.read(this.manifest);
+        // The files kept once duplicates are deleted, if there is a manifest.
+        HashSet<Path> kept = this.manifest == null ? null : new HashSet<Path>();
+        Registrar registrar = new Registrar(naming_server, storageStub, commandStub, kept);
+        try {
+            if(previous == null){
+                for(Path[] files = scanner.next(); files != null; files = scanner.next()){
+                    for(Path f : files)
+                        registrar.add(f);
+                }
+                registrar.send(false);
+            }
+            else {
+                // The changes are known only once the whole tree is scanned.
+                for(Path[] files = scanner.next(); files != null; files = scanner.next())
+                    Collections.addAll(kept, files);
+                if(!registerChanges(naming_server, storageStub, commandStub, previous, kept)){
+                    Path[] files = kept.toArray(new Path[kept.size()]);
+                    // in order, so that files of the same directory are together
+                    Arrays.sort(files);
+                    for(Path f : files)
+                        registrar.add(f);
+                    registrar.send(false);
+                }
+            }
+        }
+        catch(UnsupportedOperationException e) {
+            if(registrar.registered)
+                throw e;
+            // the naming server takes all the files at once
+            scanner.close();
+            Path[] files = Path.list(this.root);
+            Path[] duplicates = kept == null
+                ? naming_server.register(storageStub, commandStub, files)
+                : naming_server.registerAgain(storageStub, commandStub, files, false);
+            for(Path f : duplicates)
+                this.delete(f);
+            if(kept != null){
+                kept.clear();
+                Collections.addAll(kept, files);
+                kept.removeAll(Arrays.asList(duplicates));
+            }
+        }
+        finally {
+            scanner.close();
+        }
+        // Files are being served, and created by the naming server, by now:
+        // pruning must not remove a directory which create has just made.
+        this.lock.writeLock().lock();
+        try {
+            deleteEmptyDirectory(this.root);
+        }
+        finally {
+            this.lock.writeLock().unlock();
+        }
+
+        if(this.manifest != null)
+            saveManifest(naming_server, storageStub, previous, kept);
+    }
+
+    /** Sends the naming server the files added and removed since the last
+        manifest, and deletes the duplicates it returns.
+
+        @param files The files stored, from which duplicates are removed.
+        @return <code>false</code> if the naming server does not hold the
+                manifest. Nothing has been registered then.
+     */
+    private boolean registerChanges(Registration naming_server, Storage storageStub,
+                                    Command commandStub, Manifest previous, Set<Path> files)
+        throws RMIException
+    {
+        ArrayList<Path> added = new ArrayList<Path>();
+        for(Path f : files){
+            if(!previous.files.contains(f))
+                added.add(f);
+        }
+        ArrayList<Path> removed = new ArrayList<Path>();
+        for(Path f : previous.files){
+            if(!files.contains(f))
+                removed.add(f);
+        }
+        Path[] addedFiles = added.toArray(new Path[added.size()]);
+        Arrays.sort(addedFiles);
+
+        Path[] duplicates = naming_server.registerChanges(storageStub, commandStub,
+                                previous.generation, previous.checksum, addedFiles,
+                                removed.toArray(new Path[removed.size()]));
+        if(duplicates == null)
+            return false;
+        for(Path f : duplicates){
             this.delete(f);
+            files.remove(f);
         }
-        deleteEmptyDirectory(this.root);
+        return true;
     }
 
+    /** Writes a manifest of the files registered, and sends it to the naming
+        server. If it cannot be written, there is no manifest, and all the
+        files are registered on the next start.
+
+        <p>
+        If the manifest cannot be sent, the naming server is asked which it
+        holds: the call may have failed after it was accepted. Otherwise the
+        manifest is deleted, so that all the files are registered on the next
+        start, and the failure is thrown.
+     */
+    private void saveManifest(Registration naming_server, Storage storageStub,
+                              Manifest previous, Set<Path> files)
+        throws RMIException
+    {
+        long generation = previous == null ? 1 : previous.generation + 1;
+        Manifest next = new Manifest(generation, files);
+        try {
+            next.write(this.manifest);
+        }
+        catch(IOException e) {
+            this.manifest.delete();
+            return;
+        }
+        try {
+            naming_server.acceptManifest(storageStub, generation, next.checksum);
+        }
+        catch(RMIException | RuntimeException e) {
+            long held;
+            try {
+                held = naming_server.manifestGeneration(storageStub);
+            }
+            catch(RMIException | RuntimeException f) {
+                held = 0;
+            }
+            if(held == generation)
+                return;
+            this.manifest.delete();
+            throw e;
+        }
+    }
+
+    /** Removes the directories under a directory which hold no files, however
+        deeply nested. The directory itself is kept.
+
+        @return <code>true</code> if the directory holds no files.
+     */
     public boolean deleteEmptyDirectory(File root){
         if(root == null)
             return false;
-        boolean isEmpty = true;
         File[] files = root.listFiles();
+        if(files == null)
+            return false;
+        boolean isEmpty = true;
         for(File f : files){
-            if(!f.isDirectory()){
+            // every subdirectory is pruned, whatever the others hold
+            if(!f.isDirectory() || !deleteEmptyDirectory(f) || !f.delete())
                 isEmpty = false;
-            }
-            else
-                isEmpty = isEmpty && deleteEmptyDirectory(f);
         }
-        if(isEmpty)
-            root.delete();
         return isEmpty;
     }
 
+    /** Sends the files found by a scan of the local directory tree to the
+        naming server, a chunk at a time, and deletes the duplicates it
+        returns. The scanner hands files over a directory at a time, so each
+        directory's files are sent together unless a chunk ends among
+        them. */
+    private class Registrar
+    {
+        final Registration naming_server;
+        final Storage storageStub;
+        final Command commandStub;
+        final ArrayList<Path> chunk = new ArrayList<Path>();
+        /* The files kept once duplicates are deleted, or null. */
+        final Set<Path> kept;
+        /* Whether the first chunk has been sent. */
+        boolean registered = false;
+
+        /** Creates a registrar. A storage server which keeps a manifest may
+            still be registered from before it restarted, so its files replace
+            those registered then. */
+        Registrar(Registration naming_server, Storage storageStub, Command commandStub,
+                  Set<Path> kept)
+        {
+            this.naming_server = naming_server;
+            this.storageStub = storageStub;
+            this.commandStub = commandStub;
+            this.kept = kept;
+        }
+
+        void add(Path file) throws RMIException
+        {
+            if(this.chunk.size() == REGISTRATION_CHUNK)
+                send(true);
+            this.chunk.add(file);
+            if(this.kept != null)
+                this.kept.add(file);
+        }
+
+        /** Sends the files found since the last chunk. The last chunk of a
+            storage server registered again is sent even if it is empty, so
+            that the naming server drops the files not in any chunk.
+
+            @param more Whether more files may follow.
+         */
+        void send(boolean more) throws RMIException
+        {
+            if(this.registered && this.chunk.isEmpty() && (more || this.kept == null))
+                return;
+            Path[] files = this.chunk.toArray(new Path[this.chunk.size()]);
+            Path[] duplicates;
+            if(!this.registered && this.kept != null)
+                duplicates = this.naming_server.registerAgain(this.storageStub,
+                                                              this.commandStub, files, more);
+            else if(!this.registered)
+                duplicates = this.naming_server.register(this.storageStub, this.commandStub,
+                                                         files, more);
+            else
+                duplicates = this.naming_server.registerMore(this.storageStub, files, more);
+            this.registered = true;
+            this.chunk.clear();
+            for(Path f : duplicates){
+                delete(f);
+                if(this.kept != null)
+                    this.kept.remove(f);
+            }
+        }
+    }
+
+    /** Returns the counts and latencies of the calls served by the storage
+        server, by method: those of the client interface, then those of the
+        command interface. */
+    public List<CallMetrics> getMetrics()
+    {
+        return Arrays.asList(this.storageSkeleton.getMetrics(),
+                             this.commandSkeleton.getMetrics());
+    }
+
     /** Stops the storage server.
 
         <p>
@@ -138,44 +414,76 @@ public class StorageServer implements Storage, Command
 
     // The following methods are documented in Storage.java.
     @Override
-    public synchronized long size(Path file) throws FileNotFoundException
+    public long size(Path file) throws FileNotFoundException
     {
-        File f = file.toFile(this.root);
-        if(!f.exists() || f.isDirectory())
-            throw new FileNotFoundException();
-        return f.length();
+        this.lock.readLock().lock();
+        try {
+            File f = file.toFile(this.root);
+            if(!f.exists() || f.isDirectory())
+                throw new FileNotFoundException();
+            return f.length();
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
     }
 
     @Override
-    public synchronized byte[] read(Path file, long offset, int length)
+    public byte[] read(Path file, long offset, int length)
         throws FileNotFoundException, IOException
     {
-        File f = file.toFile(this.root);
-        if(!f.exists() || f.isDirectory())
-            throw new FileNotFoundException();
-        if((offset + length > f.length()) || (length < 0) || (offset<0))
-            throw new IndexOutOfBoundsException();
-        RandomAccessFile raf = new RandomAccessFile(f, "r");
-        byte[] bytesRead = new byte[length];
-        raf.seek(offset);
-        raf.read(bytesRead, 0, length);
-        raf.close();
-        return bytesRead;
+        this.lock.readLock().lock();
+        try {
+            File f = file.toFile(this.root);
+            if(!f.exists() || f.isDirectory())
+                throw new FileNotFoundException();
+            if((offset + length > f.length()) || (length < 0) || (offset<0))
+                throw new IndexOutOfBoundsException();
+            // Positional reads into the array that is sent back, looping
+            // since a single read may return fewer bytes than asked for.
+            byte[] bytesRead = new byte[length];
+            ByteBuffer buffer = ByteBuffer.wrap(bytesRead);
+            FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+            try {
+                while(buffer.hasRemaining()) {
+                    if(channel.read(buffer, offset + buffer.position()) < 0)
+                        throw new EOFException();
+                }
+            }
+            finally {
+                channel.close();
+            }
+            return bytesRead;
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
     }
 
     @Override
-    public synchronized void write(Path file, long offset, byte[] data)
+    public void write(Path file, long offset, byte[] data)
         throws FileNotFoundException, IOException
     {
-        File f = file.toFile(this.root);
-        if(!f.exists() || f.isDirectory())
-            throw new FileNotFoundException();
-        if(offset < 0)
-            throw new IndexOutOfBoundsException();
-        RandomAccessFile raf = new RandomAccessFile(f, "rw");
-        raf.seek(offset);
-        raf.write(data, 0, data.length);
-        raf.close();
+        this.lock.writeLock().lock();
+        try {
+            File f = file.toFile(this.root);
+            if(!f.exists() || f.isDirectory())
+                throw new FileNotFoundException();
+            if(offset < 0)
+                throw new IndexOutOfBoundsException();
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE);
+            try {
+                while(buffer.hasRemaining())
+                    channel.write(buffer, offset + buffer.position());
+            }
+            finally {
+                channel.close();
+            }
+        }
+        finally {
+            this.lock.writeLock().unlock();
+        }
     }
 
     // The following methods are documented in Command.java.
@@ -190,40 +498,46 @@ public class StorageServer implements Storage, Command
                              error.
      */
     @Override
-    public synchronized boolean create(Path file)
+    public boolean create(Path file)
     {
-        if(file == null){
-            throw new NullPointerException("file is null, failure to create");
-        }
+        this.lock.writeLock().lock();
+        try {
+            if(file == null){
+                throw new NullPointerException("file is null, failure to create");
+            }
 
-        if(file.isRoot()){
-            //System.out.println("file is root, failure to create.");
-            return false;
-        }
-      //  System.out.println("=============== creating file1");
+            if(file.isRoot()){
+                //System.out.println("file is root, failure to create.");
+                return false;
+            }
+          //  System.out.println("=============== creating file1");
 
-        File f = file.toFile(this.root);
-        if(f.exists()) return false;
+            File f = file.toFile(this.root);
+            if(f.exists()) return false;
 
-        //System.out.println("=============== creating file2");
+            //System.out.println("=============== creating file2");
 
-        Path parent = file.parent();
+            Path parent = file.parent();
 
-       // System.out.println("=============== creating file3");
+           // System.out.println("=============== creating file3");
 
-        File pFile = parent.toFile(this.root);
+            File pFile = parent.toFile(this.root);
 
-        if(!pFile.exists()){
-            pFile.mkdirs();
-        }
+            if(!pFile.exists()){
+                pFile.mkdirs();
+            }
 
-        try{
-            return f.createNewFile();
-        } catch(Exception e){
-            e.printStackTrace();
-        }
+            try{
+                return f.createNewFile();
+            } catch(Exception e){
+                e.printStackTrace();
+            }
 
-        return false;
+            return false;
+        }
+        finally {
+            this.lock.writeLock().unlock();
+        }
     }
 
 
@@ -241,20 +555,26 @@ public class StorageServer implements Storage, Command
                              error.
      */
     @Override
-    public synchronized boolean delete(Path path)
+    public boolean delete(Path path)
     {
-        if(path == null){
-            throw new NullPointerException("path is null, failure to delete");
-        }
+        this.lock.writeLock().lock();
+        try {
+            if(path == null){
+                throw new NullPointerException("path is null, failure to delete");
+            }
 
 
-        if(path.isRoot()){
-            return false;
-        }
+            if(path.isRoot()){
+                return false;
+            }
 
-        File file = path.toFile(root);
+            File file = path.toFile(root);
 
-        return deleteHelper(file);
+            return deleteHelper(file);
+        }
+        finally {
+            this.lock.writeLock().unlock();
+        }
     }
 
     private boolean deleteHelper(File file){
@@ -295,47 +615,53 @@ public class StorageServer implements Storage, Command
                              server, or between the two storage servers.
      */
     @Override
-    public synchronized boolean copy(Path file, Storage server)
+    public boolean copy(Path file, Storage server)
         throws RMIException, FileNotFoundException, IOException
     {
-        if(file == null || server == null){
-            throw new NullPointerException("failure to copy");
-        }
+        this.lock.writeLock().lock();
+        try {
+            if(file == null || server == null){
+                throw new NullPointerException("failure to copy");
+            }
 
-        // throws FileNotFoundException
-        long size = server.size(file);
+            // throws FileNotFoundException
+            long size = server.size(file);
 
-        delete(file);
+            delete(file);
 
-        create(file);
+            create(file);
 
-        long offset = 0;
-        long left = size;
-        boolean compare = true;
+            long offset = 0;
+            long left = size;
+            boolean compare = true;
 
-        while(left > 0){
-            int written;
-            if(left > Integer.MAX_VALUE){
-                written = Integer.MAX_VALUE;
-            }else{
-                written = (int)left;
-            }
+            while(left > 0){
+                int written;
+                if(left > Integer.MAX_VALUE){
+                    written = Integer.MAX_VALUE;
+                }else{
+                    written = (int)left;
+                }
 
-            // return IOE/RMI exception
-            byte[] data = server.read(file, offset, written);
-            this.write(file,offset,data);
+                // return IOE/RMI exception
+                byte[] data = server.read(file, offset, written);
+                this.write(file,offset,data);
 
-            byte[] local = this.read(file,offset,written);
-            compare = compare && Arrays.equals(data,local);
-            if(!compare){
-                return false;
-            }
+                byte[] local = this.read(file,offset,written);
+                compare = compare && Arrays.equals(data,local);
+                if(!compare){
+                    return false;
+                }
 
-            offset += written;
-            left -= written;
-        }
+                offset += written;
+                left -= written;
+            }
 
-        return true;
+            return true;
 
+        }
+        finally {
+            this.lock.writeLock().unlock();
+        }
     }
 }
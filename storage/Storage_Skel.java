@@ -0,0 +1,33 @@
+// Generated by build.GenerateStubs from storage.Storage. Do not edit.
+package storage;
+
+/** Dispatcher for <code>storage.Storage</code>. See <code>rmi.Dispatcher</code>. */
+public final class Storage_Skel implements rmi.Dispatcher
+{
+    private static final String[] SIGNATURES = {
+        "read(common.Path,long,int)",
+        "size(common.Path)",
+        "write(common.Path,long,[B)",
+    };
+
+    public String[] signatures()
+    {
+        return SIGNATURES.clone();
+    }
+
+    public Object dispatch(Object server, int ordinal, Object[] args) throws Throwable
+    {
+        Storage target = (Storage) server;
+        switch(ordinal) {
+            case 0:
+                return target.read((common.Path) args[0], (java.lang.Long) args[1], (java.lang.Integer) args[2]);
+            case 1:
+                return target.size((common.Path) args[0]);
+            case 2:
+                target.write((common.Path) args[0], (java.lang.Long) args[1], (byte[]) args[2]);
+                return null;
+            default:
+                throw new IllegalArgumentException("no method " + ordinal);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+// Generated by build.GenerateStubs from storage.Storage. Do not edit.
+package storage;
+
+/** Stub for <code>storage.Storage</code>. See <code>rmi.GeneratedStub</code>. */
+public final class Storage_Stub extends rmi.GeneratedStub implements Storage
+{
+    private static final long serialVersionUID = 1L;
+
+    public Storage_Stub(rmi.RMIInvocationHandler handler)
+    {
+        super(handler);
+    }
+
+    public byte[] read(common.Path a0, long a1, int a2)
+        throws rmi.RMIException, java.io.FileNotFoundException, java.io.IOException
+    {
+        try {
+            return (byte[]) call(0, new Object[] { a0, a1, a2 });
+        }
+        catch(rmi.RMIException | java.io.IOException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+
+    public long size(common.Path a0)
+        throws rmi.RMIException, java.io.FileNotFoundException
+    {
+        try {
+            return (java.lang.Long) call(1, new Object[] { a0 });
+        }
+        catch(rmi.RMIException | java.io.FileNotFoundException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+
+    public void write(common.Path a0, long a1, byte[] a2)
+        throws rmi.RMIException, java.io.FileNotFoundException, java.io.IOException
+    {
+        try {
+            call(2, new Object[] { a0, a1, a2 });
+        }
+        catch(rmi.RMIException | java.io.IOException | java.lang.RuntimeException | java.lang.Error e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw new java.lang.reflect.UndeclaredThrowableException(t);
+        }
+    }
+}
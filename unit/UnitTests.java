@@ -5,7 +5,7 @@ import test.*;
 /** Runs all unit tests on distributed filesystem components.
 
     <p>
-    There are currently no unit tests.
+    Unit tests live under <code>unit</code>, in the packages they test.
  */
 public class UnitTests
 {
@@ -18,7 +18,11 @@ public class UnitTests
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {};
+            new Class[] {naming.util.JournalTest.class,
+                         naming.util.CheckpointTest.class,
+                         storage.ManifestTest.class,
+                         naming.ReregistrationTest.class,
+                         naming.LockDeadlineTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
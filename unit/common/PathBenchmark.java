@@ -0,0 +1,106 @@
+package common;
+
+/** Measures the common operations on paths.
+
+    <p>
+    Paths of several depths are built from strings, and the time taken by
+    <code>equals</code> (on equal paths built separately), <code>hashCode</code>
+    (on a path not hashed before, and again), <code>parent</code>,
+    <code>isSubpath</code> and the appending constructor is printed, per call.
+
+    <p>
+    Run with <code>make bench</code>, or from the project root with
+    <code>java -cp .:unit common.PathBenchmark</code> after compiling.
+ */
+public class PathBenchmark {
+    /* Calls timed per measurement, after as many untimed ones. */
+    static final int CALLS = 1000000;
+
+    /* Depends on every result, so that no call is optimized away. */
+    static int sink = 0;
+
+    public static void main(String[] arguments) {
+        for(int depth: new int[] { 2, 8, 32 }) {
+            measure(depth);
+        }
+        if(sink == 42) {
+            System.out.println();
+        }
+    }
+
+    static void measure(int depth) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < depth; i++) {
+            sb.append("/component").append(i);
+        }
+        String string = sb.toString();
+        Path path = new Path(string);
+        Path same = new Path(string);
+        Path prefix = new Path(string.substring(0, string.lastIndexOf('/', string.length() / 2)));
+        String[] strings = new String[64];
+        for(int i = 0; i < strings.length; i++) {
+            strings[i] = string + "/file" + i;
+        }
+
+        double equals = 0;
+        double freshHash = 0;
+        double hash = 0;
+        double parent = 0;
+        double subpath = 0;
+        double child = 0;
+        for(int round = 0; round < 2; round++) {
+            long started = System.nanoTime();
+            for(int i = 0; i < CALLS; i++) {
+                sink += path.equals(same) ? 1 : 0;
+            }
+            equals = perCall(started);
+
+            Path[] fresh = new Path[strings.length];
+            long parsing = 0;
+            started = System.nanoTime();
+            for(int i = 0; i < CALLS; i++) {
+                if(i % fresh.length == 0) {
+                    long parsed = System.nanoTime();
+                    for(int j = 0; j < fresh.length; j++) {
+                        fresh[j] = new Path(strings[j]);
+                    }
+                    parsing += System.nanoTime() - parsed;
+                }
+                sink += fresh[i % fresh.length].hashCode();
+            }
+            freshHash = (double) (System.nanoTime() - started - parsing) / CALLS;
+
+            started = System.nanoTime();
+            for(int i = 0; i < CALLS; i++) {
+                sink += path.hashCode();
+            }
+            hash = perCall(started);
+
+            started = System.nanoTime();
+            for(int i = 0; i < CALLS; i++) {
+                sink += path.parent().isRoot() ? 1 : 0;
+            }
+            parent = perCall(started);
+
+            started = System.nanoTime();
+            for(int i = 0; i < CALLS; i++) {
+                sink += path.isSubpath(prefix) ? 1 : 0;
+            }
+            subpath = perCall(started);
+
+            started = System.nanoTime();
+            for(int i = 0; i < CALLS; i++) {
+                sink += new Path(path, "file").isRoot() ? 1 : 0;
+            }
+            child = perCall(started);
+        }
+
+        System.out.printf("depth %-3d equals %7.1f ns  hashCode %7.1f ns (%.1f ns cached)  "
+                          + "parent %7.1f ns  isSubpath %7.1f ns  child %7.1f ns%n", depth,
+                          equals, freshHash, hash, parent, subpath, child);
+    }
+
+    static double perCall(long started) {
+        return (double) (System.nanoTime() - started) / CALLS;
+    }
+}
@@ -0,0 +1,99 @@
+package common;
+
+import java.io.*;
+import java.nio.file.Files;
+
+/** Measures scanning a local directory tree of many small files.
+
+    <p>
+    A tree of directories holding 100 empty files each is made in a temporary
+    directory, and the time taken to list it is printed: by a single thread
+    walking it with <code>File.listFiles</code>, as storage servers did, and
+    by a <code>PathScanner</code> with several numbers of threads. The tree is
+    listed once before timing, so the figures are for a tree whose directories
+    are cached; a cold disk gains more from listing several directories at
+    once.
+
+    <p>
+    Run with <code>make bench</code>, or from the project root with
+    <code>java -cp .:unit common.PathScanBenchmark [files]</code> after
+    compiling.
+ */
+public class PathScanBenchmark
+{
+    static final int FILES_PER_DIRECTORY = 100;
+
+    public static void main(String[] arguments) throws Exception
+    {
+        int files = arguments.length > 0 ? Integer.parseInt(arguments[0]) : 200000;
+        File root = Files.createTempDirectory("scan").toFile();
+        try {
+            make(root, files);
+            System.out.printf("%d files, %d processors%n", files,
+                              Runtime.getRuntime().availableProcessors());
+            for(int round = 0; round < 2; round++)
+            {
+                long started = System.nanoTime();
+                int listed = walk(root, new Path());
+                report("walk, 1 thread", listed, started);
+
+                for(int threads : new int[] { 1, 2, 4, 8, 16 })
+                {
+                    started = System.nanoTime();
+                    listed = 0;
+                    PathScanner scanner = new PathScanner(root, threads);
+                    for(Path[] batch = scanner.next(); batch != null; batch = scanner.next())
+                        listed += batch.length;
+                    report("scanner, " + threads + " threads", listed, started);
+                }
+            }
+        }
+        finally {
+            remove(root);
+        }
+    }
+
+    /** Makes the files, in directories two levels deep. */
+    static void make(File root, int files) throws IOException
+    {
+        for(int made = 0, directory = 0; made < files; directory++)
+        {
+            File parent = new File(new File(root, "d" + directory % 100), "e" + directory);
+            parent.mkdirs();
+            for(int i = 0; i < FILES_PER_DIRECTORY && made < files; i++, made++)
+                new File(parent, String.format("part-%05d", i)).createNewFile();
+        }
+    }
+
+    /** Lists a tree as <code>Path.list</code> did before it was parallel. */
+    static int walk(File directory, Path path)
+    {
+        int listed = 0;
+        for(File f : directory.listFiles())
+        {
+            Path child = new Path(path, f.getName());
+            if(f.isDirectory())
+                listed += walk(f, child);
+            else
+                listed++;
+        }
+        return listed;
+    }
+
+    static void report(String name, int listed, long started)
+    {
+        System.out.printf("%-20s %8d files %8.1f ms%n", name, listed,
+                          (System.nanoTime() - started) / 1e6);
+    }
+
+    static void remove(File file)
+    {
+        File[] children = file.listFiles();
+        if(children != null)
+        {
+            for(File child : children)
+                remove(child);
+        }
+        file.delete();
+    }
+}
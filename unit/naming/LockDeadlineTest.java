@@ -0,0 +1,152 @@
+package naming;
+
+import java.net.*;
+import java.util.concurrent.*;
+
+import rmi.*;
+import test.*;
+import common.*;
+
+/** Tests that a lock granted after its caller's deadline is not lost.
+
+    <p>
+    The root directory is locked for exclusive access, and another lock on it
+    is then requested by a caller with a short deadline. The exclusive lock
+    is released only after that deadline has passed. The second caller must
+    nonetheless be granted its lock, rather than give up while the naming
+    server goes on to grant it: a lock granted to a caller which has given up
+    is never released, and would keep the root locked for good. Once the
+    second caller releases its lock, the root must be free for exclusive
+    access again.
+ */
+public class LockDeadlineTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server locks granted after the caller's deadline";
+
+    /** Deadline of the waiting caller, and the time after which the
+        exclusive lock is released, in milliseconds. */
+    private static final int    DEADLINE = 100;
+    private static final int    RELEASE_DELAY = 500;
+
+    /** Naming server under test. */
+    private NamingServer        server = null;
+    /** Stub for the naming server client service interface. */
+    private Service             service_stub = null;
+
+    private final Path          root = new Path("/");
+
+    /** Starts the naming server and creates the service stub. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            server = new NamingServer();
+            server.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start naming server", t);
+        }
+
+        try
+        {
+            InetSocketAddress   address =
+                new InetSocketAddress("127.0.0.1", NamingStubs.SERVICE_PORT);
+            service_stub = Stub.create(Service.class, address);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create service stub", t);
+        }
+    }
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            service_stub.lock(root, true);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to lock root directory for " +
+                                 "exclusive access", t);
+        }
+
+        new Thread(new Releaser()).start();
+
+        task("waiting for a lock past the caller's deadline");
+        try(Deadline deadline = Deadline.within(DEADLINE, TimeUnit.MILLISECONDS))
+        {
+            service_stub.lock(root, false);
+        }
+        catch(DeadlineExceededException e)
+        {
+            throw new TestFailed("lock call gave up at the caller's deadline " +
+                                 "while the lock was still requested", e);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to lock root directory for shared " +
+                                 "access", t);
+        }
+
+        try
+        {
+            service_stub.unlock(root, false);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to unlock root directory", t);
+        }
+
+        // The root must now be free. If the lock were still held, the test
+        // would time out here.
+        task("locking root directory again");
+        try
+        {
+            service_stub.lock(root, true);
+            service_stub.unlock(root, true);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to lock root directory for " +
+                                 "exclusive access again", t);
+        }
+        task();
+    }
+
+    /** Stops the naming server. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.stop();
+            server = null;
+        }
+    }
+
+    /** Releases the exclusive lock on the root directory once the waiting
+        caller's deadline has passed. */
+    private class Releaser implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                Thread.sleep(RELEASE_DELAY);
+                service_stub.unlock(root, true);
+            }
+            catch(Throwable t)
+            {
+                failure(new TestFailed("unable to unlock root directory", t));
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package naming;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+import rmi.*;
+import test.*;
+import common.*;
+import storage.*;
+
+/** Tests registration of a storage server the naming server already knows.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li><code>registerChanges</code> is refused, changing nothing, unless
+        the naming server holds the manifest named. Otherwise the files
+        removed are no longer listed on the storage server, the files added
+        are, and duplicates among them are returned.</li>
+    <li>A storage server registered again with <code>registerAgain</code>,
+        in chunks, stays listed for its files until the last chunk. Only
+        then are the files in no chunk dropped. A storage server which stops
+        before the last chunk keeps its files.</li>
+    <li>A storage server restarted with a manifest sends exactly the files
+        added and removed since.</li>
+    </ul>
+ */
+public class ReregistrationTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server registration of known storage servers";
+
+    /** Naming server under test. It is called directly, and not started. */
+    private NamingServer        server = null;
+    /** Stubs of two storage servers, which are not started. */
+    private Storage             storage = null;
+    private Command             command = null;
+    private Storage             other_storage = null;
+    private Command             other_command = null;
+    /** Directory served by the storage server restarted in the test. */
+    private TemporaryDirectory  directory = null;
+    private StorageServer       storage_server = null;
+
+    /** Ports of the storage server restarted in the test. */
+    private static final int    CLIENT_PORT = 7501;
+    private static final int    COMMAND_PORT = 7502;
+
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            server = new NamingServer();
+            storage = Stub.create(Storage.class,
+                                  new InetSocketAddress("127.0.0.1", 7401));
+            command = Stub.create(Command.class,
+                                  new InetSocketAddress("127.0.0.1", 7402));
+            other_storage = Stub.create(Storage.class,
+                                        new InetSocketAddress("127.0.0.1", 7403));
+            other_command = Stub.create(Command.class,
+                                        new InetSocketAddress("127.0.0.1", 7404));
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create naming server", t);
+        }
+    }
+
+    @Override
+    protected void perform() throws Exception
+    {
+        testChanges();
+        testAgainInChunks();
+        testStorageServerChanges();
+    }
+
+    @Override
+    protected void clean()
+    {
+        if(storage_server != null)
+        {
+            storage_server.stop();
+            storage_server = null;
+        }
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+        server = null;
+    }
+
+    /** Checks <code>registerChanges</code>. */
+    private void testChanges() throws Exception
+    {
+        task("registering changes");
+        server.register(storage, command, paths("/a/1", "/a/2", "/b/3"));
+        server.register(other_storage, other_command, paths("/d/9"));
+        server.acceptManifest(storage, 1, 77);
+
+        if(server.registerChanges(storage, command, 2, 77, paths("/c/4"),
+                                  paths("/a/2")) != null)
+        {
+            throw new TestFailed("changes accepted for a manifest of another " +
+                                 "generation");
+        }
+        if(server.registerChanges(storage, command, 1, 78, paths("/c/4"),
+                                  paths("/a/2")) != null)
+        {
+            throw new TestFailed("changes accepted for a manifest with " +
+                                 "another checksum");
+        }
+        expect("/a/2", true);
+        expect("/c/4", false);
+
+        Path[]              duplicates =
+            server.registerChanges(storage, command, 1, 77,
+                                   paths("/c/4", "/d/9"), paths("/a/2"));
+        if(duplicates == null)
+            throw new TestFailed("changes refused for the manifest held");
+        if(!Arrays.equals(duplicates, paths("/d/9")))
+        {
+            throw new TestFailed("wrong duplicates returned: " +
+                                 Arrays.toString(duplicates));
+        }
+        expect("/a/1", true);
+        expect("/a/2", false);
+        expect("/b/3", true);
+        expect("/c/4", true);
+        if(server.getStorage(new Path("/d/9")).equals(storage))
+            throw new TestFailed("duplicate listed on the storage server");
+    }
+
+    /** Checks <code>registerAgain</code> in chunks. Runs after
+        <code>testChanges</code>, whose files the storage server holds. */
+    private void testAgainInChunks() throws Exception
+    {
+        task("registering again in chunks");
+        server.registerAgain(storage, command, paths("/a/1"), true);
+        expect("/b/3", true);
+        expect("/c/4", true);
+        server.registerMore(storage, paths("/c/4", "/e/5"), true);
+        expect("/b/3", true);
+        server.registerMore(storage, paths(), false);
+        expect("/a/1", true);
+        expect("/b/3", false);
+        expect("/c/4", true);
+        expect("/e/5", true);
+        expect("/d/9", true);
+
+        if(server.registerChanges(storage, command, 1, 77, paths(), paths())
+                != null)
+        {
+            throw new TestFailed("manifest kept after registering again");
+        }
+
+        task("registering again, stopping before the last chunk");
+        server.registerAgain(storage, command, paths("/a/1"), true);
+        expect("/c/4", true);
+        expect("/e/5", true);
+    }
+
+    /** Checks the changes a restarted storage server sends. */
+    private void testStorageServerChanges() throws Exception
+    {
+        task("restarting a storage server with a manifest");
+        NamingServer        naming = new NamingServer();
+        File                root = new File(directory.root(), "root");
+        File                manifest = new File(directory.root(), "manifest");
+        for(int i = 0; i < 20; i++)
+            touch(root, "d" + (i % 4) + "/f" + i);
+
+        storage_server = new StorageServer(root, CLIENT_PORT, COMMAND_PORT, manifest);
+        storage_server.start("127.0.0.1", naming);
+        storage_server.stop();
+        storage_server = null;
+
+        new File(root, "d0/f0").delete();
+        new File(root, "d1/f5").delete();
+        touch(root, "new/g");
+        touch(root, "d2/h");
+
+        List<Object[]>      changes = new ArrayList<Object[]>();
+        storage_server = new StorageServer(root, CLIENT_PORT, COMMAND_PORT, manifest);
+        storage_server.start("127.0.0.1", recording(naming, changes));
+        storage_server.stop();
+        storage_server = null;
+
+        if(changes.size() != 1)
+        {
+            throw new TestFailed("restarted storage server did not register " +
+                                 "only its changes");
+        }
+        Path[]              added = (Path[])changes.get(0)[4];
+        Path[]              removed = (Path[])changes.get(0)[5];
+        if(!TestUtil.sameElements(added, paths("/new/g", "/d2/h")))
+            throw new TestFailed("wrong files added: " + Arrays.toString(added));
+        if(!TestUtil.sameElements(removed, paths("/d0/f0", "/d1/f5")))
+        {
+            throw new TestFailed("wrong files removed: " +
+                                 Arrays.toString(removed));
+        }
+        if(naming.list(new Path("/d0")).length != 4)
+            throw new TestFailed("removed file still listed");
+        naming.getStorage(new Path("/new/g"));
+    }
+
+    /** Checks whether a file is listed on any storage server. */
+    private void expect(String path, boolean listed) throws TestFailed
+    {
+        boolean             found;
+        try
+        {
+            server.getStorage(new Path(path));
+            found = true;
+        }
+        catch(FileNotFoundException e)
+        {
+            found = false;
+        }
+        if(found != listed)
+        {
+            throw new TestFailed(path + (listed ? " not listed" :
+                                                  " still listed"));
+        }
+    }
+
+    /** Returns a registration interface which records the arguments of each
+        call to <code>registerChanges</code>, and passes every call on. */
+    private static Registration recording(final Registration registration,
+                                          final List<Object[]> changes)
+    {
+        InvocationHandler   handler = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable
+            {
+                if(method.getName().equals("registerChanges"))
+                    changes.add(args);
+                try
+                {
+                    return method.invoke(registration, args);
+                }
+                catch(InvocationTargetException e)
+                {
+                    throw e.getCause();
+                }
+            }
+        };
+        return (Registration)Proxy.newProxyInstance(
+            Registration.class.getClassLoader(),
+            new Class<?>[] {Registration.class}, handler);
+    }
+
+    private static void touch(File root, String path) throws IOException
+    {
+        File                file = new File(root, path);
+        file.getParentFile().mkdirs();
+        file.createNewFile();
+    }
+
+    private static Path[] paths(String... paths)
+    {
+        Path[]              result = new Path[paths.length];
+        for(int i = 0; i < paths.length; i++)
+            result[i] = new Path(paths[i]);
+        return result;
+    }
+}
@@ -0,0 +1,117 @@
+package naming.util;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+import test.*;
+import common.*;
+
+/** Tests images of the directory tree.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>An image loaded into an empty tree gives the tree it was taken of,
+        with the storage servers of each file.</li>
+    <li>An image which is damaged, cut short, or not an image at all fails to
+        load with an <code>IOException</code>, and so does replaying a
+        journal with such an image.</li>
+    </ul>
+ */
+public class CheckpointTest extends Test {
+    /** Test notice. */
+    public static final String notice = "checking naming server checkpoint images";
+
+    /** Directory holding the images. */
+    private TemporaryDirectory directory = null;
+    private File image;
+
+    @Override
+    protected void initialize() throws TestFailed {
+        try {
+            this.directory = new TemporaryDirectory();
+        }
+        catch(Throwable t) {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+        this.image = new File(this.directory.root(), "journal.checkpoint");
+    }
+
+    @Override
+    protected void perform() throws Exception {
+        task("loading an image");
+        Scheduler scheduler = new Scheduler();
+        PathComponents first = JournalTest.server(scheduler, 7000);
+        PathComponents second = JournalTest.server(scheduler, 7100);
+        DirectoryTree tree = new DirectoryTree(scheduler);
+        tree.insertPathStubs(new Path[] {new Path("/a/f"), new Path("/a/g"),
+                                         new Path("/b/a/f")}, first, scheduler);
+        tree.insertPathStubs(new Path[] {new Path("/a/f"), new Path("/c")}, second, scheduler);
+        tree.getNode(new Path("/a/f")).addDirComp(second);
+        tree.insertNode(new Path("/empty"), true);
+
+        long written = Checkpoint.write(tree, this.image);
+        DirectoryTree loaded = new DirectoryTree(new Scheduler());
+        long read = Checkpoint.load(this.image, loaded, loaded.scheduler);
+        if(read != written) {
+            throw new TestFailed(read + " nodes loaded, " + written + " written");
+        }
+        String expected = JournalTest.dump(tree);
+        String got = JournalTest.dump(loaded);
+        if(!got.equals(expected)) {
+            throw new TestFailed("loaded tree differs:\n" + got + "expected:\n" + expected);
+        }
+
+        byte[] bytes = Files.readAllBytes(this.image.toPath());
+
+        task("loading a damaged image");
+        byte[] damaged = bytes.clone();
+        damaged[damaged.length / 2] ^= 0x10;
+        expectDamaged(damaged, "damaged image");
+
+        task("loading an image cut short");
+        expectDamaged(Arrays.copyOf(bytes, bytes.length - 5), "image cut short");
+        expectDamaged(new byte[0], "empty image");
+
+        task("loading a file which is not an image");
+        expectDamaged("not a checkpoint image".getBytes("UTF-8"), "file which is not an image");
+
+        task("replaying a journal with a damaged image");
+        Files.write(this.image.toPath(), damaged);
+        Journal journal = new Journal(new File(this.directory.root(), "journal"));
+        try {
+            journal.replay(new DirectoryTree(), new Scheduler());
+            throw new TestFailed("journal replayed with a damaged image");
+        }
+        catch(IOException e) {
+            // expected
+        }
+        finally {
+            journal.close();
+        }
+        task();
+    }
+
+    @Override
+    protected void clean() {
+        if(this.directory != null) {
+            this.directory.remove();
+            this.directory = null;
+        }
+    }
+
+    /** Writes the given bytes as the image, and checks that loading it fails
+        with an <code>IOException</code>. */
+    private void expectDamaged(byte[] bytes, String what) throws Exception {
+        Files.write(this.image.toPath(), bytes);
+        DirectoryTree tree = new DirectoryTree(new Scheduler());
+        try {
+            Checkpoint.load(this.image, tree, tree.scheduler);
+        }
+        catch(IOException e) {
+            return;
+        }
+        throw new TestFailed(what + " loaded");
+    }
+}
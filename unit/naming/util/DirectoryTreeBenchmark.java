@@ -0,0 +1,106 @@
+package naming.util;
+
+import java.io.*;
+
+import common.*;
+
+/** Measures path lookups and locking in the naming server's directory tree.
+
+    <p>
+    Two trees are built: a wide one, with one directory holding many files, and
+    a deep one, with a single chain of nested directories. For each, the time
+    taken by <code>getNode</code> and by a <code>lock</code> and
+    <code>unlock</code> pair is printed, per call, for paths spread over the
+    tree. Both should stay flat as the trees grow.
+
+    <p>
+    Run with <code>make bench</code>, or from the project root with
+    <code>java -cp .:unit naming.util.DirectoryTreeBenchmark [wide] [deep]</code>
+    after compiling.
+ */
+public class DirectoryTreeBenchmark {
+    /* Calls timed per measurement, after as many untimed ones. */
+    static final int CALLS = 200000;
+
+    public static void main(String[] arguments) throws Exception {
+        int wide = arguments.length > 0 ? Integer.parseInt(arguments[0]) : 100000;
+        int deep = arguments.length > 1 ? Integer.parseInt(arguments[1]) : 500;
+
+        for(int size = wide / 100; size <= wide; size *= 10) {
+            measure("wide " + size, wideTree(size));
+        }
+        for(int size = deep / 10; size <= deep; size *= 10) {
+            measure("deep " + size, deepTree(size));
+        }
+    }
+
+    /** Builds <code>/wide</code> holding the given number of files, and
+        returns the paths of a sample of them. */
+    static Fixture wideTree(int files) throws FileNotFoundException {
+        Fixture fixture = new Fixture();
+        Path directory = new Path("/wide");
+        fixture.tree.insertNode(directory, true);
+        for(int i = 0; i < files; i++) {
+            fixture.tree.insertNode(new Path(directory, "file" + i), false);
+        }
+        fixture.paths = new Path[64];
+        for(int i = 0; i < fixture.paths.length; i++) {
+            fixture.paths[i] = new Path(directory, "file" + (long) i * files / fixture.paths.length);
+        }
+        fixture.locked = new Path[] { directory };
+        return fixture;
+    }
+
+    /** Builds a chain of the given number of nested directories, and returns
+        the paths of a sample of them. */
+    static Fixture deepTree(int depth) throws FileNotFoundException {
+        Fixture fixture = new Fixture();
+        Path[] chain = new Path[depth];
+        Path current = new Path();
+        for(int i = 0; i < depth; i++) {
+            current = new Path(current, "dir" + i);
+            fixture.tree.insertNode(current, true);
+            chain[i] = current;
+        }
+        fixture.paths = new Path[] { chain[depth / 4], chain[depth / 2], chain[depth - 1] };
+        fixture.locked = fixture.paths;
+        return fixture;
+    }
+
+    static void measure(String name, Fixture fixture) throws Exception {
+        DirectoryTree tree = fixture.tree;
+        Path[] paths = fixture.paths;
+        Path[] locked = fixture.locked;
+
+        long lookup = 0;
+        long locking = 0;
+        for(int round = 0; round < 2; round++) {
+            long started = System.nanoTime();
+            for(int i = 0; i < CALLS; i++) {
+                if(tree.getNode(paths[i % paths.length]) == null) {
+                    throw new IllegalStateException("missing " + paths[i % paths.length]);
+                }
+            }
+            lookup = System.nanoTime() - started;
+
+            started = System.nanoTime();
+            for(int i = 0; i < CALLS; i++) {
+                Path path = locked[i % locked.length];
+                tree.lock(path, i % 2 == 0, null);
+                tree.unlock(path, i % 2 == 0);
+            }
+            locking = System.nanoTime() - started;
+        }
+
+        System.out.printf("%-12s getNode %8.1f ns   lock+unlock %8.1f ns%n", name,
+                          (double) lookup / CALLS, (double) locking / CALLS);
+    }
+
+    /** A tree and the paths to look up and lock in it. Only directories are
+        locked, so that no storage servers are needed. */
+    static class Fixture {
+        final DirectoryTree tree = new DirectoryTree();
+        Path[] paths;
+        Path[] locked;
+    }
+}
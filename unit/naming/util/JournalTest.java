@@ -0,0 +1,288 @@
+package naming.util;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import test.*;
+import common.*;
+import storage.*;
+import rmi.*;
+
+/** Tests recovery of the directory tree from the journal and checkpoints.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>A record torn or garbled by a crash, at the end of the journal, is
+        dropped, the records before it are applied, and the file is truncated
+        to the last whole record.</li>
+    <li>Replaying the journal over an image taken while the tree was being
+        changed, so that the image already holds some of the records, gives
+        the tree as it was.</li>
+    <li>A checkpoint interrupted between its two renames is finished on the
+        next replay, which gives the tree as it was.</li>
+    </ul>
+ */
+public class JournalTest extends Test {
+    /** Test notice. */
+    public static final String notice = "checking naming server journal recovery";
+
+    /** Directory holding the journal files. */
+    private TemporaryDirectory directory = null;
+    private File file;
+
+    @Override
+    protected void initialize() throws TestFailed {
+        try {
+            this.directory = new TemporaryDirectory();
+        }
+        catch(Throwable t) {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+        this.file = new File(this.directory.root(), "journal");
+    }
+
+    @Override
+    protected void perform() throws Exception {
+        testTornTail();
+        fresh();
+        testReplayOverImage();
+        fresh();
+        testInterruptedCheckpoint();
+    }
+
+    @Override
+    protected void clean() {
+        if(this.directory != null) {
+            this.directory.remove();
+            this.directory = null;
+        }
+    }
+
+    /** Checks that a torn or garbled last record is dropped. */
+    private void testTornTail() throws Exception {
+        task("replaying a journal with a torn last record");
+        Scheduler scheduler = new Scheduler();
+        PathComponents server = server(scheduler, 7000);
+        DirectoryTree tree = new DirectoryTree(scheduler);
+        Journal journal = open(tree, scheduler);
+        tree.insertNode(new Path("/a"), true);
+        tree.insertNode(new Path("/a/f"), server);
+        long whole = this.file.length();
+        tree.insertNode(new Path("/b"), true);
+        String before = dump(tree);
+        long end = this.file.length();
+        journal.close();
+
+        // A record whose header is written but whose contents are not.
+        try(FileOutputStream out = new FileOutputStream(this.file, true)) {
+            new DataOutputStream(out).writeInt(100);
+            out.write(new byte[10]);
+        }
+        check(reopen(), before, "torn record appended");
+        if(this.file.length() != end) {
+            throw new TestFailed("journal not truncated after a torn record: "
+                                 + this.file.length() + " bytes, " + end + " expected");
+        }
+
+        // The last record, garbled.
+        try(RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+            raf.seek(end - 1);
+            int b = raf.read();
+            raf.seek(end - 1);
+            raf.write(b ^ 0xff);
+        }
+        DirectoryTree replayed = reopen();
+        if(replayed.getNode(new Path("/b")) != null) {
+            throw new TestFailed("garbled record applied");
+        }
+        if(replayed.getNode(new Path("/a/f")) == null) {
+            throw new TestFailed("record before a garbled one dropped");
+        }
+        if(this.file.length() != whole) {
+            throw new TestFailed("journal not truncated after a garbled record: "
+                                 + this.file.length() + " bytes, " + whole + " expected");
+        }
+
+        // The last record, cut short.
+        try(RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+            raf.setLength(whole - 3);
+        }
+        replayed = reopen();
+        if(replayed.getNode(new Path("/a/f")) != null
+                || replayed.getNode(new Path("/a")) == null) {
+            throw new TestFailed("journal cut inside its last record replayed wrongly");
+        }
+    }
+
+    /** Checks that records replayed over an image which already holds some
+        of them give the same tree. */
+    private void testReplayOverImage() throws Exception {
+        task("replaying the journal over an image taken mid-change");
+        Scheduler scheduler = new Scheduler();
+        PathComponents first = server(scheduler, 7000);
+        PathComponents second = server(scheduler, 7100);
+        DirectoryTree tree = new DirectoryTree(scheduler);
+        Journal journal = open(tree, scheduler);
+
+        tree.insertNode(new Path("/a"), true);
+        tree.insertNode(new Path("/a/f"), first);
+        tree.insertNode(new Path("/a/g"), first);
+        replica(tree, journal, new Path("/a/f"), second);
+        tree.insertNode(new Path("/x"), first);
+        tree.removeNode(new Path("/x"));
+        tree.insertNode(new Path("/x"), true);
+        tree.insertNode(new Path("/x/y"), second);
+
+        // The image is taken part way through the changes, all of which are
+        // in the journal.
+        Checkpoint.write(tree, sibling(".checkpoint"));
+
+        exclusive(tree, journal, new Path("/a/f"), second);
+        tree.removeNode(new Path("/a/g"));
+        tree.insertPathStubs(new Path[] {new Path("/b/c/h")}, first, scheduler);
+        replica(tree, journal, new Path("/b/c/h"), second);
+        tree.removePathStubs(new Path[] {new Path("/b/c/h")}, first);
+        tree.removeNode(new Path("/x"));
+        tree.insertNode(new Path("/x"), second);
+        journal.close();
+
+        check(reopen(), dump(tree), "replay over an image");
+    }
+
+    /** Checks that a checkpoint interrupted after the image is in place, but
+        before the new journal replaces the old one, is finished. */
+    private void testInterruptedCheckpoint() throws Exception {
+        task("replaying after a checkpoint interrupted between its renames");
+        Scheduler scheduler = new Scheduler();
+        PathComponents first = server(scheduler, 7000);
+        PathComponents second = server(scheduler, 7100);
+        DirectoryTree tree = new DirectoryTree(scheduler);
+        Journal journal = open(tree, scheduler);
+
+        tree.insertNode(new Path("/a"), true);
+        tree.insertNode(new Path("/a/f"), first);
+        tree.insertNode(new Path("/a/g"), second);
+        byte[] old = Files.readAllBytes(this.file.toPath());
+
+        journal.checkpoint();
+        tree.removeNode(new Path("/a/g"));
+        tree.insertNode(new Path("/b"), second);
+        replica(tree, journal, new Path("/a/f"), second);
+        journal.close();
+        String expected = dump(tree);
+
+        // The state between the renames: the image is in place, the records
+        // written since the checkpoint started are in the new file, and the
+        // old journal has not been replaced.
+        Files.move(this.file.toPath(), sibling(".new").toPath(),
+                   StandardCopyOption.REPLACE_EXISTING);
+        Files.write(this.file.toPath(), old);
+
+        check(reopen(), expected, "replay after an interrupted checkpoint");
+        if(sibling(".new").exists()) {
+            throw new TestFailed("interrupted checkpoint not finished");
+        }
+        check(reopen(), expected, "replay after a finished checkpoint");
+    }
+
+    /** Removes the journal files left by the last case. */
+    private void fresh() {
+        for(String suffix: new String[] {"", ".new", ".checkpoint", ".checkpoint.tmp"}) {
+            sibling(suffix).delete();
+        }
+    }
+
+    /** Opens the journal, replays it into a tree, and journals the tree's
+        later changes. */
+    private Journal open(DirectoryTree tree, Scheduler scheduler) throws IOException {
+        Journal journal = new Journal(this.file);
+        journal.replay(tree, scheduler);
+        tree.setJournal(journal);
+        return journal;
+    }
+
+    /** Restores a tree from the journal files, as a restarted naming server
+        does, and closes the journal again. */
+    private DirectoryTree reopen() throws IOException {
+        Scheduler scheduler = new Scheduler();
+        DirectoryTree tree = new DirectoryTree(scheduler);
+        open(tree, scheduler).close();
+        return tree;
+    }
+
+    private File sibling(String suffix) {
+        return new File(this.file.getPath() + suffix);
+    }
+
+    /** Lists a file on one more server, as a copy does. */
+    private static void replica(DirectoryTree tree, Journal journal, Path path,
+                                PathComponents server) {
+        DirectoryNode node = tree.getNode(path);
+        long entry;
+        synchronized(node) {
+            node.addDirComp(server);
+            entry = journal.replica(path, server);
+        }
+        journal.commit(entry);
+    }
+
+    /** Leaves a file listed on one server only, as an exclusive lock does. */
+    private static void exclusive(DirectoryTree tree, Journal journal, Path path,
+                                  PathComponents server) {
+        DirectoryNode node = tree.getNode(path);
+        long entry;
+        synchronized(node) {
+            node.keepOnly(server);
+            entry = journal.exclusive(path, server);
+        }
+        journal.commit(entry);
+    }
+
+    /** Adds a storage server whose stubs use two ports from the given one. */
+    static PathComponents server(Scheduler scheduler, int port) {
+        return scheduler.addStorageServer(
+            Stub.create(Storage.class, new InetSocketAddress("127.0.0.1", port)),
+            Stub.create(Command.class, new InetSocketAddress("127.0.0.1", port + 1)));
+    }
+
+    private static void check(DirectoryTree tree, String expected, String when)
+            throws TestFailed {
+        String got = dump(tree);
+        if(!got.equals(expected)) {
+            throw new TestFailed("tree differs after " + when + ":\n" + got
+                                 + "expected:\n" + expected);
+        }
+    }
+
+    /** Lists every node of a tree, in order, with the servers of each file,
+        so that trees with different schedulers can be compared. */
+    static String dump(DirectoryTree tree) {
+        StringBuilder out = new StringBuilder();
+        dump(tree.root, new Path(), tree.scheduler, out);
+        return out.toString();
+    }
+
+    private static void dump(DirectoryNode node, Path path, Scheduler scheduler,
+                             StringBuilder out) {
+        if(node.isDirectory()) {
+            out.append(path).append("/\n");
+            TreeMap<String, DirectoryNode> sons = new TreeMap<String, DirectoryNode>(node.getSons());
+            for(Map.Entry<String, DirectoryNode> son: sons.entrySet()) {
+                dump(son.getValue(), new Path(path, son.getKey()), scheduler, out);
+            }
+            return;
+        }
+        // Servers by port, since a stub read back may name its host
+        // differently.
+        TreeSet<String> servers = new TreeSet<String>();
+        for(PathComponents server: node.getPathComps(scheduler)) {
+            String stub = server.getStorageStub().toString();
+            servers.add(stub.substring(stub.lastIndexOf(':') + 1));
+        }
+        out.append(path).append(' ').append(servers).append('\n');
+    }
+}
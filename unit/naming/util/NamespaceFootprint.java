@@ -0,0 +1,76 @@
+package naming.util;
+
+import java.io.*;
+import java.net.*;
+
+import common.*;
+import rmi.*;
+import storage.*;
+
+/** Measures the heap taken by the naming server's directory tree per file.
+
+    <p>
+    A tree is built of directories holding 100 files each, spread over eight
+    storage servers, and the heap in use is compared before and after. The
+    files are named once as in a typical data set, where the same names recur
+    in every directory (<code>part-00000</code>, ...), and once with names
+    unique across the tree. The figure printed for each is the heap taken
+    per file, directories included.
+
+    <p>
+    Run with <code>make bench</code>, or from the project root with
+    <code>java -cp .:unit naming.util.NamespaceFootprint [files]</code>
+    after compiling. Give the JVM enough heap for the tree.
+ */
+public class NamespaceFootprint {
+    static final int FILES_PER_DIRECTORY = 100;
+
+    public static void main(String[] arguments) throws Exception {
+        int files = arguments.length > 0 ? Integer.parseInt(arguments[0]) : 1000000;
+
+        measure("shared names", files, false);
+        measure("unique names", files, true);
+    }
+
+    static void measure(String name, int files, boolean unique) throws Exception {
+        Scheduler scheduler = new Scheduler();
+        PathComponents[] servers = new PathComponents[8];
+        for(int i = 0; i < servers.length; i++) {
+            servers[i] = scheduler.addStorageServer(
+                Stub.create(Storage.class, new InetSocketAddress("10.0.0." + i, 7000)),
+                Stub.create(Command.class, new InetSocketAddress("10.0.0." + i, 7001)));
+        }
+
+        long before = used();
+        DirectoryTree tree = new DirectoryTree(scheduler);
+        int directories = 0;
+        for(int made = 0; made < files; directories++) {
+            Path directory = new Path(new Path("/data" + directories % 100), "dir" + directories);
+            tree.insertNode(directory.parent(), true);
+            tree.insertNode(directory, true);
+            for(int i = 0; i < FILES_PER_DIRECTORY && made < files; i++, made++) {
+                String file = unique ? "file" + made : String.format("part-%05d", i);
+                tree.insertNode(new Path(directory, file), servers[made % servers.length]);
+            }
+        }
+        long after = used();
+
+        System.out.printf("%-12s %9d files %7d directories   %6.1f bytes per file%n", name,
+                          files, directories, (double) (after - before) / files);
+        if(tree.getNode(new Path("/data1/dir1")) == null) {
+            throw new IllegalStateException("tree lost");
+        }
+    }
+
+    /** Returns the heap in use after collecting garbage. */
+    static long used() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for(int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
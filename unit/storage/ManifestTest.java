@@ -0,0 +1,121 @@
+package storage;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.*;
+
+import test.*;
+import common.*;
+
+/** Tests storage server manifests.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>A manifest read back gives the generation, checksum and files
+        written.</li>
+    <li>The checksum of a set of files does not depend on their order, and
+        differs when a file is added or removed.</li>
+    <li>A manifest which does not exist, is damaged or cut short, or whose
+        checksum does not match its files, reads as <code>null</code>.</li>
+    </ul>
+ */
+public class ManifestTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage server manifests";
+
+    /** Directory holding the manifest. */
+    private TemporaryDirectory  directory = null;
+    private File                file;
+
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+        file = new File(directory.root(), "manifest");
+    }
+
+    @Override
+    protected void perform() throws Exception
+    {
+        HashSet<Path>       files = new HashSet<Path>();
+        for(int i = 0; i < 50; i++)
+            files.add(new Path("/d" + (i % 7) + "/f" + i));
+        files.add(new Path("/top"));
+
+        task("reading a manifest back");
+        if(Manifest.read(file) != null)
+            throw new TestFailed("missing manifest read");
+        Manifest            written = new Manifest(3, files);
+        written.write(file);
+        Manifest            read = Manifest.read(file);
+        if(read == null)
+            throw new TestFailed("manifest not read back");
+        if(read.generation != 3 || read.checksum != written.checksum
+                || !read.files.equals(files))
+            throw new TestFailed("manifest read back differs");
+        if(new File(file.getPath() + ".tmp").exists())
+            throw new TestFailed("temporary manifest left behind");
+
+        task("computing checksums");
+        ArrayList<Path>     reversed = new ArrayList<Path>(files);
+        Collections.sort(reversed, Collections.reverseOrder());
+        if(Manifest.checksum(reversed) != written.checksum)
+            throw new TestFailed("checksum depends on the order of the files");
+        reversed.remove(0);
+        if(Manifest.checksum(reversed) == written.checksum)
+            throw new TestFailed("checksum unchanged by a removed file");
+
+        byte[]              bytes = Files.readAllBytes(file.toPath());
+
+        task("reading damaged manifests");
+        byte[]              damaged = bytes.clone();
+        damaged[damaged.length / 2] ^= 0x10;
+        expectRejected(damaged, "damaged manifest");
+        expectRejected(Arrays.copyOf(bytes, bytes.length - 5), "manifest cut short");
+        expectRejected(new byte[0], "empty manifest");
+
+        // A whole manifest whose checksum is not that of its files.
+        Manifest            wrong = new Manifest(4, new HashSet<Path>(reversed));
+        wrong.write(file);
+        byte[]              other = Files.readAllBytes(file.toPath());
+        // The checksum follows the magic number, version and generation.
+        System.arraycopy(bytes, 16, other, 16, 8);
+        CRC32               crc = new CRC32();
+        crc.update(other, 0, other.length - 4);
+        int                 sum = (int) crc.getValue();
+        for(int i = 0; i < 4; i++)
+            other[other.length - 4 + i] = (byte) (sum >>> (24 - 8 * i));
+        expectRejected(other, "manifest with the wrong checksum");
+
+        task();
+    }
+
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Writes the given bytes as the manifest, and checks that reading it
+        gives <code>null</code>. */
+    private void expectRejected(byte[] bytes, String what) throws Exception
+    {
+        Files.write(file.toPath(), bytes);
+        if(Manifest.read(file) != null)
+            throw new TestFailed(what + " read");
+    }
+}